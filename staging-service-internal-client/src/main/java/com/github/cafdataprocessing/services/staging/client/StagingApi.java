@@ -38,9 +38,42 @@ public class StagingApi extends com.github.cafdataprocessing.services.staging.cl
 {
     private final String TENANT_HEADER_NAME = "X-TENANT-ID";
     private final String PUT_API_PATH = "/batches/";
+    private final String UPLOADS_PATH = "/uploads/";
+    private final String CHUNKS_PATH = "/chunks/";
 
     public void createOrReplaceBatch(final String tenantId, final String batchId, final Stream<MultiPart> uploadData)
         throws ApiException
+    {
+        put(tenantId, PUT_API_PATH + batchId, uploadData, "Error uploading documents for tenant " + tenantId + " batch: " + batchId);
+    }
+
+    /**
+     * Uploads the next chunk of a batch in an upload session opened with {@link #openUploadSession}. If the upload of a chunk fails
+     * it can be sent again, and {@link #getUploadSession} reports how many chunks have been received if it is not known whether
+     * the server received it. Loose files may be referenced by documents in later chunks. The batch is created once the session is
+     * committed with {@link #commitUploadSession}.
+     *
+     * @param tenantId the tenant uploading the batch
+     * @param batchId the batch being uploaded
+     * @param uploadId the id of the upload session
+     * @param chunkNumber the position of the chunk in the batch, starting from 1
+     * @param uploadData the documents and loose files in the chunk
+     */
+    public void uploadChunk(
+        final String tenantId,
+        final String batchId,
+        final String uploadId,
+        final int chunkNumber,
+        final Stream<MultiPart> uploadData
+    ) throws ApiException
+    {
+        put(tenantId, PUT_API_PATH + batchId + UPLOADS_PATH + uploadId + CHUNKS_PATH + chunkNumber, uploadData,
+            "Error uploading chunk " + chunkNumber + " of upload session " + uploadId + " for tenant " + tenantId + " batch: "
+            + batchId);
+    }
+
+    private void put(final String tenantId, final String path, final Stream<MultiPart> uploadData, final String errorMessage)
+        throws ApiException
     {
         final MultipartBody.Builder mpBuilder = new MultipartBody.Builder().setType(MultipartBody.MIXED);
         final Iterator<MultiPart> uploadDataIterator = uploadData.iterator();
@@ -53,7 +86,7 @@ public class StagingApi extends com.github.cafdataprocessing.services.staging.cl
             );
         }
         final RequestBody requestBody = mpBuilder.build();
-        final String apiPath = getApiClient().getBasePath() + PUT_API_PATH + batchId;
+        final String apiPath = getApiClient().getBasePath() + path;
         final Map<String, String> stagingHeaders = new HashMap<>();
         stagingHeaders.put(TENANT_HEADER_NAME, tenantId);
         final Request.Builder reqBuilder = new Request.Builder();
@@ -62,10 +95,9 @@ public class StagingApi extends com.github.cafdataprocessing.services.staging.cl
             .url(apiPath)
             .put(requestBody)
             .build();
-        try {
-            final Response response = getApiClient().getHttpClient().newCall(request).execute();
+        try (final Response response = getApiClient().getHttpClient().newCall(request).execute()) {
             if (!response.isSuccessful()) {
-                throw new ApiException("Error uploading documents for tenant " + tenantId + " batch: " + batchId,
+                throw new ApiException(errorMessage,
                                        response.code(),
                                        null,
                                        response.message());
@@ -21,24 +21,122 @@ import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 public final class BatchNameProvider
 {
     private static final String SUBBATCH_FILE_SUFFIX = "-json.batch";
+    private static final String COMPRESSED_SUBBATCH_FILE_SUFFIX = "-json.gz.batch";
+    private static final String UPLOAD_CHUNK_DIRECTORY_PREFIX = "chunk";
     private static final String DATE_TIME_ISO_PATTERN = "yyyy-MM-dd'T'HHmmss.SSSX";
+    private static final int DATE_TIME_LENGTH = "yyyy-MM-ddTHHmmss.SSSZ".length();
     private static final DateTimeFormatter formatToday = DateTimeFormatter.ofPattern(DATE_TIME_ISO_PATTERN).withZone(ZoneOffset.UTC);
+    private static final Pattern TIMESTAMPED_NAME_PATTERN
+        = Pattern.compile("^[0-9]{4}-[0-9]{2}-[0-9]{2}T[0-9]{6}.[0-9]{3}Z-.*-.*-.*");
+    private static final Pattern TIMESTAMP_PREFIX_PATTERN = Pattern.compile("^[0-9]{4}-[0-9]{2}-[0-9]{2}T[0-9]{6}\\.[0-9]{3}Z");
+    private static final AtomicLong directorySequence = new AtomicLong();
 
     public static String getBatchDirectoryName(final BatchId batchId)
+    {
+        return getBatchDirectoryName(getUploadSessionId(), batchId);
+    }
+
+    /**
+     * The in-progress folder of an upload session is named in the same way as the folder of any other upload, with the session id
+     * taking the place of the timestamp, sequence number and service id.
+     */
+    public static String getBatchDirectoryName(final String uploadSessionId, final BatchId batchId)
+    {
+        return uploadSessionId.concat("-").concat(batchId.getValue());
+    }
+
+    public static String getUploadSessionId()
     {
         return getCurrentTimeAsString()
-            .concat("-").concat("" + Thread.currentThread().getId())
-            .concat("-").concat(ServiceIdentifier.getServiceId())
-            .concat("-").concat(batchId.getValue());
+            .concat("-").concat("" + directorySequence.incrementAndGet())
+            .concat("-").concat(ServiceIdentifier.getServiceId());
+    }
+
+    public static boolean isUploadSessionId(final String uploadSessionId)
+    {
+        return uploadSessionId.matches("^[0-9]{4}-[0-9]{2}-[0-9]{2}T[0-9]{6}\\.[0-9]{3}Z-[0-9]+-[0-9a-f]+$");
+    }
+
+    /**
+     * Each chunk received by an upload session is kept in its own folder, which is named with the time it was received so that
+     * the session is not removed as stale while chunks are still arriving.
+     */
+    public static String getUploadChunkDirectoryName(final int chunkNumber)
+    {
+        return getUploadSessionId().concat("-").concat(UPLOAD_CHUNK_DIRECTORY_PREFIX + chunkNumber);
+    }
+
+    /**
+     * @return the number of the chunk held in the folder, or 0 if the folder does not hold an upload chunk
+     */
+    public static int getUploadChunkNumber(final String directoryName)
+    {
+        if (!validateFileName(directoryName)) {
+            return 0;
+        }
+        final String suffix = directoryName.substring(directoryName.lastIndexOf('-') + 1);
+        if (!suffix.matches(UPLOAD_CHUNK_DIRECTORY_PREFIX + "[1-9][0-9]{0,9}")) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(suffix.substring(UPLOAD_CHUNK_DIRECTORY_PREFIX.length()));
+        } catch (final NumberFormatException ex) {
+            return 0;
+        }
     }
 
     public static String getSubBatchName()
     {
-        return getCurrentTimeAsString().concat(SUBBATCH_FILE_SUFFIX);
+        return getSubBatchName(false);
+    }
+
+    public static String getSubBatchName(final boolean compressed)
+    {
+        return getCurrentTimeAsString().concat(compressed ? COMPRESSED_SUBBATCH_FILE_SUFFIX : SUBBATCH_FILE_SUFFIX);
+    }
+
+    /**
+     * Subbatch files opened in the same millisecond are told apart by a sequence number. The number is zero padded, so that the
+     * names of the subbatch files of a batch sort in the order in which they were written.
+     */
+    public static String getSubBatchName(final boolean compressed, final int sequenceNumber)
+    {
+        return getCurrentTimeAsString().concat(String.format("-%06d", sequenceNumber))
+            .concat(compressed ? COMPRESSED_SUBBATCH_FILE_SUFFIX : SUBBATCH_FILE_SUFFIX);
+    }
+
+    /**
+     * Gives a subbatch file a new sequence number, keeping the time at the start of its name. This is used when the subbatch
+     * files of several writers are merged into one batch, so that their names are unique and still sort in the order in which
+     * they were written.
+     */
+    public static String renumberSubBatchName(final String fileName, final int sequenceNumber)
+    {
+        final boolean compressed = isCompressedSubBatchName(fileName);
+        final String suffix = compressed ? COMPRESSED_SUBBATCH_FILE_SUFFIX : SUBBATCH_FILE_SUFFIX;
+        final String time = TIMESTAMP_PREFIX_PATTERN.matcher(fileName).lookingAt()
+            ? fileName.substring(0, DATE_TIME_LENGTH)
+            : fileName.endsWith(suffix) ? fileName.substring(0, fileName.length() - suffix.length()) : fileName;
+        return time.concat(String.format("-%06d", sequenceNumber)).concat(suffix);
+    }
+
+    public static boolean isSubBatchName(final String fileName)
+    {
+        return fileName.endsWith(SUBBATCH_FILE_SUFFIX) || fileName.endsWith(COMPRESSED_SUBBATCH_FILE_SUFFIX);
+    }
+
+    /**
+     * Compressed subbatch files hold the same lines as other subbatch files, but gzip compressed.
+     */
+    public static boolean isCompressedSubBatchName(final String fileName)
+    {
+        return fileName.endsWith(COMPRESSED_SUBBATCH_FILE_SUFFIX);
     }
 
     private static String getCurrentTimeAsString()
@@ -46,29 +144,24 @@ public final class BatchNameProvider
         return formatToday.format(Instant.now());
     }
 
+    /**
+     * @return the time at the start of the name in milliseconds since the epoch, or the current time if the name does not start
+     * with a time
+     */
     public static long getFileCreationTime(final String fileName)
     {
-        final String time = fileName.substring(0, 22);
-
+        if (fileName.length() < DATE_TIME_LENGTH) {
+            return Instant.now().toEpochMilli();
+        }
         try {
-            System.out.println("File creation time file name: " + time);
-            return Instant.parse(reverseCleanseTimeString(time)).toEpochMilli();
+            return Instant.from(formatToday.parse(fileName.substring(0, DATE_TIME_LENGTH))).toEpochMilli();
         } catch (final DateTimeParseException ex) {
             return Instant.now().toEpochMilli();
         }
     }
 
-    private static String reverseCleanseTimeString(final String timeString)
-    {
-        return new StringBuilder().append(timeString.substring(0, 13))
-            .append(":")
-            .append(timeString.substring(13, 15))
-            .append(":")
-            .append(timeString.substring(15)).toString();
-    }
-
     public static boolean validateFileName(final String fileName)
     {
-        return fileName.matches("^[0-9]{4}-[0-9]{2}-[0-9]{2}T[0-9]{6}.[0-9]{3}Z-.*-.*-.*");
+        return TIMESTAMPED_NAME_PATTERN.matcher(fileName).matches();
     }
 }
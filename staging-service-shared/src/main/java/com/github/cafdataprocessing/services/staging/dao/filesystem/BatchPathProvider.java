@@ -29,6 +29,8 @@ public class BatchPathProvider
     private static final Logger LOGGER = LoggerFactory.getLogger(BatchPathProvider.class);
     public static final String INPROGRESS_FOLDER = "in_progress";
     public static final String COMPLETED_FOLDER = "completed";
+    public static final String CONTENT_STORE_FOLDER = "content_store";
+    public static final String TRASH_FOLDER = "trash";
 
     private final Path basePath;
 
@@ -77,9 +79,9 @@ public class BatchPathProvider
         The referenced files will be separately written out to a files subfolder.
         If there are any failures while processing the batch, the temporary folder will be deleted
         If the entire batch was processed without errors the temporary folder will be renamed and moved to the staging root folder
-        If the batch folder existed under the staging root, it will be deleted before copying the new data
+        If the batch folder existed under the staging root, it will be moved to the trash folder and deleted after the new data is in place
          */
-        //Make a temporary folder with name like, timestamp+threadid+serviceid+batchID in a separate "in_progress" folder
+        //Make a temporary folder with name like, timestamp+sequencenumber+serviceid+batchID in a separate "in_progress" folder
         final Path tenantPath = getPathForTenant(tenantId);
 
         final String inProgressBatchFolderName = BatchNameProvider.getBatchDirectoryName(batchId);
@@ -104,11 +106,40 @@ public class BatchPathProvider
         return inProgressPath;
     }
 
+    /**
+     * Returns the in-progress folder of an upload session, which is kept alongside the in-progress folders of other uploads.
+     * The folder is not created.
+     */
+    public Path getInProgressPathForUploadSession(final TenantId tenantId, final BatchId batchId, final String uploadSessionId)
+    {
+        final Path inProgressPath = getTenantInprogressDirectory(tenantId);
+        final Path sessionPath = inProgressPath
+            .resolve(BatchNameProvider.getBatchDirectoryName(uploadSessionId, batchId)).normalize();
+        if (!sessionPath.startsWith(inProgressPath)) {
+            throw new UnexpectedInvalidBatchIdException(batchId);
+        }
+        return sessionPath;
+    }
+
     public Path getTenantInprogressDirectory(final TenantId tenantId)
     {
         return getPathForTenant(tenantId).resolve(INPROGRESS_FOLDER);
     }
 
+    /**
+     * Returns the folder which completed batches are moved into when they are replaced, so that they can be deleted after the new
+     * batch has taken their place. The folder is not created.
+     */
+    public Path getTenantTrashDirectory(final TenantId tenantId)
+    {
+        return getPathForTenant(tenantId).resolve(TRASH_FOLDER);
+    }
+
+    public Path getContentStorePath(final TenantId tenantId)
+    {
+        return getPathForTenant(tenantId).resolve(CONTENT_STORE_FOLDER);
+    }
+
     public static Path getStorageRefFolderPathForBatch(final TenantId tenantId, final BatchId batchId, final String storePath,
                                                        final String contentFolder)
     {
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * The manifest lists the subbatch files of a batch, so that they can be found without listing the batch folder, which is slow on
+ * network file systems when a batch has many subbatch files.
+ * It is a tab-separated text file. The first line holds the format version, and the numbers of subbatch files, documents and bytes
+ * in the batch. Each following line holds the name of a subbatch file, the number of documents in it, its length in bytes, the
+ * position in the batch of its first document, and the CRC-32C checksum of its content, in hex.
+ * Batches staged by earlier versions of the service do not have a manifest.
+ */
+public final class SubbatchManifest
+{
+    public static final String FILE_NAME = "subbatches.manifest";
+
+    private static final String VERSION = "subbatch-manifest-1";
+    private static final String SEPARATOR = "\t";
+
+    private final List<Entry> entries;
+    private final long documentCount;
+    private final long byteLength;
+
+    private SubbatchManifest(final List<Entry> entries)
+    {
+        this.entries = Collections.unmodifiableList(entries);
+        this.documentCount = entries.stream().mapToLong(Entry::getDocumentCount).sum();
+        this.byteLength = entries.stream().mapToLong(Entry::getByteLength).sum();
+    }
+
+    public static boolean exists(final Path batchFolder)
+    {
+        return Files.isRegularFile(batchFolder.resolve(FILE_NAME));
+    }
+
+    public static SubbatchManifest read(final Path batchFolder) throws IOException
+    {
+        final Path manifestFile = batchFolder.resolve(FILE_NAME);
+        try (final BufferedReader reader = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+            final String header = reader.readLine();
+            if (header == null || !header.startsWith(VERSION + SEPARATOR)) {
+                throw new IOException("Unsupported subbatch manifest: " + manifestFile);
+            }
+            final Builder builder = new Builder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(SEPARATOR);
+                if (fields.length != 5) {
+                    throw new IOException("Invalid line in subbatch manifest " + manifestFile + ": " + line);
+                }
+                try {
+                    builder.add(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[4], 16));
+                } catch (final NumberFormatException ex) {
+                    throw new IOException("Invalid line in subbatch manifest " + manifestFile + ": " + line, ex);
+                }
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * Writes the manifest into the folder, replacing any manifest already there. The manifest is written under a temporary name
+     * and renamed, so that a partly written manifest is never read.
+     */
+    public void write(final Path batchFolder) throws IOException
+    {
+        final Path tempFile = batchFolder.resolve(FILE_NAME + ".tmp");
+        try (final BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            writer.write(String.join(SEPARATOR, VERSION, Integer.toString(entries.size()), Long.toString(documentCount),
+                                     Long.toString(byteLength)));
+            writer.newLine();
+            for (final Entry entry : entries) {
+                writer.write(String.join(SEPARATOR, entry.fileName, Long.toString(entry.documentCount),
+                                         Long.toString(entry.byteLength), Long.toString(entry.firstDocument),
+                                         Long.toHexString(entry.checksum)));
+                writer.newLine();
+            }
+        }
+        Files.move(tempFile, batchFolder.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    public long getDocumentCount()
+    {
+        return documentCount;
+    }
+
+    public long getByteLength()
+    {
+        return byteLength;
+    }
+
+    public static final class Entry
+    {
+        private final String fileName;
+        private final long documentCount;
+        private final long byteLength;
+        private final long firstDocument;
+        private final long checksum;
+
+        private Entry(
+            final String fileName,
+            final long documentCount,
+            final long byteLength,
+            final long firstDocument,
+            final long checksum
+        )
+        {
+            this.fileName = fileName;
+            this.documentCount = documentCount;
+            this.byteLength = byteLength;
+            this.firstDocument = firstDocument;
+            this.checksum = checksum;
+        }
+
+        public String getFileName()
+        {
+            return fileName;
+        }
+
+        public long getDocumentCount()
+        {
+            return documentCount;
+        }
+
+        public long getByteLength()
+        {
+            return byteLength;
+        }
+
+        /**
+         * Returns the position of the first document of the subbatch file among all of the documents in the batch, counting from 0.
+         */
+        public long getFirstDocument()
+        {
+            return firstDocument;
+        }
+
+        public long getChecksum()
+        {
+            return checksum;
+        }
+    }
+
+    public static final class Builder
+    {
+        private final List<Entry> entries;
+        private long documentCount;
+
+        public Builder()
+        {
+            this.entries = new ArrayList<>();
+            this.documentCount = 0;
+        }
+
+        public Builder add(final String fileName, final long documentCount, final long byteLength, final long checksum)
+        {
+            entries.add(new Entry(fileName, documentCount, byteLength, this.documentCount, checksum));
+            this.documentCount += documentCount;
+            return this;
+        }
+
+        public SubbatchManifest build()
+        {
+            return new SubbatchManifest(new ArrayList<>(entries));
+        }
+    }
+}
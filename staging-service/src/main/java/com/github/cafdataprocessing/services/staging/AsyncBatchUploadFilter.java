@@ -0,0 +1,556 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging;
+
+import com.github.cafapi.correlation.constants.CorrelationIdConfigurationConstants;
+import com.github.cafdataprocessing.services.staging.dao.BatchDao;
+import com.github.cafdataprocessing.services.staging.dao.BatchUpload;
+import com.github.cafdataprocessing.services.staging.dao.filesystem.statusreporting.BatchProgressListener;
+import com.github.cafdataprocessing.services.staging.exceptions.IncompleteBatchException;
+import com.github.cafdataprocessing.services.staging.exceptions.InvalidBatchException;
+import com.github.cafdataprocessing.services.staging.exceptions.InvalidBatchIdException;
+import com.github.cafdataprocessing.services.staging.exceptions.InvalidTenantIdException;
+import com.github.cafdataprocessing.services.staging.exceptions.StagingException;
+import com.github.cafdataprocessing.services.staging.utils.DocumentBuffer;
+import com.github.cafdataprocessing.services.staging.utils.MultipartStreamParser;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpFilter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.util.UriUtils;
+
+/*
+ * This filter handles batch uploads using non-blocking reads, as an alternative to the blocking reads used by
+ * StagingController.createOrReplaceBatch.
+ * Rather than holding a request thread for the duration of the upload, the request is put into asynchronous mode and the body is
+ * read whenever the container reports that more of it is available, so a small number of threads can serve a large number of
+ * slow uploads.
+ * The body is fed to a MultipartStreamParser and the parts are written to the batch in the same way as saveFiles does, except
+ * that each document is collected in a DocumentBuffer and then handed to the batch to be validated and minified on another
+ * thread, so that a slow document does not hold up the container's thread. Once the batch has as many documents in flight as
+ * it allows, reading is paused until it reports that there is room for more.
+ * As the uploads handled here do not reach the handler interceptors, the filter sets up the logging context and correlation id
+ * itself, and restores them on each of the container's callbacks. Uploads to the admin port are passed down the chain, so that
+ * they are handled in the same way as the other requests to it.
+ * Completing a batch waits for its documents to be written and moves it into place, so it is handed to a separate pool of
+ * threads rather than being done in the container's read callback.
+ * Requests other than batch uploads are passed down the chain unchanged.
+ */
+public final class AsyncBatchUploadFilter extends HttpFilter
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncBatchUploadFilter.class);
+
+    private static final String BATCHES_PATH = "/batches/";
+    private static final String TENANT_HEADER = "X-TENANT-ID";
+    private static final String TENANT_MDC_KEY = "tenantId";
+
+    private final BatchDao batchDao;
+    private final UploadBandwidthThrottle uploadBandwidthThrottle;
+    private final int adminPort;
+    private final ExecutorService completionExecutor;
+
+    public AsyncBatchUploadFilter(
+        final BatchDao batchDao,
+        final UploadBandwidthThrottle uploadBandwidthThrottle,
+        final int adminPort
+    )
+    {
+        this.batchDao = batchDao;
+        this.uploadBandwidthThrottle = uploadBandwidthThrottle;
+        this.adminPort = adminPort;
+        this.completionExecutor = Executors.newCachedThreadPool(new BasicThreadFactory.Builder()
+                                                                .namingPattern("async-upload-completion-%d")
+                                                                .daemon(true)
+                                                                .build());
+    }
+
+    @Override
+    public void destroy()
+    {
+        completionExecutor.shutdownNow();
+    }
+
+    @Override
+    protected void doFilter(final HttpServletRequest request, final HttpServletResponse response, final FilterChain chain)
+        throws IOException, ServletException
+    {
+        final String batchIdStr = getUploadBatchId(request);
+        if (batchIdStr == null || request.getLocalPort() == adminPort) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        setUpLoggingContext(request, response);
+        try {
+            startUpload(request, response, batchIdStr);
+        } finally {
+            MDC.remove(TENANT_MDC_KEY);
+            MDC.remove(CorrelationIdConfigurationConstants.MDC_KEY);
+        }
+    }
+
+    private void startUpload(final HttpServletRequest request, final HttpServletResponse response, final String batchIdStr)
+        throws IOException
+    {
+        final TenantId tenantId;
+        final BatchId batchId;
+        try {
+            tenantId = new TenantId(request.getHeader(TENANT_HEADER));
+            batchId = new BatchId(batchIdStr);
+        } catch (final InvalidTenantIdException ex) {
+            LOGGER.warn("Invalid X-TENANT-ID {}", request.getHeader(TENANT_HEADER));
+            sendError(response, HttpStatus.BAD_REQUEST, ex.getMessage());
+            return;
+        } catch (final InvalidBatchIdException ex) {
+            LOGGER.warn("Invalid batchId {}", batchIdStr);
+            sendError(response, HttpStatus.BAD_REQUEST, ex.getMessage());
+            return;
+        }
+
+        final String boundary = MultipartStreamParser.getBoundary(request.getContentType());
+        if (boundary == null) {
+            LOGGER.error("Error getting multipart boundary from content type {}", request.getContentType());
+            sendError(response, HttpStatus.BAD_REQUEST, "the request doesn't contain a multipart/form-data stream");
+            return;
+        }
+
+        final UploadBandwidthThrottle.Lease throttle = uploadBandwidthThrottle.register(tenantId);
+        final BatchProgressListener batchProgressListener = new BatchProgressListener(tenantId, batchId, throttle::getRateLimit);
+        final BatchUpload batchUpload;
+        try {
+            batchUpload = batchDao.startBatchUpload(tenantId, batchId, batchProgressListener.getProgress());
+        } catch (final StagingException ex) {
+            batchProgressListener.close();
+            throttle.close();
+            sendError(response, HttpStatus.INTERNAL_SERVER_ERROR, ex.getMessage());
+            return;
+        }
+
+        final AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(0);
+        final UploadReader uploadReader = new UploadReader(
+            asyncContext, request.getInputStream(), response, request.getContentLengthLong(),
+            getHeaderCharset(request), boundary, batchId, batchUpload, batchProgressListener, throttle, completionExecutor);
+        asyncContext.addListener(uploadReader);
+        request.getInputStream().setReadListener(uploadReader);
+    }
+
+    /**
+     * Does the same as the LoggingMDCInterceptor and CorrelationIdInterceptor do for requests which reach the controller.
+     */
+    private static void setUpLoggingContext(final HttpServletRequest request, final HttpServletResponse response)
+    {
+        final String tenant = request.getHeader(TENANT_HEADER);
+        if (StringUtils.isNotEmpty(tenant)) {
+            MDC.put(TENANT_MDC_KEY, tenant);
+        }
+        final String correlationId = request.getHeader(CorrelationIdConfigurationConstants.HEADER_NAME);
+        final String mdcCorrelationId = StringUtils.isNotEmpty(correlationId) ? correlationId : UUID.randomUUID().toString();
+        MDC.put(CorrelationIdConfigurationConstants.MDC_KEY, mdcCorrelationId);
+        response.setHeader(CorrelationIdConfigurationConstants.HEADER_NAME, mdcCorrelationId);
+    }
+
+    private static String getUploadBatchId(final HttpServletRequest request)
+    {
+        if (!"PUT".equals(request.getMethod())) {
+            return null;
+        }
+        final String path = request.getRequestURI().substring(request.getContextPath().length());
+        if (!path.startsWith(BATCHES_PATH)) {
+            return null;
+        }
+        final String batchId = path.substring(BATCHES_PATH.length());
+        if (batchId.isEmpty() || batchId.indexOf('/') != -1) {
+            return null;
+        }
+        return UriUtils.decode(batchId, StandardCharsets.UTF_8);
+    }
+
+    private static Charset getHeaderCharset(final HttpServletRequest request)
+    {
+        final String encoding = request.getCharacterEncoding();
+        return encoding == null ? StandardCharsets.ISO_8859_1 : Charset.forName(encoding);
+    }
+
+    private static void sendError(final HttpServletResponse response, final HttpStatus status, final String message)
+        throws IOException
+    {
+        response.setStatus(status.value());
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        if (message != null) {
+            response.getWriter().write(message);
+        }
+        response.flushBuffer();
+    }
+
+    /*
+     * The container never calls the listener methods concurrently for a single request, but reading is resumed from the throttle's
+     * scheduler or the document processing threads after a pause, so the methods which read the request are synchronized.
+     * Reading is paused while either the throttle or the batch's documents in flight are holding it up. While paused, isReady()
+     * is not called, so the container does not call onDataAvailable() again until reading is resumed.
+     */
+    private static final class UploadReader implements ReadListener, AsyncListener, MultipartStreamParser.PartHandler
+    {
+        private final AsyncContext asyncContext;
+        private final ServletInputStream inputStream;
+        private final HttpServletResponse response;
+        private final long contentLength;
+        private final BatchId batchId;
+        private final BatchUpload batchUpload;
+        private final BatchProgressListener batchProgressListener;
+        private final UploadBandwidthThrottle.Lease throttle;
+        private final ExecutorService completionExecutor;
+        private final Map<String, String> loggingContext;
+        private final MultipartStreamParser parser;
+        private final byte[] readBuffer;
+        private long totalBytesRead;
+        private int items;
+        private String partName;
+        private DocumentBuffer documentBuffer;
+        private OutputStream looseFileStream;
+        private boolean finished;
+        private boolean paused;
+        private boolean waitingForDocuments;
+        private boolean allDataRead;
+
+        public UploadReader(
+            final AsyncContext asyncContext,
+            final ServletInputStream inputStream,
+            final HttpServletResponse response,
+            final long contentLength,
+            final Charset headerCharset,
+            final String boundary,
+            final BatchId batchId,
+            final BatchUpload batchUpload,
+            final BatchProgressListener batchProgressListener,
+            final UploadBandwidthThrottle.Lease throttle,
+            final ExecutorService completionExecutor
+        )
+        {
+            this.asyncContext = asyncContext;
+            this.inputStream = inputStream;
+            this.response = response;
+            this.contentLength = contentLength;
+            this.batchId = batchId;
+            this.batchUpload = batchUpload;
+            this.batchProgressListener = batchProgressListener;
+            this.throttle = throttle;
+            this.completionExecutor = completionExecutor;
+            this.loggingContext = MDC.getCopyOfContextMap();
+            this.parser = new MultipartStreamParser(boundary, headerCharset, this);
+            this.readBuffer = new byte[8192];
+            this.totalBytesRead = 0;
+            this.items = 0;
+            this.finished = false;
+            this.paused = false;
+            this.waitingForDocuments = false;
+            this.allDataRead = false;
+        }
+
+        @Override
+        public void onDataAvailable()
+        {
+            withLoggingContext(this::readAvailableData);
+        }
+
+        private synchronized void readAvailableData()
+        {
+            try {
+                while (!finished && !paused && !waitingForDocuments && inputStream.isReady()) {
+                    final int bytesRead = inputStream.read(readBuffer);
+                    if (bytesRead == -1) {
+                        return;
+                    }
+                    totalBytesRead += bytesRead;
+                    batchProgressListener.update(totalBytesRead, contentLength, items);
+                    parser.write(readBuffer, 0, bytesRead);
+                    final long delayNanos = throttle.reserve(bytesRead);
+                    if (delayNanos > 0) {
+                        paused = true;
+                        throttle.schedule(this::dispatchThrottleResume, delayNanos);
+                    }
+                }
+            } catch (final IOException ex) {
+                fail(new IncompleteBatchException(ex));
+            } catch (final IncompleteBatchException | InvalidBatchException | StagingException ex) {
+                fail(ex);
+            } catch (final RuntimeException ex) {
+                fail(new StagingException(ex));
+            }
+        }
+
+        private void dispatchThrottleResume()
+        {
+            dispatchResume(() -> paused = false);
+        }
+
+        private void dispatchDocumentsResume()
+        {
+            dispatchResume(() -> waitingForDocuments = false);
+        }
+
+        private synchronized void dispatchResume(final Runnable unpause)
+        {
+            if (!finished) {
+                asyncContext.start(() -> withLoggingContext(() -> resume(unpause)));
+            }
+        }
+
+        private synchronized void resume(final Runnable unpause)
+        {
+            unpause.run();
+            if (finished || paused || waitingForDocuments) {
+                return;
+            }
+            if (allDataRead) {
+                finishReading();
+            } else {
+                readAvailableData();
+            }
+        }
+
+        @Override
+        public void onAllDataRead()
+        {
+            withLoggingContext(this::finishReading);
+        }
+
+        private synchronized void finishReading()
+        {
+            if (finished) {
+                return;
+            }
+            if (paused || waitingForDocuments) {
+                allDataRead = true;
+                return;
+            }
+            try {
+                parser.close();
+                completionExecutor.execute(() -> withLoggingContext(this::complete));
+            } catch (final IncompleteBatchException ex) {
+                fail(ex);
+            } catch (final RuntimeException ex) {
+                fail(new StagingException(ex));
+            }
+        }
+
+        private synchronized void complete()
+        {
+            if (finished) {
+                return;
+            }
+            try {
+                final List<String> fileNames = batchUpload.complete();
+                LOGGER.debug("Staged batch: {} ({} parts)", batchId, fileNames.size());
+                finish(HttpStatus.OK, null);
+            } catch (final InvalidBatchException | StagingException ex) {
+                fail(ex);
+            } catch (final RuntimeException ex) {
+                fail(new StagingException(ex));
+            }
+        }
+
+        @Override
+        public void onError(final Throwable t)
+        {
+            withLoggingContext(() -> fail(new IncompleteBatchException(t)));
+        }
+
+        @Override
+        public void startPart(final String fieldName, final String contentType, final boolean isFormField)
+            throws StagingException, InvalidBatchException
+        {
+            items++;
+            if (!isFormField) {
+                LOGGER.error("A form field is required.");
+                throw new InvalidBatchException("A form field is required.");
+            }
+            if (fieldName == null || fieldName.trim().length() == 0) {
+                LOGGER.error("The form field name must be present and contain the filename.");
+                throw new InvalidBatchException("The form field name must be present and contain the filename.");
+            }
+            partName = fieldName;
+            if (BatchUpload.DOCUMENT_CONTENT_TYPE.equalsIgnoreCase(contentType)) {
+                documentBuffer = batchUpload.createDocumentBuffer();
+            } else {
+                looseFileStream = batchUpload.openLooseFile(fieldName);
+            }
+        }
+
+        @Override
+        public void partData(final byte[] buffer, final int offset, final int length) throws StagingException
+        {
+            try {
+                if (documentBuffer != null) {
+                    documentBuffer.write(buffer, offset, length);
+                } else {
+                    looseFileStream.write(buffer, offset, length);
+                }
+            } catch (final IOException ex) {
+                throw new StagingException(ex);
+            }
+        }
+
+        @Override
+        public void endPart() throws StagingException, InvalidBatchException, IncompleteBatchException
+        {
+            if (documentBuffer != null) {
+                final DocumentBuffer document = documentBuffer;
+                documentBuffer = null;
+                try {
+                    document.close();
+                } catch (final IOException ex) {
+                    document.discard();
+                    throw new StagingException(ex);
+                }
+                // Any further documents in the data already read are still accepted, so the limit can be exceeded slightly
+                if (!batchUpload.writeDocument(partName, document, this::dispatchDocumentsResume)) {
+                    waitingForDocuments = true;
+                }
+            } else {
+                final OutputStream stream = looseFileStream;
+                looseFileStream = null;
+                try {
+                    stream.close();
+                } catch (final IOException ex) {
+                    throw new StagingException(ex);
+                }
+            }
+        }
+
+        private synchronized void fail(final Exception ex)
+        {
+            if (finished) {
+                return;
+            }
+            if (ex instanceof IncompleteBatchException || ex instanceof InvalidBatchException) {
+                LOGGER.warn("Error getting multipart files: {}", ex.getMessage());
+                finish(HttpStatus.BAD_REQUEST, ex.getMessage());
+            } else {
+                LOGGER.error("Error saving batch", ex);
+                finish(HttpStatus.INTERNAL_SERVER_ERROR, ex.getMessage());
+            }
+        }
+
+        private void finish(final HttpStatus status, final String message)
+        {
+            release();
+            try {
+                if (status == HttpStatus.OK) {
+                    response.setStatus(status.value());
+                } else {
+                    sendError(response, status, message);
+                }
+            } catch (final IOException | IllegalStateException ex) {
+                LOGGER.warn("Failed to send response for batch {}", batchId, ex);
+            }
+            asyncContext.complete();
+        }
+
+        private synchronized void release()
+        {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (looseFileStream != null) {
+                try {
+                    looseFileStream.close();
+                } catch (final IOException ex) {
+                    LOGGER.warn("Failed to close loose file stream", ex);
+                }
+                looseFileStream = null;
+            }
+            if (documentBuffer != null) {
+                documentBuffer.discard();
+                documentBuffer = null;
+            }
+            batchUpload.close();
+            batchProgressListener.close();
+            throttle.close();
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event)
+        {
+            // Only does anything if the request ended without the upload being finished, e.g. if the connection was lost
+            release();
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event)
+        {
+            withLoggingContext(() -> fail(new IncompleteBatchException("Upload timed out")));
+        }
+
+        @Override
+        public void onError(final AsyncEvent event)
+        {
+            withLoggingContext(() -> fail(new IncompleteBatchException(event.getThrowable())));
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event)
+        {
+        }
+
+        /**
+         * Runs a callback with the logging context of the request which started the upload, as callbacks are made on whichever
+         * thread the container or the throttle has free.
+         */
+        private void withLoggingContext(final Runnable callback)
+        {
+            final Map<String, String> previousContext = MDC.getCopyOfContextMap();
+            if (loggingContext == null) {
+                MDC.clear();
+            } else {
+                MDC.setContextMap(loggingContext);
+            }
+            try {
+                callback.run();
+            } finally {
+                if (previousContext == null) {
+                    MDC.clear();
+                } else {
+                    MDC.setContextMap(previousContext);
+                }
+            }
+        }
+    }
+}
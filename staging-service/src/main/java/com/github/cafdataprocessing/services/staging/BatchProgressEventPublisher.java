@@ -0,0 +1,350 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.cafdataprocessing.services.staging.dao.BatchDao;
+import com.github.cafdataprocessing.services.staging.exceptions.BatchNotFoundException;
+import com.github.cafdataprocessing.services.staging.exceptions.StagingException;
+import com.github.cafdataprocessing.services.staging.models.BatchStatusResponse;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+
+/*
+ * This class streams the status of a batch to a client as server-sent events, so that clients watching an upload are sent its
+ * progress rather than polling for it.
+ * The request is put into asynchronous mode, so a stream does not hold a request thread. A single shared scheduler thread, which
+ * is started when the first stream is, ticks each stream at the emit interval. The status is read through
+ * BatchDao.getBatchStatus, which shares the status of a batch between the streams watching it, on a separate pool of threads,
+ * so a slow read only holds up its own stream; a tick is skipped if the stream's previous read is still running.
+ * Events are written using non-blocking output: an event is only written while the output stream is ready, and otherwise waits
+ * for the container to report that it is writable. Only the latest event waiting for a stream is kept, so a client which stops
+ * reading costs no more than a buffered event and does not hold up any thread.
+ * A "progress" event is sent at each interval until the batch has been completed, when a "complete" event is sent. If the
+ * uploads of the batch end without it being completed a "failed" event is sent, and if its status cannot be read an "error" event
+ * is sent. The stream is closed once any of these last events has been written, or as soon as the client goes away.
+ */
+public final class BatchProgressEventPublisher implements AutoCloseable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchProgressEventPublisher.class);
+
+    private static final String EVENT_STREAM_CONTENT_TYPE = "text/event-stream";
+
+    private final BatchDao batchDao;
+    private final ObjectMapper objectMapper;
+    private final long emitIntervalMillis;
+    private ScheduledExecutorService scheduler;
+    private ExecutorService statusReader;
+    private boolean closed;
+
+    /**
+     * @param emitIntervalMillis The number of milliseconds between progress events
+     */
+    public BatchProgressEventPublisher(
+        final BatchDao batchDao,
+        final ObjectMapper objectMapper,
+        final long emitIntervalMillis
+    )
+    {
+        this.batchDao = batchDao;
+        this.objectMapper = objectMapper;
+        this.emitIntervalMillis = emitIntervalMillis;
+        this.closed = false;
+    }
+
+    /**
+     * Starts streaming the status of a batch, beginning with the status which has already been read. The response is completed
+     * once the stream ends.
+     */
+    public void publish(
+        final HttpServletRequest request,
+        final HttpServletResponse response,
+        final TenantId tenantId,
+        final BatchId batchId,
+        final BatchStatusResponse initialStatus
+    ) throws IOException
+    {
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(EVENT_STREAM_CONTENT_TYPE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setHeader("Cache-Control", "no-cache");
+        // Stops reverse proxies from holding the events back
+        response.setHeader("X-Accel-Buffering", "no");
+
+        final AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(0);
+        final EventStream eventStream = new EventStream(asyncContext, response.getOutputStream(), tenantId, batchId);
+        asyncContext.addListener(eventStream);
+        eventStream.start(initialStatus);
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        closed = true;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (statusReader != null) {
+            statusReader.shutdownNow();
+        }
+    }
+
+    private synchronized ScheduledExecutorService getScheduler()
+    {
+        if (closed) {
+            throw new RejectedExecutionException("Batch progress event publisher has been closed");
+        }
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                                                                   .namingPattern("batch-progress-events-%d")
+                                                                   .daemon(true)
+                                                                   .build());
+        }
+        return scheduler;
+    }
+
+    private synchronized ExecutorService getStatusReader()
+    {
+        if (closed) {
+            throw new RejectedExecutionException("Batch progress event publisher has been closed");
+        }
+        if (statusReader == null) {
+            statusReader = Executors.newCachedThreadPool(new BasicThreadFactory.Builder()
+                                                         .namingPattern("batch-progress-status-%d")
+                                                         .daemon(true)
+                                                         .build());
+        }
+        return statusReader;
+    }
+
+    private final class EventStream implements AsyncListener, WriteListener
+    {
+        private final AsyncContext asyncContext;
+        private final ServletOutputStream outputStream;
+        private final TenantId tenantId;
+        private final BatchId batchId;
+        private ScheduledFuture<?> emitter;
+        private byte[] pendingEvent;
+        private boolean pendingEventIsLast;
+        private boolean readingStatus;
+        private boolean finished;
+
+        public EventStream(
+            final AsyncContext asyncContext,
+            final ServletOutputStream outputStream,
+            final TenantId tenantId,
+            final BatchId batchId
+        )
+        {
+            this.asyncContext = asyncContext;
+            this.outputStream = outputStream;
+            this.tenantId = tenantId;
+            this.batchId = batchId;
+            this.pendingEvent = null;
+            this.pendingEventIsLast = false;
+            this.readingStatus = false;
+            this.finished = false;
+        }
+
+        public synchronized void start(final BatchStatusResponse initialStatus)
+        {
+            outputStream.setWriteListener(this);
+            sendStatus(initialStatus);
+            if (finished || pendingEventIsLast) {
+                return;
+            }
+            try {
+                emitter = getScheduler().scheduleWithFixedDelay(this::emit, emitIntervalMillis, emitIntervalMillis,
+                                                                TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException ex) {
+                LOGGER.warn("Unable to stream the progress of batch {}", batchId, ex);
+                finish();
+            }
+        }
+
+        private synchronized void emit()
+        {
+            if (finished || pendingEventIsLast || readingStatus) {
+                return;
+            }
+            try {
+                getStatusReader().execute(this::readStatus);
+                readingStatus = true;
+            } catch (final RejectedExecutionException ex) {
+                LOGGER.debug("Progress stream of batch {} stopped as the publisher has been closed", batchId);
+                finish();
+            }
+        }
+
+        private void readStatus()
+        {
+            try {
+                final BatchStatusResponse status = batchDao.getBatchStatus(tenantId, batchId);
+                synchronized (this) {
+                    sendStatus(status);
+                }
+            } catch (final BatchNotFoundException ex) {
+                sendLast("failed", Map.of("batchId", batchId.getValue(),
+                                          "message", "The uploads of the batch ended without the batch being completed"));
+            } catch (final StagingException ex) {
+                LOGGER.error("Error reading the status of batch {}", batchId, ex);
+                sendLast("error", Map.of("batchId", batchId.getValue(), "message", String.valueOf(ex.getMessage())));
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                finish();
+            } catch (final RuntimeException ex) {
+                LOGGER.error("Error streaming the progress of batch {}", batchId, ex);
+                finish();
+            } finally {
+                synchronized (this) {
+                    readingStatus = false;
+                }
+            }
+        }
+
+        private void sendStatus(final BatchStatusResponse status)
+        {
+            final boolean complete = status.getBatchStatus() != null
+                && Boolean.TRUE.equals(status.getBatchStatus().getBatchComplete());
+            send(complete ? "complete" : "progress", status, complete);
+        }
+
+        private synchronized void sendLast(final String event, final Object data)
+        {
+            send(event, data, true);
+        }
+
+        /**
+         * Queues an event in place of any which has not yet been written, and writes it if the output stream is ready for it.
+         */
+        private void send(final String event, final Object data, final boolean last)
+        {
+            if (finished || pendingEventIsLast) {
+                return;
+            }
+            try {
+                pendingEvent = ("event: " + event + "\ndata: " + objectMapper.writeValueAsString(data) + "\n\n")
+                    .getBytes(StandardCharsets.UTF_8);
+            } catch (final IOException ex) {
+                LOGGER.error("Error serializing the status of batch {}", batchId, ex);
+                finish();
+                return;
+            }
+            pendingEventIsLast = last;
+            if (last && emitter != null) {
+                emitter.cancel(false);
+            }
+            writePendingEvent();
+        }
+
+        @Override
+        public synchronized void onWritePossible()
+        {
+            writePendingEvent();
+        }
+
+        private void writePendingEvent()
+        {
+            if (finished || pendingEvent == null) {
+                return;
+            }
+            try {
+                if (!outputStream.isReady()) {
+                    // The container calls onWritePossible once the client has caught up
+                    return;
+                }
+                outputStream.write(pendingEvent);
+                pendingEvent = null;
+                if (outputStream.isReady()) {
+                    outputStream.flush();
+                }
+            } catch (final IOException | IllegalStateException ex) {
+                LOGGER.debug("Progress stream of batch {} closed by the client: {}", batchId, ex.getMessage());
+                finish();
+                return;
+            }
+            if (pendingEventIsLast) {
+                finish();
+            }
+        }
+
+        private synchronized void finish()
+        {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            pendingEvent = null;
+            if (emitter != null) {
+                emitter.cancel(false);
+            }
+            try {
+                asyncContext.complete();
+            } catch (final IllegalStateException ex) {
+                LOGGER.debug("Progress stream of batch {} already completed", batchId);
+            }
+        }
+
+        @Override
+        public void onError(final Throwable t)
+        {
+            LOGGER.debug("Progress stream of batch {} failed: {}", batchId, t.getMessage());
+            finish();
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event)
+        {
+            finish();
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event)
+        {
+            finish();
+        }
+
+        @Override
+        public void onError(final AsyncEvent event)
+        {
+            finish();
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event)
+        {
+        }
+    }
+}
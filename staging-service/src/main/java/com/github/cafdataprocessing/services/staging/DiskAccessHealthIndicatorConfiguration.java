@@ -15,6 +15,7 @@
  */
 package com.github.cafdataprocessing.services.staging;
 
+import java.util.concurrent.ThreadFactory;
 import org.springframework.boot.actuate.health.AbstractHealthIndicator;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -24,10 +25,12 @@ public class DiskAccessHealthIndicatorConfiguration
 {
     @Bean
     public AbstractHealthIndicator diskAccessHealthIndicator(
-        final StagingProperties stagingProperties)
+        final StagingProperties stagingProperties,
+        final ThreadFactory healthcheckThreadFactory)
     {
         return new DiskAccessHealthIndicatorWithTimeout(
             stagingProperties.getDiskSpaceCheckPath().toPath(),
-            stagingProperties.getHealthcheckTimeoutSeconds());
+            stagingProperties.getHealthcheckTimeoutSeconds(),
+            healthcheckThreadFactory);
     }
 }
@@ -22,6 +22,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import org.slf4j.Logger;
@@ -38,12 +39,12 @@ final class DiskAccessHealthIndicatorWithTimeout extends AbstractHealthIndicator
     private final ExecutorService healthcheckExecutor;
 
     public DiskAccessHealthIndicatorWithTimeout(
-        final Path path, final int healthcheckTimeoutSeconds)
+        final Path path, final int healthcheckTimeoutSeconds, final ThreadFactory threadFactory)
     {
         super();
         this.healthcheckFile = path.resolve("healthcheck-file.txt");
         this.healthcheckTimeoutSeconds = healthcheckTimeoutSeconds;
-        this.healthcheckExecutor = Executors.newSingleThreadExecutor();
+        this.healthcheckExecutor = Executors.newSingleThreadExecutor(threadFactory);
     }
 
     @Override
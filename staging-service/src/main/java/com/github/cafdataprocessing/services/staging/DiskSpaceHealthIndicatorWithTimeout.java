@@ -20,36 +20,57 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.actuate.health.Health;
 import org.springframework.boot.actuate.system.DiskSpaceHealthIndicator;
 import org.springframework.util.unit.DataSize;
 
+/*
+ * Space taken up by deleted and replaced batches which are still being removed in the background counts as free, so that the
+ * service is not reported as unavailable while a large batch is being reclaimed.
+ */
 final class DiskSpaceHealthIndicatorWithTimeout extends DiskSpaceHealthIndicator
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(DiskSpaceHealthIndicatorWithTimeout.class);
 
     private final File path;
+    private final DataSize threshold;
     private final int healthcheckTimeoutSeconds;
     private final ExecutorService healthcheckExecutor;
+    private final LongSupplier pendingReclaimBytes;
+
+    public DiskSpaceHealthIndicatorWithTimeout(
+        final File path, final DataSize threshold, final int healthcheckTimeoutSeconds, final ThreadFactory threadFactory)
+    {
+        this(path, threshold, healthcheckTimeoutSeconds, threadFactory, () -> 0);
+    }
 
     public DiskSpaceHealthIndicatorWithTimeout(
-        final File path, final DataSize threshold, final int healthcheckTimeoutSeconds)
+        final File path,
+        final DataSize threshold,
+        final int healthcheckTimeoutSeconds,
+        final ThreadFactory threadFactory,
+        final LongSupplier pendingReclaimBytes
+    )
     {
         super(path, threshold);
         this.path = path;
+        this.threshold = threshold;
         this.healthcheckTimeoutSeconds = healthcheckTimeoutSeconds;
-        this.healthcheckExecutor = Executors.newSingleThreadExecutor();
+        this.healthcheckExecutor = Executors.newSingleThreadExecutor(threadFactory);
+        this.pendingReclaimBytes = pendingReclaimBytes;
     }
 
     @Override
     protected void doHealthCheck(Health.Builder builder) throws Exception
     {
         final Future<Void> healthcheckFuture = healthcheckExecutor.submit(() -> {
-            DiskSpaceHealthIndicatorWithTimeout.super.doHealthCheck(builder);
+            checkDiskSpace(builder);
             return null;
         });
         try {
@@ -69,4 +90,23 @@ final class DiskSpaceHealthIndicatorWithTimeout extends DiskSpaceHealthIndicator
             LOGGER.warn("Exception thrown trying to access batches directory {} during healthcheck", path.toString(), e);
         }
     }
+
+    private void checkDiskSpace(final Health.Builder builder)
+    {
+        final long diskFreeInBytes = path.getUsableSpace();
+        final long pendingReclaimInBytes = pendingReclaimBytes.getAsLong();
+        if (diskFreeInBytes + pendingReclaimInBytes >= threshold.toBytes()) {
+            builder.up();
+        } else {
+            LOGGER.warn("Free disk space below threshold. Available: {} bytes, pending reclaim: {} bytes (threshold: {})",
+                        diskFreeInBytes, pendingReclaimInBytes, threshold);
+            builder.down();
+        }
+        builder.withDetail("total", path.getTotalSpace())
+            .withDetail("free", diskFreeInBytes)
+            .withDetail("pendingReclaim", pendingReclaimInBytes)
+            .withDetail("threshold", threshold.toBytes())
+            .withDetail("path", path.getAbsolutePath())
+            .withDetail("exists", path.exists());
+    }
 }
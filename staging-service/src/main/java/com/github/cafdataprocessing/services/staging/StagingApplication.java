@@ -15,32 +15,44 @@
  */
 package com.github.cafdataprocessing.services.staging;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.cafapi.CAFSwaggerUI;
 import com.github.cafapi.correlation.spring.CorrelationIdInterceptor;
 import com.github.cafapi.util.spring.propertysource.CafConfigEnvironmentListener;
 import com.github.cafdataprocessing.services.staging.dao.BatchDao;
 import com.github.cafdataprocessing.services.staging.dao.filesystem.FileSystemDao;
+import com.github.cafdataprocessing.services.staging.dao.filesystem.FileSystemDaoOptions;
+import com.github.cafdataprocessing.services.staging.dao.filesystem.FileWriteStrategy;
+import com.github.cafdataprocessing.services.staging.dao.filesystem.StaleBatchCleanupPolicy;
 import com.github.cafdataprocessing.services.staging.utils.ServiceIdentifier;
 import com.hpe.caf.secret.SecretUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.catalina.connector.Connector;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.tomcat.util.net.SSLHostConfig;
 import org.apache.tomcat.util.net.SSLHostConfigCertificate;
 import org.apache.tomcat.util.net.SSLHostConfigCertificate.Type;
+import org.apache.tomcat.util.threads.VirtualThreadExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.thread.Threading;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.boot.web.servlet.server.ServletWebServerFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
+import org.springframework.core.Ordered;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
 import org.springframework.http.MediaType;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.web.servlet.config.annotation.ContentNegotiationConfigurer;
@@ -93,16 +105,16 @@ public class StagingApplication implements WebMvcConfigurer
     }
 
     @Bean
-    public ServletWebServerFactory servletContainer()
+    public ServletWebServerFactory servletContainer(final Environment environment)
     {
         final TomcatServletWebServerFactory tomcat = new TomcatServletWebServerFactory();
         if (validateConnectorParameters()) {
-            tomcat.addAdditionalTomcatConnectors(createStandardConnector());
+            tomcat.addAdditionalTomcatConnectors(createStandardConnector(Threading.VIRTUAL.isActive(environment)));
         }
         return tomcat;
     }
 
-    private Connector createStandardConnector()
+    private Connector createStandardConnector(final boolean useVirtualThreads)
     {
         final Connector connector = new Connector(TomcatServletWebServerFactory.DEFAULT_PROTOCOL);
         connector.setPort(httpsPort);
@@ -110,6 +122,10 @@ public class StagingApplication implements WebMvcConfigurer
         connector.setSecure(true);
         connector.setProperty("SSLEnabled", "true");
         connector.addSslHostConfig(createSSLHostConfig());
+        if (useVirtualThreads) {
+            // Spring Boot only switches the primary connector to virtual threads, so this must be done for additional connectors
+            connector.getProtocolHandler().setExecutor(new VirtualThreadExecutor("tomcat-handler-https-"));
+        }
         return connector;
     }
 
@@ -133,15 +149,101 @@ public class StagingApplication implements WebMvcConfigurer
             && !StringUtils.isEmpty(keyStorePassword) && !StringUtils.isEmpty(keyStorePath);
     }
 
-    @Bean
+    @Bean(destroyMethod = "close")
     public BatchDao fileSystemDao(final StagingProperties stagingProperties)
     {
-        return new FileSystemDao(stagingProperties.getBasePath(),
-                                 stagingProperties.getSubbatchSize(),
-                                 stagingProperties.getStoragePath(),
-                                 stagingProperties.getFieldValueSizeThreshold(),
-                                 stagingProperties.getFileAgeThreshold(),
-                                 stagingProperties.getSkipFileCleanUp());
+        return new FileSystemDao(
+            new FileSystemDaoOptions.Builder(stagingProperties.getBasePath(), stagingProperties.getStoragePath())
+                .subbatchSize(stagingProperties.getSubbatchSize())
+                .subbatchMaxBytes(stagingProperties.getSubbatchMaxSize().toBytes())
+                .fieldValueSizeThreshold(stagingProperties.getFieldValueSizeThreshold())
+                .fileAgeThreshold(stagingProperties.getFileAgeThreshold())
+                .skipBatchFileCleanup(stagingProperties.getSkipFileCleanUp())
+                .documentProcessing(stagingProperties.getDocumentProcessingThreads(),
+                                    stagingProperties.getDocumentProcessingQueueSize())
+                .subbatchWriteStrategy(new FileWriteStrategy(stagingProperties.getWriteStrategy(),
+                                                             stagingProperties.getSubbatchWriteBufferSize(),
+                                                             0))
+                .looseFileWriteStrategy(new FileWriteStrategy(stagingProperties.getWriteStrategy(),
+                                                              stagingProperties.getLooseFileWriteBufferSize(),
+                                                              stagingProperties.getLooseFilePreallocationSize()))
+                .deduplicateLooseFiles(stagingProperties.getDeduplicateLooseFiles())
+                .compressSubbatches(stagingProperties.getCompressSubbatches())
+                .trashReaperThreads(stagingProperties.getTrashReaperThreads())
+                .batchIndexMaxAge(stagingProperties.getBatchIndexMaxAge())
+                .batchStatusCacheTtl(stagingProperties.getBatchStatusCacheTtl())
+                .batchStatusThreads(stagingProperties.getBatchStatusThreads())
+                .staleBatchCleanupPolicy(new StaleBatchCleanupPolicy(stagingProperties.getCleanUpTenantsPerRun(),
+                                                                     stagingProperties.getCleanUpShardCount(),
+                                                                     stagingProperties.getCleanUpShardIndex(),
+                                                                     stagingProperties.getCleanUpThreads(),
+                                                                     stagingProperties.getCleanUpOperationRate()))
+                .build());
+    }
+
+    @Bean(destroyMethod = "close")
+    public BatchProgressEventPublisher batchProgressEventPublisher(
+        final BatchDao batchDao,
+        final ObjectMapper objectMapper,
+        final StagingProperties stagingProperties
+    )
+    {
+        return new BatchProgressEventPublisher(batchDao, objectMapper, stagingProperties.getProgressEventInterval());
+    }
+
+    @Bean
+    public ThreadFactory healthcheckThreadFactory(final Environment environment)
+    {
+        return Threading.VIRTUAL.isActive(environment)
+            ? new VirtualThreadTaskExecutor("healthcheck-").getVirtualThreadFactory()
+            : Executors.defaultThreadFactory();
+    }
+
+    @Bean
+    public UploadAdmissionController uploadAdmissionController(final StagingProperties stagingProperties)
+    {
+        return new UploadAdmissionController(stagingProperties.getMaxConcurrentUploads(),
+                                             stagingProperties.getMaxConcurrentUploadsPerTenant(),
+                                             stagingProperties.getUploadQueueSize(),
+                                             stagingProperties.getUploadQueueTimeout());
+    }
+
+    @Bean
+    public UploadBandwidthThrottle uploadBandwidthThrottle(final StagingProperties stagingProperties)
+    {
+        return new UploadBandwidthThrottle(stagingProperties.getUploadBandwidthLimit(),
+                                           stagingProperties.getUploadBandwidthLimitPerTenant(),
+                                           stagingProperties.getUploadBandwidthLimitTenantOverrides());
+    }
+
+    @Bean
+    public FilterRegistrationBean<UploadAdmissionFilter> uploadAdmissionFilter(
+        final UploadAdmissionController uploadAdmissionController
+    )
+    {
+        final FilterRegistrationBean<UploadAdmissionFilter> registration
+            = new FilterRegistrationBean<>(new UploadAdmissionFilter(uploadAdmissionController));
+        registration.addUrlPatterns("/batches/*");
+        registration.setAsyncSupported(true);
+        // Must run before the AsyncBatchUploadFilter so that asynchronous uploads are admitted too
+        registration.setOrder(Ordered.LOWEST_PRECEDENCE - 1);
+        registration.setEnabled(uploadAdmissionController.isEnabled());
+        return registration;
+    }
+
+    @Bean
+    public FilterRegistrationBean<AsyncBatchUploadFilter> asyncBatchUploadFilter(
+        final BatchDao batchDao,
+        final UploadBandwidthThrottle uploadBandwidthThrottle,
+        final StagingProperties stagingProperties
+    )
+    {
+        final FilterRegistrationBean<AsyncBatchUploadFilter> registration
+            = new FilterRegistrationBean<>(new AsyncBatchUploadFilter(batchDao, uploadBandwidthThrottle, adminPort));
+        registration.addUrlPatterns("/batches/*");
+        registration.setAsyncSupported(true);
+        registration.setEnabled(stagingProperties.getAsyncUploads());
+        return registration;
     }
 
     @Override
@@ -15,18 +15,37 @@
  */
 package com.github.cafdataprocessing.services.staging;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.cafdataprocessing.services.staging.dao.BatchDao;
 import com.github.cafdataprocessing.services.staging.dao.filesystem.statusreporting.BatchProgressListener;
 import com.github.cafdataprocessing.services.staging.exceptions.*;
+import com.github.cafdataprocessing.services.staging.models.BatchDetails;
+import com.github.cafdataprocessing.services.staging.models.BatchIdList;
 import com.github.cafdataprocessing.services.staging.models.BatchList;
+import com.github.cafdataprocessing.services.staging.models.BatchPage;
+import com.github.cafdataprocessing.services.staging.models.BatchStatusList;
 import com.github.cafdataprocessing.services.staging.models.BatchStatusResponse;
 import com.github.cafdataprocessing.services.staging.models.StatusResponse;
+import com.github.cafdataprocessing.services.staging.models.UploadSession;
 import com.github.cafdataprocessing.services.staging.swagger.api.StagingApi;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.stream.Stream;
 import org.apache.commons.fileupload2.core.FileItemInputIterator;
+import org.apache.commons.fileupload2.core.RequestContext;
 import org.apache.commons.fileupload2.jakarta.servlet5.JakartaServletFileUpload;
+import org.apache.commons.fileupload2.jakarta.servlet5.JakartaServletRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -37,6 +56,8 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
 
 @RestController
 @DependsOn({"basePathCreator"})
@@ -44,29 +65,53 @@ public class StagingController implements StagingApi
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(StagingController.class);
 
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
     private final BatchDao batchDao;
 
     private final HttpServletRequest request;
 
+    private final UploadBandwidthThrottle uploadBandwidthThrottle;
+
+    private final BatchProgressEventPublisher batchProgressEventPublisher;
+
     private final DiskSpaceHealthIndicatorWithTimeout diskSpaceHealthIndicatorWithTimeout;
 
     private final DiskAccessHealthIndicatorWithTimeout diskAccessHealthIndicatorWithTimeout;
 
-    @Autowired
     public StagingController(
         final BatchDao fileSystemDao,
         final HttpServletRequest request,
         final StagingProperties stagingProperties)
+    {
+        this(fileSystemDao, request, stagingProperties, Executors.defaultThreadFactory(), new UploadBandwidthThrottle(0, 0, null),
+             new BatchProgressEventPublisher(fileSystemDao, new ObjectMapper().findAndRegisterModules(),
+                                             stagingProperties.getProgressEventInterval()));
+    }
+
+    @Autowired
+    public StagingController(
+        final BatchDao fileSystemDao,
+        final HttpServletRequest request,
+        final StagingProperties stagingProperties,
+        final ThreadFactory healthcheckThreadFactory,
+        final UploadBandwidthThrottle uploadBandwidthThrottle,
+        final BatchProgressEventPublisher batchProgressEventPublisher)
     {
         this.batchDao = fileSystemDao;
         this.request = request;
+        this.uploadBandwidthThrottle = uploadBandwidthThrottle;
+        this.batchProgressEventPublisher = batchProgressEventPublisher;
         this.diskSpaceHealthIndicatorWithTimeout = new DiskSpaceHealthIndicatorWithTimeout(
             stagingProperties.getDiskSpaceCheckPath(),
             stagingProperties.getDiskSpaceCheckThreshold(),
-            stagingProperties.getHealthcheckTimeoutSeconds());
+            stagingProperties.getHealthcheckTimeoutSeconds(),
+            healthcheckThreadFactory,
+            fileSystemDao::getPendingReclaimBytes);
         this.diskAccessHealthIndicatorWithTimeout = new DiskAccessHealthIndicatorWithTimeout(
             stagingProperties.getDiskSpaceCheckPath().toPath(),
-            stagingProperties.getHealthcheckTimeoutSeconds());
+            stagingProperties.getHealthcheckTimeoutSeconds(),
+            healthcheckThreadFactory);
     }
 
     @Override
@@ -85,30 +130,181 @@ public class StagingController implements StagingApi
             throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
         }
 
-        try (final BatchProgressListener batchProgressListener = new BatchProgressListener(tenantId, batchIdObj)) {
-            final JakartaServletFileUpload fileUpload = new JakartaServletFileUpload();
-            fileUpload.setProgressListener(batchProgressListener);
-            final FileItemInputIterator fileItemIterator;
+        try (final UploadBandwidthThrottle.Lease throttle = uploadBandwidthThrottle.register(tenantId);
+             final BatchProgressListener batchProgressListener
+                 = new BatchProgressListener(tenantId, batchIdObj, throttle::getRateLimit)) {
+            final FileItemInputIterator fileItemIterator = getItemIterator(batchProgressListener, throttle);
             try {
-                fileItemIterator = fileUpload.getItemIterator(request);
-            } catch (final IOException ex) {
-                LOGGER.error("Error getting FileItemIterator", ex);
+                batchDao.saveFiles(tenantId, batchIdObj, fileItemIterator, batchProgressListener.getProgress());
+                LOGGER.debug("Staged batch: {}", batchId);
+                return new ResponseEntity<>(HttpStatus.OK);
+            } catch (final IncompleteBatchException | InvalidBatchException ex) {
+                LOGGER.warn("Error getting multipart files: {}", ex.getMessage());
                 throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+
+            } catch (final StagingException ex) {
+                throw new WebMvcHandledRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR, ex.getMessage());
             }
+        }
+    }
+
+    @Override
+    public ResponseEntity<UploadSession> openUploadSession(final String X_TENANT_ID, final String batchId)
+    {
+        try {
+            final UploadSession uploadSession = batchDao.openUploadSession(new TenantId(X_TENANT_ID), new BatchId(batchId));
+            return ResponseEntity.status(HttpStatus.CREATED).contentType(MediaType.APPLICATION_JSON).body(uploadSession);
+        } catch (final InvalidTenantIdException ex) {
+            LOGGER.warn("Invalid X-TENANT-ID {}", X_TENANT_ID);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        } catch (final InvalidBatchIdException ex) {
+            LOGGER.warn("Invalid batchId {}", batchId);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        } catch (final StagingException ex) {
+            LOGGER.error("Error opening upload session", ex);
+            throw new WebMvcHandledRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR, ex.getMessage());
+        }
+    }
+
+    @Override
+    public ResponseEntity<UploadSession> getUploadSession(final String X_TENANT_ID, final String batchId, final String uploadId)
+    {
+        try {
+            final UploadSession uploadSession
+                = batchDao.getUploadSession(new TenantId(X_TENANT_ID), new BatchId(batchId), uploadId);
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(uploadSession);
+        } catch (final InvalidTenantIdException ex) {
+            LOGGER.warn("Invalid X-TENANT-ID {}", X_TENANT_ID);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        } catch (final InvalidBatchIdException ex) {
+            LOGGER.warn("Invalid batchId {}", batchId);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        } catch (final UploadSessionNotFoundException ex) {
+            LOGGER.warn("Upload session {} not found", uploadId);
+            throw new WebMvcHandledRuntimeException(HttpStatus.NOT_FOUND, ex.getMessage());
+        } catch (final StagingException ex) {
+            LOGGER.error("Error getting upload session", ex);
+            throw new WebMvcHandledRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR, ex.getMessage());
+        }
+    }
+
+    @Override
+    public ResponseEntity<Void> uploadChunk(
+        final String X_TENANT_ID,
+        final String batchId,
+        final String uploadId,
+        final Integer chunkNumber
+    )
+    {
+        final TenantId tenantId;
+        final BatchId batchIdObj;
+        try {
+            tenantId = new TenantId(X_TENANT_ID);
+            batchIdObj = new BatchId(batchId);
+        } catch (final InvalidTenantIdException ex) {
+            LOGGER.warn("Invalid X-TENANT-ID {}", X_TENANT_ID);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        } catch (final InvalidBatchIdException ex) {
+            LOGGER.warn("Invalid batchId {}", batchId);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        }
+
+        try (final UploadBandwidthThrottle.Lease throttle = uploadBandwidthThrottle.register(tenantId);
+             final BatchProgressListener batchProgressListener
+                 = new BatchProgressListener(tenantId, batchIdObj, throttle::getRateLimit)) {
+            final FileItemInputIterator fileItemIterator = getItemIterator(batchProgressListener, throttle);
             try {
-                batchDao.saveFiles(tenantId, batchIdObj, fileItemIterator);
-                LOGGER.debug("Staged batch: {}", batchId);
+                batchDao.saveChunk(tenantId, batchIdObj, uploadId, chunkNumber, fileItemIterator,
+                                  batchProgressListener.getProgress());
+                LOGGER.debug("Staged chunk {} of upload session {}", chunkNumber, uploadId);
                 return new ResponseEntity<>(HttpStatus.OK);
+            } catch (final UploadSessionNotFoundException ex) {
+                LOGGER.warn("Upload session {} not found", uploadId);
+                throw new WebMvcHandledRuntimeException(HttpStatus.NOT_FOUND, ex.getMessage());
+            } catch (final UploadSessionConflictException ex) {
+                LOGGER.warn("Chunk {} of upload session {} not accepted: {}", chunkNumber, uploadId, ex.getMessage());
+                throw new WebMvcHandledRuntimeException(HttpStatus.CONFLICT, ex.getMessage());
             } catch (final IncompleteBatchException | InvalidBatchException ex) {
                 LOGGER.warn("Error getting multipart files: {}", ex.getMessage());
                 throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
-
             } catch (final StagingException ex) {
                 throw new WebMvcHandledRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR, ex.getMessage());
             }
         }
     }
 
+    @Override
+    public ResponseEntity<Void> commitUploadSession(final String X_TENANT_ID, final String batchId, final String uploadId)
+    {
+        try {
+            batchDao.commitUploadSession(new TenantId(X_TENANT_ID), new BatchId(batchId), uploadId);
+            LOGGER.debug("Staged batch: {}", batchId);
+            return new ResponseEntity<>(HttpStatus.OK);
+        } catch (final InvalidTenantIdException ex) {
+            LOGGER.warn("Invalid X-TENANT-ID {}", X_TENANT_ID);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        } catch (final InvalidBatchIdException ex) {
+            LOGGER.warn("Invalid batchId {}", batchId);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        } catch (final UploadSessionNotFoundException ex) {
+            LOGGER.warn("Upload session {} not found", uploadId);
+            throw new WebMvcHandledRuntimeException(HttpStatus.NOT_FOUND, ex.getMessage());
+        } catch (final UploadSessionConflictException ex) {
+            LOGGER.warn("Upload session {} not committed: {}", uploadId, ex.getMessage());
+            throw new WebMvcHandledRuntimeException(HttpStatus.CONFLICT, ex.getMessage());
+        } catch (final StagingException ex) {
+            LOGGER.error("Error committing upload session", ex);
+            throw new WebMvcHandledRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR, ex.getMessage());
+        }
+    }
+
+    @Override
+    public ResponseEntity<Void> abandonUploadSession(final String X_TENANT_ID, final String batchId, final String uploadId)
+    {
+        try {
+            batchDao.abandonUploadSession(new TenantId(X_TENANT_ID), new BatchId(batchId), uploadId);
+            return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+        } catch (final InvalidTenantIdException ex) {
+            LOGGER.warn("Invalid X-TENANT-ID {}", X_TENANT_ID);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        } catch (final InvalidBatchIdException ex) {
+            LOGGER.warn("Invalid batchId {}", batchId);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        } catch (final UploadSessionNotFoundException ex) {
+            LOGGER.warn("Upload session {} not found", uploadId);
+            throw new WebMvcHandledRuntimeException(HttpStatus.NOT_FOUND, ex.getMessage());
+        } catch (final UploadSessionConflictException ex) {
+            LOGGER.warn("Upload session {} not abandoned: {}", uploadId, ex.getMessage());
+            throw new WebMvcHandledRuntimeException(HttpStatus.CONFLICT, ex.getMessage());
+        } catch (final StagingException ex) {
+            LOGGER.error("Error abandoning upload session", ex);
+            throw new WebMvcHandledRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR, ex.getMessage());
+        }
+    }
+
+    private FileItemInputIterator getItemIterator(
+        final BatchProgressListener batchProgressListener,
+        final UploadBandwidthThrottle.Lease throttle
+    )
+    {
+        final JakartaServletFileUpload fileUpload = new JakartaServletFileUpload();
+        fileUpload.setProgressListener(batchProgressListener);
+        final RequestContext requestContext = new JakartaServletRequestContext(request)
+        {
+            @Override
+            public InputStream getInputStream() throws IOException
+            {
+                return throttle.wrap(super.getInputStream());
+            }
+        };
+        try {
+            return fileUpload.getItemIterator(requestContext);
+        } catch (final IOException ex) {
+            LOGGER.error("Error getting FileItemIterator", ex);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        }
+    }
+
     @Override
     public ResponseEntity<Void> deleteBatch(final String X_TENANT_ID, final String batchId)
     {
@@ -131,6 +327,68 @@ public class StagingController implements StagingApi
         }
     }
 
+    @Override
+    public ResponseEntity<BatchDetails> getBatchDetails(final String X_TENANT_ID, final String batchId)
+    {
+        try {
+            final BatchDetails batchDetails = batchDao.getBatchDetails(new TenantId(X_TENANT_ID), new BatchId(batchId));
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(batchDetails);
+        } catch (final InvalidTenantIdException ex) {
+            LOGGER.warn("Invalid X-TENANT-ID {}", X_TENANT_ID);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        } catch (final InvalidBatchIdException ex) {
+            LOGGER.warn("Invalid Batch Id {}", batchId);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        } catch (final BatchNotFoundException ex) {
+            LOGGER.warn("Batch {} not found", batchId);
+            throw new WebMvcHandledRuntimeException(HttpStatus.NOT_FOUND, ex.getMessage());
+        } catch (final StagingException ex) {
+            LOGGER.error("Internal server error", ex);
+            throw new WebMvcHandledRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR, ex.getMessage());
+        }
+    }
+
+    @Override
+    public ResponseEntity<String> getBatchProgress(final String X_TENANT_ID, final String batchId)
+    {
+        final TenantId tenantId;
+        final BatchId batchIdObj;
+        try {
+            tenantId = new TenantId(X_TENANT_ID);
+            batchIdObj = new BatchId(batchId);
+        } catch (final InvalidTenantIdException ex) {
+            LOGGER.warn("Invalid X-TENANT-ID {}", X_TENANT_ID);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        } catch (final InvalidBatchIdException ex) {
+            LOGGER.warn("Invalid Batch Id {}", batchId);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        }
+
+        final BatchStatusResponse statusResponse;
+        try {
+            statusResponse = batchDao.getBatchStatus(tenantId, batchIdObj);
+        } catch (final BatchNotFoundException ex) {
+            LOGGER.warn("Batch {} not found", batchId);
+            throw new WebMvcHandledRuntimeException(HttpStatus.NOT_FOUND, ex.getMessage());
+        } catch (final StagingException ex) {
+            LOGGER.error("Internal server error", ex);
+            throw new WebMvcHandledRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR, ex.getMessage());
+        } catch (final InterruptedException ex) {
+            LOGGER.error("Service Unavailable", ex);
+            throw new WebMvcHandledRuntimeException(HttpStatus.SERVICE_UNAVAILABLE, ex.getMessage());
+        }
+
+        // The events are written directly to the response, which is completed by the publisher once the stream ends
+        final HttpServletResponse response
+            = ((ServletRequestAttributes) RequestContextHolder.currentRequestAttributes()).getResponse();
+        try {
+            batchProgressEventPublisher.publish(request, response, tenantId, batchIdObj, statusResponse);
+        } catch (final IOException ex) {
+            LOGGER.warn("Unable to stream the progress of batch {}: {}", batchId, ex.getMessage());
+        }
+        return null;
+    }
+
     @Override
     public ResponseEntity<BatchStatusResponse> getBatchStatus(final String X_TENANT_ID, final String batchId)
     {
@@ -155,6 +413,37 @@ public class StagingController implements StagingApi
         }
     }
 
+    @Override
+    public ResponseEntity<BatchStatusList> getBatchStatuses(final String X_TENANT_ID, final BatchIdList batchIdList)
+    {
+        final TenantId tenantId;
+        final List<BatchId> batchIds = new ArrayList<>(batchIdList.getBatchIds().size());
+        try {
+            tenantId = new TenantId(X_TENANT_ID);
+            for (final String batchId : batchIdList.getBatchIds()) {
+                batchIds.add(new BatchId(batchId));
+            }
+        } catch (final InvalidTenantIdException ex) {
+            LOGGER.warn("Invalid X-TENANT-ID {}", X_TENANT_ID);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        } catch (final InvalidBatchIdException ex) {
+            LOGGER.warn("Invalid Batch Id: {}", ex.getMessage());
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        }
+
+        try {
+            final BatchStatusList batchStatusList = new BatchStatusList();
+            batchStatusList.setEntries(batchDao.getBatchStatuses(tenantId, batchIds));
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(batchStatusList);
+        } catch (final StagingException ex) {
+            LOGGER.error("Internal server error", ex);
+            throw new WebMvcHandledRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR, ex.getMessage());
+        } catch (final InterruptedException ex) {
+            LOGGER.error("Service Unavailable", ex);
+            throw new WebMvcHandledRuntimeException(HttpStatus.SERVICE_UNAVAILABLE, ex.getMessage());
+        }
+    }
+
     @Override
     public ResponseEntity<BatchList> getBatches(
         final String X_TENANT_ID,
@@ -188,6 +477,75 @@ public class StagingController implements StagingApi
         }
     }
 
+    /**
+     * Writes the page of batches to the response as they are read, rather than building the page in memory first. The cursor
+     * holds the last batch on the page. With the batch index, the next page starts from it without the earlier batches being
+     * read again; without it, each page is a single pass over the completed folder which only keeps the batches on the page.
+     */
+    @Override
+    public ResponseEntity<BatchPage> listBatches(
+        final String X_TENANT_ID,
+        final String startsWith,
+        final String cursor,
+        final Integer limit
+    )
+    {
+        LOGGER.debug("Listing batches starting with : {} from cursor : {}", startsWith, cursor);
+        final TenantId tenantId;
+        final BatchId after;
+        try {
+            tenantId = new TenantId(X_TENANT_ID);
+            after = cursor == null ? null : new BatchId(decodeCursor(cursor));
+        } catch (final InvalidTenantIdException ex) {
+            LOGGER.warn("Invalid X-TENANT-ID {}", X_TENANT_ID);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        } catch (final InvalidBatchIdException | IllegalArgumentException ex) {
+            LOGGER.warn("Invalid cursor {}", cursor);
+            throw new WebMvcHandledRuntimeException(HttpStatus.BAD_REQUEST, "Invalid cursor: " + cursor);
+        }
+
+        final HttpServletResponse response
+            = ((ServletRequestAttributes) RequestContextHolder.currentRequestAttributes()).getResponse();
+        // One more batch than the page is read, to find out whether there is a next page
+        try (final Stream<String> batches = batchDao.streamBatches(tenantId, startsWith, after, limit + 1)) {
+            final Iterator<String> iterator = batches.iterator();
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            try (final JsonGenerator generator = JSON_FACTORY.createGenerator(response.getOutputStream())) {
+                generator.writeStartObject();
+                generator.writeArrayFieldStart("entries");
+                String lastBatch = null;
+                for (int count = 0; count < limit && iterator.hasNext(); count++) {
+                    lastBatch = iterator.next();
+                    generator.writeString(lastBatch);
+                }
+                generator.writeEndArray();
+                if (lastBatch != null && iterator.hasNext()) {
+                    generator.writeStringField("nextCursor", encodeCursor(lastBatch));
+                }
+                generator.writeEndObject();
+            }
+        } catch (final StagingException ex) {
+            LOGGER.error("Error in listBatches ", ex);
+            throw new WebMvcHandledRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR, ex.getMessage());
+        } catch (final IOException ex) {
+            LOGGER.warn("Error writing batch listing: {}", ex.getMessage());
+            throw new WebMvcHandledRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR, ex.getMessage());
+        }
+        // The response has been written
+        return null;
+    }
+
+    private static String encodeCursor(final String batchId)
+    {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(batchId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeCursor(final String cursor)
+    {
+        return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    }
+
     @Override
     public ResponseEntity<StatusResponse> getStatus(final String X_TENANT_ID)
     {
@@ -15,6 +15,7 @@
  */
 package com.github.cafdataprocessing.services.staging;
 
+import com.github.cafdataprocessing.services.staging.dao.filesystem.FileWriteStrategy;
 import java.io.File;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
@@ -34,6 +35,41 @@ public class StagingProperties
     private int healthcheckTimeoutSeconds;
     private File diskSpaceCheckPath;
     private DataSize diskSpaceCheckThreshold;
+    private int documentProcessingThreads;
+    private int documentProcessingQueueSize;
+    private boolean asyncUploads;
+    private FileWriteStrategy.Mode writeStrategy;
+    private int subbatchWriteBufferSize;
+    private int looseFileWriteBufferSize;
+    private long looseFilePreallocationSize;
+    private boolean deduplicateLooseFiles;
+    private boolean compressSubbatches;
+    private int maxConcurrentUploads;
+    private int maxConcurrentUploadsPerTenant;
+    private int uploadQueueSize;
+    private long uploadQueueTimeout;
+    private long uploadBandwidthLimit;
+    private long uploadBandwidthLimitPerTenant;
+    private String uploadBandwidthLimitTenantOverrides;
+    private DataSize subbatchMaxSize;
+    private int trashReaperThreads;
+    private long batchIndexMaxAge;
+
+    private long batchStatusCacheTtl;
+
+    private long progressEventInterval;
+
+    private int batchStatusThreads;
+
+    private int cleanUpTenantsPerRun;
+
+    private int cleanUpShardCount;
+
+    private int cleanUpShardIndex;
+
+    private int cleanUpThreads;
+
+    private int cleanUpOperationRate;
 
     public String getBasePath()
     {
@@ -134,4 +170,274 @@ public class StagingProperties
     {
         this.diskSpaceCheckThreshold = diskSpaceCheckThreshold;
     }
+
+    public int getDocumentProcessingThreads()
+    {
+        return documentProcessingThreads;
+    }
+
+    public void setDocumentProcessingThreads(final int documentProcessingThreads)
+    {
+        this.documentProcessingThreads = documentProcessingThreads;
+    }
+
+    public int getDocumentProcessingQueueSize()
+    {
+        return documentProcessingQueueSize;
+    }
+
+    public void setDocumentProcessingQueueSize(final int documentProcessingQueueSize)
+    {
+        this.documentProcessingQueueSize = documentProcessingQueueSize;
+    }
+
+    public boolean getAsyncUploads()
+    {
+        return asyncUploads;
+    }
+
+    public void setAsyncUploads(final boolean asyncUploads)
+    {
+        this.asyncUploads = asyncUploads;
+    }
+
+    public FileWriteStrategy.Mode getWriteStrategy()
+    {
+        return writeStrategy;
+    }
+
+    public void setWriteStrategy(final FileWriteStrategy.Mode writeStrategy)
+    {
+        this.writeStrategy = writeStrategy;
+    }
+
+    public int getSubbatchWriteBufferSize()
+    {
+        return subbatchWriteBufferSize;
+    }
+
+    public void setSubbatchWriteBufferSize(final int subbatchWriteBufferSize)
+    {
+        this.subbatchWriteBufferSize = subbatchWriteBufferSize;
+    }
+
+    public int getLooseFileWriteBufferSize()
+    {
+        return looseFileWriteBufferSize;
+    }
+
+    public void setLooseFileWriteBufferSize(final int looseFileWriteBufferSize)
+    {
+        this.looseFileWriteBufferSize = looseFileWriteBufferSize;
+    }
+
+    public long getLooseFilePreallocationSize()
+    {
+        return looseFilePreallocationSize;
+    }
+
+    public void setLooseFilePreallocationSize(final long looseFilePreallocationSize)
+    {
+        this.looseFilePreallocationSize = looseFilePreallocationSize;
+    }
+
+    public boolean getDeduplicateLooseFiles()
+    {
+        return deduplicateLooseFiles;
+    }
+
+    public void setDeduplicateLooseFiles(final boolean deduplicateLooseFiles)
+    {
+        this.deduplicateLooseFiles = deduplicateLooseFiles;
+    }
+
+    public boolean getCompressSubbatches()
+    {
+        return compressSubbatches;
+    }
+
+    public void setCompressSubbatches(final boolean compressSubbatches)
+    {
+        this.compressSubbatches = compressSubbatches;
+    }
+
+    public int getMaxConcurrentUploads()
+    {
+        return maxConcurrentUploads;
+    }
+
+    public void setMaxConcurrentUploads(final int maxConcurrentUploads)
+    {
+        this.maxConcurrentUploads = maxConcurrentUploads;
+    }
+
+    public int getMaxConcurrentUploadsPerTenant()
+    {
+        return maxConcurrentUploadsPerTenant;
+    }
+
+    public void setMaxConcurrentUploadsPerTenant(final int maxConcurrentUploadsPerTenant)
+    {
+        this.maxConcurrentUploadsPerTenant = maxConcurrentUploadsPerTenant;
+    }
+
+    public int getUploadQueueSize()
+    {
+        return uploadQueueSize;
+    }
+
+    public void setUploadQueueSize(final int uploadQueueSize)
+    {
+        this.uploadQueueSize = uploadQueueSize;
+    }
+
+    public long getUploadQueueTimeout()
+    {
+        return uploadQueueTimeout;
+    }
+
+    public void setUploadQueueTimeout(final long uploadQueueTimeout)
+    {
+        this.uploadQueueTimeout = uploadQueueTimeout;
+    }
+
+    public long getUploadBandwidthLimit()
+    {
+        return uploadBandwidthLimit;
+    }
+
+    public void setUploadBandwidthLimit(final long uploadBandwidthLimit)
+    {
+        this.uploadBandwidthLimit = uploadBandwidthLimit;
+    }
+
+    public long getUploadBandwidthLimitPerTenant()
+    {
+        return uploadBandwidthLimitPerTenant;
+    }
+
+    public void setUploadBandwidthLimitPerTenant(final long uploadBandwidthLimitPerTenant)
+    {
+        this.uploadBandwidthLimitPerTenant = uploadBandwidthLimitPerTenant;
+    }
+
+    public String getUploadBandwidthLimitTenantOverrides()
+    {
+        return uploadBandwidthLimitTenantOverrides;
+    }
+
+    public void setUploadBandwidthLimitTenantOverrides(final String uploadBandwidthLimitTenantOverrides)
+    {
+        this.uploadBandwidthLimitTenantOverrides = uploadBandwidthLimitTenantOverrides;
+    }
+
+    public DataSize getSubbatchMaxSize()
+    {
+        return subbatchMaxSize;
+    }
+
+    public void setSubbatchMaxSize(final DataSize subbatchMaxSize)
+    {
+        this.subbatchMaxSize = subbatchMaxSize;
+    }
+
+    public int getTrashReaperThreads()
+    {
+        return trashReaperThreads;
+    }
+
+    public void setTrashReaperThreads(final int trashReaperThreads)
+    {
+        this.trashReaperThreads = trashReaperThreads;
+    }
+
+    public long getBatchIndexMaxAge()
+    {
+        return batchIndexMaxAge;
+    }
+
+    public void setBatchIndexMaxAge(final long batchIndexMaxAge)
+    {
+        this.batchIndexMaxAge = batchIndexMaxAge;
+    }
+
+    public long getBatchStatusCacheTtl()
+    {
+        return batchStatusCacheTtl;
+    }
+
+    public void setBatchStatusCacheTtl(final long batchStatusCacheTtl)
+    {
+        this.batchStatusCacheTtl = batchStatusCacheTtl;
+    }
+
+    public long getProgressEventInterval()
+    {
+        return progressEventInterval;
+    }
+
+    public void setProgressEventInterval(final long progressEventInterval)
+    {
+        this.progressEventInterval = progressEventInterval;
+    }
+
+    public int getBatchStatusThreads()
+    {
+        return batchStatusThreads;
+    }
+
+    public void setBatchStatusThreads(final int batchStatusThreads)
+    {
+        this.batchStatusThreads = batchStatusThreads;
+    }
+
+    public int getCleanUpTenantsPerRun()
+    {
+        return cleanUpTenantsPerRun;
+    }
+
+    public void setCleanUpTenantsPerRun(final int cleanUpTenantsPerRun)
+    {
+        this.cleanUpTenantsPerRun = cleanUpTenantsPerRun;
+    }
+
+    public int getCleanUpShardCount()
+    {
+        return cleanUpShardCount;
+    }
+
+    public void setCleanUpShardCount(final int cleanUpShardCount)
+    {
+        this.cleanUpShardCount = cleanUpShardCount;
+    }
+
+    public int getCleanUpShardIndex()
+    {
+        return cleanUpShardIndex;
+    }
+
+    public void setCleanUpShardIndex(final int cleanUpShardIndex)
+    {
+        this.cleanUpShardIndex = cleanUpShardIndex;
+    }
+
+    public int getCleanUpThreads()
+    {
+        return cleanUpThreads;
+    }
+
+    public void setCleanUpThreads(final int cleanUpThreads)
+    {
+        this.cleanUpThreads = cleanUpThreads;
+    }
+
+    public int getCleanUpOperationRate()
+    {
+        return cleanUpOperationRate;
+    }
+
+    public void setCleanUpOperationRate(final int cleanUpOperationRate)
+    {
+        this.cleanUpOperationRate = cleanUpOperationRate;
+    }
 }
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * This class limits the number of batch uploads which are read at the same time, both in total and for each tenant, so that a
+ * single tenant cannot use all of the disk bandwidth and request threads.
+ * An upload which cannot start straight away waits in a bounded queue until a running upload finishes. If the queue is full, or
+ * the upload is still waiting when the queue timeout expires, it is rejected with a suggested time to wait before trying again.
+ * The suggestion is based on how often uploads have been finishing recently, and on how many uploads are waiting ahead of it.
+ * The counts of running and waiting uploads are dropped as soon as a tenant has none, but the history of when its uploads finished
+ * is kept separately, for the tenants which have uploaded most recently, so that the suggestion for a tenant whose uploads run one
+ * at a time is still based on how often they finish.
+ * The lock is a ReentrantLock rather than a monitor so that waiting virtual threads do not pin their carrier threads.
+ */
+public final class UploadAdmissionController implements MeterBinder
+{
+    private static final long MIN_RETRY_AFTER_SECONDS = 1;
+    private static final long MAX_RETRY_AFTER_SECONDS = 3600;
+    private static final int MAX_TENANT_FINISH_HISTORIES = 10000;
+
+    private final int maxConcurrentUploads;
+    private final int maxConcurrentUploadsPerTenant;
+    private final int queueSize;
+    private final long queueTimeoutNanos;
+
+    private final ReentrantLock lock;
+    private final Condition uploadFinished;
+    private final Map<String, Usage> tenantUsage;
+    private final Map<String, FinishHistory> tenantFinishHistory;
+    private final Usage totalUsage;
+    private final FinishHistory totalFinishHistory;
+
+    private Counter rejectedQueueFull;
+    private Counter rejectedQueueTimeout;
+
+    /**
+     * @param maxConcurrentUploads The maximum number of uploads which are read at the same time, or 0 for no limit
+     * @param maxConcurrentUploadsPerTenant The maximum number of uploads for a single tenant which are read at the same time, or 0
+     * for no limit
+     * @param queueSize The maximum number of uploads which may wait for others to finish
+     * @param queueTimeout The number of milliseconds an upload may wait before it is rejected
+     */
+    public UploadAdmissionController(
+        final int maxConcurrentUploads,
+        final int maxConcurrentUploadsPerTenant,
+        final int queueSize,
+        final long queueTimeout
+    )
+    {
+        this.maxConcurrentUploads = maxConcurrentUploads;
+        this.maxConcurrentUploadsPerTenant = maxConcurrentUploadsPerTenant;
+        this.queueSize = queueSize;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+        this.lock = new ReentrantLock();
+        this.uploadFinished = lock.newCondition();
+        this.tenantUsage = new HashMap<>();
+        this.tenantFinishHistory = new LinkedHashMap<>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, FinishHistory> eldest)
+            {
+                return size() > MAX_TENANT_FINISH_HISTORIES;
+            }
+        };
+        this.totalUsage = new Usage();
+        this.totalFinishHistory = new FinishHistory();
+    }
+
+    public boolean isEnabled()
+    {
+        return maxConcurrentUploads > 0 || maxConcurrentUploadsPerTenant > 0;
+    }
+
+    /**
+     * Waits until the tenant may start another upload.
+     *
+     * @param tenantId the tenant making the upload
+     * @return the permit to read the upload, which must be closed once the upload has finished
+     * @throws UploadRejectedException if the upload cannot be started at the moment
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public Permit admit(final TenantId tenantId) throws UploadRejectedException, InterruptedException
+    {
+        lock.lock();
+        try {
+            final Usage usage = tenantUsage.computeIfAbsent(tenantId.getValue(), t -> new Usage());
+            if (!canStart(usage) && totalUsage.waiting >= queueSize) {
+                removeIfUnused(tenantId.getValue(), usage);
+                countRejection(rejectedQueueFull);
+                throw new UploadRejectedException("Too many uploads are waiting to start",
+                                                  getRetryAfterSeconds(totalUsage, totalFinishHistory));
+            }
+            usage.waiting++;
+            totalUsage.waiting++;
+            boolean admitted = false;
+            try {
+                long remainingNanos = queueTimeoutNanos;
+                while (!canStart(usage)) {
+                    if (remainingNanos <= 0) {
+                        countRejection(rejectedQueueTimeout);
+                        throw new UploadRejectedException(
+                            "Timed out waiting for other uploads to finish",
+                            isTenantLimitReached(usage)
+                                ? getRetryAfterSeconds(usage, tenantFinishHistory.get(tenantId.getValue()))
+                                : getRetryAfterSeconds(totalUsage, totalFinishHistory));
+                    }
+                    remainingNanos = uploadFinished.awaitNanos(remainingNanos);
+                }
+                admitted = true;
+            } finally {
+                usage.waiting--;
+                totalUsage.waiting--;
+                if (!admitted) {
+                    removeIfUnused(tenantId.getValue(), usage);
+                }
+            }
+            usage.running++;
+            totalUsage.running++;
+            return new Permit(tenantId.getValue(), usage);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry)
+    {
+        Gauge.builder("staging.uploads.running", this, controller -> controller.getCount(false))
+            .description("The number of batch uploads which are being read")
+            .register(registry);
+        Gauge.builder("staging.uploads.queued", this, controller -> controller.getCount(true))
+            .description("The number of batch uploads which are waiting for other uploads to finish")
+            .register(registry);
+        rejectedQueueFull = Counter.builder("staging.uploads.rejected")
+            .description("The number of batch uploads which were rejected as too many uploads were in progress")
+            .tag("reason", "queue_full")
+            .register(registry);
+        rejectedQueueTimeout = Counter.builder("staging.uploads.rejected")
+            .description("The number of batch uploads which were rejected as too many uploads were in progress")
+            .tag("reason", "queue_timeout")
+            .register(registry);
+    }
+
+    private boolean canStart(final Usage usage)
+    {
+        return !isTenantLimitReached(usage) && (maxConcurrentUploads <= 0 || totalUsage.running < maxConcurrentUploads);
+    }
+
+    private boolean isTenantLimitReached(final Usage usage)
+    {
+        return maxConcurrentUploadsPerTenant > 0 && usage.running >= maxConcurrentUploadsPerTenant;
+    }
+
+    private void release(final String tenantId, final Usage usage)
+    {
+        lock.lock();
+        try {
+            final long now = System.nanoTime();
+            usage.running--;
+            tenantFinishHistory.computeIfAbsent(tenantId, t -> new FinishHistory()).recordFinish(now);
+            totalUsage.running--;
+            totalFinishHistory.recordFinish(now);
+            removeIfUnused(tenantId, usage);
+            uploadFinished.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeIfUnused(final String tenantId, final Usage usage)
+    {
+        if (usage.running == 0 && usage.waiting == 0) {
+            tenantUsage.remove(tenantId);
+        }
+    }
+
+    /**
+     * Estimates how long it will be before an upload could start, from the average time between uploads finishing and the number
+     * of uploads which are already waiting.
+     */
+    private long getRetryAfterSeconds(final Usage usage, final FinishHistory finishHistory)
+    {
+        if (finishHistory == null || finishHistory.averageFinishIntervalNanos == 0) {
+            return Math.max(MIN_RETRY_AFTER_SECONDS, TimeUnit.NANOSECONDS.toSeconds(queueTimeoutNanos));
+        }
+        final double estimateNanos = finishHistory.averageFinishIntervalNanos * (usage.waiting + 1);
+        final long estimateSeconds = (long) Math.ceil(estimateNanos / TimeUnit.SECONDS.toNanos(1));
+        return Math.min(MAX_RETRY_AFTER_SECONDS, Math.max(MIN_RETRY_AFTER_SECONDS, estimateSeconds));
+    }
+
+    private int getCount(final boolean waiting)
+    {
+        lock.lock();
+        try {
+            return waiting ? totalUsage.waiting : totalUsage.running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void countRejection(final Counter counter)
+    {
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+
+    private static final class Usage
+    {
+        private int running;
+        private int waiting;
+    }
+
+    private static final class FinishHistory
+    {
+        // Weight given to the latest interval in the moving average of the time between uploads finishing
+        private static final double SMOOTHING = 0.2;
+
+        private long lastFinishNanos;
+        private double averageFinishIntervalNanos;
+
+        public void recordFinish(final long now)
+        {
+            if (lastFinishNanos != 0) {
+                final long interval = now - lastFinishNanos;
+                averageFinishIntervalNanos = averageFinishIntervalNanos == 0
+                    ? interval
+                    : SMOOTHING * interval + (1 - SMOOTHING) * averageFinishIntervalNanos;
+            }
+            lastFinishNanos = now;
+        }
+    }
+
+    public final class Permit implements AutoCloseable
+    {
+        private final String tenantId;
+        private final Usage usage;
+        private final AtomicBoolean released;
+
+        private Permit(final String tenantId, final Usage usage)
+        {
+            this.tenantId = tenantId;
+            this.usage = usage;
+            this.released = new AtomicBoolean();
+        }
+
+        @Override
+        public void close()
+        {
+            if (released.compareAndSet(false, true)) {
+                release(tenantId, usage);
+            }
+        }
+    }
+
+    public static final class UploadRejectedException extends Exception
+    {
+        private final long retryAfterSeconds;
+
+        public UploadRejectedException(final String message, final long retryAfterSeconds)
+        {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public long getRetryAfterSeconds()
+        {
+            return retryAfterSeconds;
+        }
+    }
+}
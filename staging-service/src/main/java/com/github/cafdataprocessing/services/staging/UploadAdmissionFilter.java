@@ -0,0 +1,151 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging;
+
+import com.github.cafdataprocessing.services.staging.exceptions.InvalidTenantIdException;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpFilter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+
+/*
+ * This filter passes batch uploads, including the chunks of upload sessions, through the UploadAdmissionController before they
+ * are read.
+ * It runs ahead of the AsyncBatchUploadFilter, so when an upload is read asynchronously the permit is held until the asynchronous
+ * processing has finished rather than only until the filter chain returns.
+ * Requests with an invalid tenant id are passed down the chain unchanged, to be rejected in the same way as when admission control
+ * is disabled.
+ */
+public final class UploadAdmissionFilter extends HttpFilter
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadAdmissionFilter.class);
+
+    private static final String BATCHES_PATH = "/batches/";
+    private static final String TENANT_HEADER = "X-TENANT-ID";
+
+    private final UploadAdmissionController admissionController;
+
+    public UploadAdmissionFilter(final UploadAdmissionController admissionController)
+    {
+        this.admissionController = admissionController;
+    }
+
+    @Override
+    protected void doFilter(final HttpServletRequest request, final HttpServletResponse response, final FilterChain chain)
+        throws IOException, ServletException
+    {
+        final TenantId tenantId = getUploadTenantId(request);
+        if (tenantId == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final UploadAdmissionController.Permit permit;
+        try {
+            permit = admissionController.admit(tenantId);
+        } catch (final UploadAdmissionController.UploadRejectedException ex) {
+            LOGGER.warn("Upload rejected for {}: {}", tenantId, ex.getMessage());
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(ex.getRetryAfterSeconds()));
+            response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            response.getWriter().write(ex.getMessage());
+            response.flushBuffer();
+            return;
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value());
+            return;
+        }
+
+        boolean async = false;
+        try {
+            chain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new PermitReleasingListener(permit));
+                async = true;
+            }
+        } finally {
+            if (!async) {
+                permit.close();
+            }
+        }
+    }
+
+    private static TenantId getUploadTenantId(final HttpServletRequest request)
+    {
+        if (!"PUT".equals(request.getMethod())) {
+            return null;
+        }
+        final String path = request.getRequestURI().substring(request.getContextPath().length());
+        if (!path.startsWith(BATCHES_PATH)) {
+            return null;
+        }
+        final String tenantIdStr = request.getHeader(TENANT_HEADER);
+        if (tenantIdStr == null) {
+            return null;
+        }
+        try {
+            return new TenantId(tenantIdStr);
+        } catch (final InvalidTenantIdException ex) {
+            return null;
+        }
+    }
+
+    private static final class PermitReleasingListener implements AsyncListener
+    {
+        private final UploadAdmissionController.Permit permit;
+
+        public PermitReleasingListener(final UploadAdmissionController.Permit permit)
+        {
+            this.permit = permit;
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event)
+        {
+            permit.close();
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event)
+        {
+            permit.close();
+        }
+
+        @Override
+        public void onError(final AsyncEvent event)
+        {
+            permit.close();
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event)
+        {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
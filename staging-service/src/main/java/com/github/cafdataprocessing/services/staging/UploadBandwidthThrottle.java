@@ -0,0 +1,391 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+/*
+ * This class limits the rate at which batch uploads are read, so that a single tenant cannot use all of the network and disk
+ * bandwidth.
+ * Each tenant with an upload in progress has a token bucket which every upload for the tenant draws from. A read which takes more
+ * than the bucket holds puts it into debt, and the reader is told how long to wait for the debt to be repaid before reading again.
+ * When there is a limit on the total rate, it is shared between the tenants which have uploads in progress every
+ * REBALANCE_INTERVAL. Tenants which are reading more slowly than their share are given a little more than they are using, and the
+ * rest is split equally between the tenants which are being held back, up to their own limits, so capacity which one tenant is not
+ * using is not wasted.
+ */
+public final class UploadBandwidthThrottle implements AutoCloseable
+{
+    private static final long REBALANCE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    // Length of time for which a tenant may read faster than its rate after a pause
+    private static final double BURST_SECONDS = 0.25;
+
+    // Share of the total rate given to a tenant which is not being held back, relative to the rate it is reading at
+    private static final double HEADROOM = 1.25;
+
+    private static final double MIN_TENANT_RATE = 64 * 1024;
+    private static final int MAX_READ_SIZE = 64 * 1024;
+
+    private static final Lease UNLIMITED = new Lease(null, null);
+
+    private final long totalLimit;
+    private final long tenantLimit;
+    private final Map<String, Long> tenantLimitOverrides;
+    private final Map<String, Bucket> activeBuckets;
+    private final ReentrantLock rebalanceLock;
+    private final ScheduledExecutorService scheduler;
+    private long lastRebalanceNanos;
+    private volatile long nextRebalanceNanos;
+
+    /**
+     * @param totalLimit The maximum number of bytes per second which are read from all uploads, or 0 for no limit
+     * @param tenantLimit The maximum number of bytes per second which are read from the uploads of a single tenant, or 0 for no
+     * limit
+     * @param tenantLimitOverrides Comma-separated list of tenantId:limit pairs, which override the limit for individual tenants
+     */
+    public UploadBandwidthThrottle(final long totalLimit, final long tenantLimit, final String tenantLimitOverrides)
+    {
+        this.totalLimit = totalLimit;
+        this.tenantLimit = tenantLimit;
+        this.tenantLimitOverrides = parseTenantLimits(tenantLimitOverrides);
+        this.activeBuckets = new HashMap<>();
+        this.rebalanceLock = new ReentrantLock();
+        this.scheduler = isEnabled()
+            ? Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                                                         .namingPattern("upload-throttle-%d")
+                                                         .daemon(true)
+                                                         .build())
+            : null;
+        this.lastRebalanceNanos = System.nanoTime();
+        this.nextRebalanceNanos = lastRebalanceNanos;
+    }
+
+    public boolean isEnabled()
+    {
+        return totalLimit > 0 || tenantLimit > 0 || tenantLimitOverrides.values().stream().anyMatch(limit -> limit > 0);
+    }
+
+    /**
+     * Registers an upload which is about to be read.
+     *
+     * @param tenantId the tenant making the upload
+     * @return the lease through which the upload is throttled, which must be closed once the upload has finished
+     */
+    public Lease register(final TenantId tenantId)
+    {
+        final long limit = getTenantLimit(tenantId.getValue());
+        if (limit <= 0 && totalLimit <= 0) {
+            return UNLIMITED;
+        }
+        final Bucket bucket;
+        synchronized (activeBuckets) {
+            bucket = activeBuckets.computeIfAbsent(tenantId.getValue(), t -> new Bucket(limit));
+            bucket.leases++;
+        }
+        rebalance();
+        return new Lease(this, bucket);
+    }
+
+    @Override
+    public void close()
+    {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void release(final Bucket bucket)
+    {
+        synchronized (activeBuckets) {
+            if (--bucket.leases == 0) {
+                activeBuckets.values().remove(bucket);
+            }
+        }
+        rebalance();
+    }
+
+    private long reserve(final Bucket bucket, final int bytes)
+    {
+        final long now = System.nanoTime();
+        if (totalLimit > 0 && now - nextRebalanceNanos >= 0 && rebalanceLock.tryLock()) {
+            try {
+                rebalance(now, true);
+            } finally {
+                rebalanceLock.unlock();
+            }
+        }
+        return bucket.reserve(bytes, now);
+    }
+
+    private void rebalance()
+    {
+        if (totalLimit <= 0) {
+            return;
+        }
+        rebalanceLock.lock();
+        try {
+            rebalance(System.nanoTime(), false);
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+    /**
+     * Shares the total rate between the tenants with uploads in progress, so that no tenant is given more than it can use while
+     * another is held back.
+     *
+     * @param measure whether to measure how much each tenant has read since the last time, or to share the rate in the same way as
+     * last time, e.g. because a tenant has started or finished uploading part way through the interval
+     */
+    private void rebalance(final long now, final boolean measure)
+    {
+        final List<Bucket> buckets;
+        synchronized (activeBuckets) {
+            buckets = new ArrayList<>(activeBuckets.values());
+        }
+        if (measure) {
+            final double elapsedSeconds = Math.max(now - lastRebalanceNanos, 1) / NANOS_PER_SECOND;
+            lastRebalanceNanos = now;
+            nextRebalanceNanos = now + REBALANCE_INTERVAL_NANOS;
+            for (final Bucket bucket : buckets) {
+                bucket.measureDemand(elapsedSeconds);
+            }
+        }
+        buckets.sort(Comparator.comparingDouble(Bucket::getDemand));
+
+        double remaining = totalLimit;
+        int remainingBuckets = buckets.size();
+        for (final Bucket bucket : buckets) {
+            final double rate = Math.min(bucket.getDemand(), remaining / remainingBuckets);
+            bucket.setRate(rate, now);
+            remaining -= rate;
+            remainingBuckets--;
+        }
+    }
+
+    private long getTenantLimit(final String tenantId)
+    {
+        return tenantLimitOverrides.getOrDefault(tenantId, tenantLimit);
+    }
+
+    private static Map<String, Long> parseTenantLimits(final String tenantLimits)
+    {
+        final Map<String, Long> limits = new HashMap<>();
+        if (tenantLimits == null || tenantLimits.isBlank()) {
+            return limits;
+        }
+        for (final String entry : tenantLimits.split(",")) {
+            final int separator = entry.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid tenant upload bandwidth limit: " + entry);
+            }
+            limits.put(entry.substring(0, separator).trim(), Long.parseLong(entry.substring(separator + 1).trim()));
+        }
+        return limits;
+    }
+
+    private static final class Bucket
+    {
+        private final double limit;
+        private int leases;
+        private double rate;
+        private double demand;
+        private double tokens;
+        private long lastRefillNanos;
+        private long bytesSinceRebalance;
+        private boolean heldBack;
+
+        public Bucket(final long limit)
+        {
+            this.limit = limit > 0 ? limit : Double.POSITIVE_INFINITY;
+            this.rate = this.limit;
+            // A new tenant has not had a chance to show how fast it can read, so it starts with a full share
+            this.demand = this.limit;
+            this.tokens = 0;
+            this.lastRefillNanos = System.nanoTime();
+            this.bytesSinceRebalance = 0;
+            this.heldBack = true;
+        }
+
+        public synchronized long reserve(final int bytes, final long now)
+        {
+            bytesSinceRebalance += bytes;
+            if (rate == Double.POSITIVE_INFINITY) {
+                return 0;
+            }
+            refill(now);
+            tokens -= bytes;
+            if (tokens >= 0) {
+                return 0;
+            }
+            heldBack = true;
+            return (long) (-tokens / rate * NANOS_PER_SECOND);
+        }
+
+        public synchronized void setRate(final double newRate, final long now)
+        {
+            refill(now);
+            rate = Math.max(newRate, 1);
+        }
+
+        /**
+         * Estimates the rate the tenant would read at if it could, and starts measuring the rate it reads at again.
+         */
+        public synchronized void measureDemand(final double elapsedSeconds)
+        {
+            demand = heldBack
+                ? limit
+                : Math.min(limit, Math.max(MIN_TENANT_RATE, bytesSinceRebalance / elapsedSeconds * HEADROOM));
+            bytesSinceRebalance = 0;
+            heldBack = false;
+        }
+
+        public synchronized double getDemand()
+        {
+            return demand;
+        }
+
+        public synchronized long getRate()
+        {
+            return rate == Double.POSITIVE_INFINITY ? 0 : (long) rate;
+        }
+
+        private void refill(final long now)
+        {
+            if (rate != Double.POSITIVE_INFINITY) {
+                final double capacity = Math.max(rate * BURST_SECONDS, MAX_READ_SIZE);
+                tokens = Math.min(capacity, tokens + (now - lastRefillNanos) / NANOS_PER_SECOND * rate);
+            }
+            lastRefillNanos = now;
+        }
+    }
+
+    public static final class Lease implements AutoCloseable
+    {
+        private final UploadBandwidthThrottle throttle;
+        private final Bucket bucket;
+        private final AtomicBoolean released;
+
+        private Lease(final UploadBandwidthThrottle throttle, final Bucket bucket)
+        {
+            this.throttle = throttle;
+            this.bucket = bucket;
+            this.released = new AtomicBoolean();
+        }
+
+        /**
+         * Returns the number of bytes per second the upload is currently limited to, or 0 if it is not limited.
+         */
+        public long getRateLimit()
+        {
+            return bucket == null ? 0 : bucket.getRate();
+        }
+
+        /**
+         * Records that bytes have been read from the upload.
+         *
+         * @param bytes the number of bytes read
+         * @return the number of nanoseconds to wait before reading any more
+         */
+        public long reserve(final int bytes)
+        {
+            return bucket == null || bytes <= 0 ? 0 : throttle.reserve(bucket, bytes);
+        }
+
+        /**
+         * Runs a task after a delay, without holding a thread while it waits.
+         */
+        public void schedule(final Runnable task, final long delayNanos)
+        {
+            throttle.scheduler.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Wraps a stream so that reading from it blocks for as long as is needed to keep to the limit.
+         */
+        public InputStream wrap(final InputStream stream)
+        {
+            return bucket == null ? stream : new ThrottledInputStream(stream, this);
+        }
+
+        @Override
+        public void close()
+        {
+            if (bucket != null && released.compareAndSet(false, true)) {
+                throttle.release(bucket);
+            }
+        }
+    }
+
+    private static final class ThrottledInputStream extends FilterInputStream
+    {
+        private final Lease lease;
+
+        public ThrottledInputStream(final InputStream in, final Lease lease)
+        {
+            super(in);
+            this.lease = lease;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            final int b = super.read();
+            if (b != -1) {
+                pause(lease.reserve(1));
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException
+        {
+            // Reads are kept small so that the waits between them are short
+            final int bytesRead = super.read(b, off, Math.min(len, MAX_READ_SIZE));
+            pause(lease.reserve(bytesRead));
+            return bytesRead;
+        }
+
+        private static void pause(final long delayNanos) throws InterruptedIOException
+        {
+            if (delayNanos <= 0) {
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling upload");
+            }
+        }
+    }
+}
@@ -21,11 +21,17 @@ import com.github.cafdataprocessing.services.staging.exceptions.BatchNotFoundExc
 import com.github.cafdataprocessing.services.staging.exceptions.IncompleteBatchException;
 import com.github.cafdataprocessing.services.staging.exceptions.InvalidBatchException;
 import com.github.cafdataprocessing.services.staging.exceptions.StagingException;
+import com.github.cafdataprocessing.services.staging.exceptions.UploadSessionConflictException;
+import com.github.cafdataprocessing.services.staging.exceptions.UploadSessionNotFoundException;
+import com.github.cafdataprocessing.services.staging.models.BatchDetails;
+import com.github.cafdataprocessing.services.staging.models.BatchStatusEntry;
 import com.github.cafdataprocessing.services.staging.models.BatchStatusResponse;
+import com.github.cafdataprocessing.services.staging.models.UploadSession;
 import jakarta.validation.Valid;
 import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.Size;
 import java.util.List;
+import java.util.stream.Stream;
 import org.apache.commons.fileupload2.core.FileItemInputIterator;
 
 public interface BatchDao
@@ -34,14 +40,75 @@ public interface BatchDao
     List<String> saveFiles(TenantId tenantId, @Size(min = 1) BatchId batchId, FileItemInputIterator fileItemIterator)
         throws IncompleteBatchException, InvalidBatchException, StagingException;
 
+    /**
+     * Stores a batch, counting the documents and loose files it contains into the progress of the upload as they are written.
+     */
+    List<String> saveFiles(TenantId tenantId, @Size(min = 1) BatchId batchId, FileItemInputIterator fileItemIterator,
+                           UploadProgress progress)
+        throws IncompleteBatchException, InvalidBatchException, StagingException;
+
+    BatchUpload startBatchUpload(TenantId tenantId, @Size(min = 1) BatchId batchId) throws StagingException;
+
+    BatchUpload startBatchUpload(TenantId tenantId, @Size(min = 1) BatchId batchId, UploadProgress progress)
+        throws StagingException;
+
+    UploadSession openUploadSession(TenantId tenantId, @Size(min = 1) BatchId batchId) throws StagingException;
+
+    UploadSession getUploadSession(TenantId tenantId, @Size(min = 1) BatchId batchId, String uploadId)
+        throws UploadSessionNotFoundException, StagingException;
+
+    /**
+     * Stores the next chunk of an upload session. A chunk which has already been received is ignored without its parts being
+     * read.
+     */
+    void saveChunk(TenantId tenantId, @Size(min = 1) BatchId batchId, String uploadId, @Min(1) int chunkNumber,
+                   FileItemInputIterator fileItemIterator)
+        throws UploadSessionNotFoundException, UploadSessionConflictException, IncompleteBatchException, InvalidBatchException,
+               StagingException;
+
+    void saveChunk(TenantId tenantId, @Size(min = 1) BatchId batchId, String uploadId, @Min(1) int chunkNumber,
+                   FileItemInputIterator fileItemIterator, UploadProgress progress)
+        throws UploadSessionNotFoundException, UploadSessionConflictException, IncompleteBatchException, InvalidBatchException,
+               StagingException;
+
+    void commitUploadSession(TenantId tenantId, @Size(min = 1) BatchId batchId, String uploadId)
+        throws UploadSessionNotFoundException, UploadSessionConflictException, StagingException;
+
+    void abandonUploadSession(TenantId tenantId, @Size(min = 1) BatchId batchId, String uploadId)
+        throws UploadSessionNotFoundException, UploadSessionConflictException, StagingException;
+
     List<String> getBatches(TenantId tenantId, @Size(min = 1, max = 256) @Valid String startsWith, @Size(min = 1, max = 256) @Valid BatchId from,
                             @Min(1) @Valid Integer limit) throws StagingException;
 
+    /**
+     * Returns up to limit batches in alphabetical order which follow the given batch, reading them as the stream is consumed where
+     * possible. The stream must be closed.
+     */
+    Stream<String> streamBatches(TenantId tenantId, @Size(min = 1, max = 256) String startsWith, BatchId after, @Min(1) int limit)
+        throws StagingException;
+
     void deleteBatch(TenantId tenantId, @Size(min = 1) BatchId BatchId) throws BatchNotFoundException, StagingException;
 
     void cleanUpStaleInprogressBatches();
 
+    /**
+     * Returns the number of bytes which deleted and replaced batches are still taking up while they are being removed.
+     */
+    long getPendingReclaimBytes();
+
+    /**
+     * Returns the size of a completed batch and the details of its upload.
+     */
+    BatchDetails getBatchDetails(TenantId tenantId, @Size(min = 1) BatchId batchId) throws BatchNotFoundException, StagingException;
+
     BatchStatusResponse getBatchStatus(TenantId tenantId, @Size(max = 1) BatchId batchId)
         throws BatchNotFoundException, StagingException, InterruptedException;
 
+    /**
+     * Returns the status of each of the batches, in the order in which they were requested. Batches which do not exist, or whose
+     * status could not be read, are reported in their entries rather than failing the whole request.
+     */
+    List<BatchStatusEntry> getBatchStatuses(TenantId tenantId, List<BatchId> batchIds)
+        throws StagingException, InterruptedException;
+
 }
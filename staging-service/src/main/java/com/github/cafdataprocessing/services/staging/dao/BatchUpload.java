@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao;
+
+import com.github.cafdataprocessing.services.staging.exceptions.IncompleteBatchException;
+import com.github.cafdataprocessing.services.staging.exceptions.InvalidBatchException;
+import com.github.cafdataprocessing.services.staging.exceptions.StagingException;
+import com.github.cafdataprocessing.services.staging.utils.DocumentBuffer;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * A batch which is in the process of being uploaded.
+ *
+ * The parts of the batch are added in the order they were uploaded. The batch only becomes visible once {@link #complete()} has
+ * returned successfully; closing the upload before then discards everything that has been written.
+ */
+public interface BatchUpload extends AutoCloseable
+{
+    /**
+     * The content type of the parts which contain documents; parts with any other content type are loose files.
+     */
+    String DOCUMENT_CONTENT_TYPE = "application/document+json";
+
+    void writeDocument(String partName, InputStreamSupplier inputStreamSupplier)
+        throws StagingException, InvalidBatchException, IncompleteBatchException;
+
+    /**
+     * Writes a document part which has been collected in a buffer from {@link #createDocumentBuffer()}, without waiting for it to
+     * be validated and minified, so that it can be called from a thread which must not block. The upload takes ownership of the
+     * buffer and discards it once it is no longer needed. A document which turns out to be invalid fails a later call to this
+     * method or to {@link #complete()}.
+     *
+     * @return true if another document can be written straight away; false if the caller should wait for onWritable to be run,
+     * which happens on another thread once there is room for more documents
+     */
+    boolean writeDocument(String partName, DocumentBuffer document, Runnable onWritable)
+        throws StagingException, InvalidBatchException;
+
+    /**
+     * Creates a buffer for a document part which arrives in pieces, so that it can be passed to {@link #writeDocument} once it is
+     * complete. Large documents are buffered on disk alongside the batch rather than in memory. The caller must discard the buffer
+     * if it is not passed to {@link #writeDocument}.
+     */
+    DocumentBuffer createDocumentBuffer();
+
+    /**
+     * Opens a stream for a loose file part. The file can be referenced by the documents which follow it once the returned stream
+     * has been closed.
+     */
+    OutputStream openLooseFile(String partName) throws StagingException;
+
+    List<String> complete() throws StagingException, InvalidBatchException;
+
+    @Override
+    void close();
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The live progress of a single upload.
+ *
+ * The counters are updated as the upload is read and written, and can be read at any time from other threads, for example to
+ * report the status of the batch, without the upload having to publish snapshots of its progress.
+ */
+public final class UploadProgress
+{
+    private final long startTimeMillis;
+    private final AtomicLong bytesReceived;
+    private final AtomicLong documents;
+    private final AtomicLong looseFiles;
+    private final AtomicLong subbatches;
+    private volatile long lastUpdateTimeMillis;
+
+    public UploadProgress()
+    {
+        this.startTimeMillis = System.currentTimeMillis();
+        this.bytesReceived = new AtomicLong();
+        this.documents = new AtomicLong();
+        this.looseFiles = new AtomicLong();
+        this.subbatches = new AtomicLong();
+        this.lastUpdateTimeMillis = 0;
+    }
+
+    public void setBytesReceived(final long totalBytesReceived)
+    {
+        bytesReceived.set(totalBytesReceived);
+        lastUpdateTimeMillis = System.currentTimeMillis();
+    }
+
+    public void documentWritten()
+    {
+        documents.incrementAndGet();
+        lastUpdateTimeMillis = System.currentTimeMillis();
+    }
+
+    public void looseFileWritten()
+    {
+        looseFiles.incrementAndGet();
+        lastUpdateTimeMillis = System.currentTimeMillis();
+    }
+
+    public void setSubbatches(final long subbatchCount)
+    {
+        subbatches.set(subbatchCount);
+    }
+
+    public long getStartTimeMillis()
+    {
+        return startTimeMillis;
+    }
+
+    /**
+     * @return the time at which progress was last made, or 0 if none has been made yet
+     */
+    public long getLastUpdateTimeMillis()
+    {
+        return lastUpdateTimeMillis;
+    }
+
+    public long getBytesReceived()
+    {
+        return bytesReceived.get();
+    }
+
+    public long getDocuments()
+    {
+        return documents.get();
+    }
+
+    public long getLooseFiles()
+    {
+        return looseFiles.get();
+    }
+
+    public long getSubbatches()
+    {
+        return subbatches.get();
+    }
+}
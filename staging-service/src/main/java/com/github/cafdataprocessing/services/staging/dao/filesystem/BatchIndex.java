@@ -0,0 +1,316 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem;
+
+import com.github.cafdataprocessing.services.staging.BatchId;
+import com.github.cafdataprocessing.services.staging.TenantId;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * This class keeps the names of each tenant's completed batches in a sorted set, so that a page of batches can be listed without
+ * reading and sorting the whole completed folder.
+ * The index of a tenant is built from its completed folder the first time its batches are listed. It is then kept up to date by
+ * the batches which this service completes and deletes, and by a watch on the completed folder, which picks up batches completed
+ * or deleted by other instances of the service. File systems which do not report changes, such as network file systems, are
+ * covered by rebuilding an index when it is listed after it has reached its maximum age. A rebuild takes place on a background
+ * thread, while requests, including the one which found the index too old, carry on listing the index as it was.
+ */
+final class BatchIndex implements AutoCloseable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchIndex.class);
+
+    private final BatchPathProvider batchPathProvider;
+    private final long maxAgeNanos;
+    private final Map<String, TenantIndex> tenantIndexes;
+    private final WatchService watchService;
+    private final Map<WatchKey, TenantIndex> watchedIndexes;
+    private final Thread watcher;
+    private final ExecutorService rebuildExecutor;
+
+    public BatchIndex(final BatchPathProvider batchPathProvider, final long maxAgeMillis)
+    {
+        this.batchPathProvider = batchPathProvider;
+        this.maxAgeNanos = maxAgeMillis * 1_000_000L;
+        this.tenantIndexes = new ConcurrentHashMap<>();
+        this.watchService = createWatchService();
+        this.watchedIndexes = new ConcurrentHashMap<>();
+        if (watchService != null) {
+            this.watcher = new BasicThreadFactory.Builder()
+                .namingPattern("batch-index-watcher-%d")
+                .daemon(true)
+                .build()
+                .newThread(this::watch);
+            watcher.start();
+        } else {
+            this.watcher = null;
+        }
+        this.rebuildExecutor = Executors.newSingleThreadExecutor(new BasicThreadFactory.Builder()
+                                                                 .namingPattern("batch-index-rebuild-%d")
+                                                                 .daemon(true)
+                                                                 .build());
+    }
+
+    public List<String> getBatches(final TenantId tenantId, final String startsWith, final BatchId from, final Integer limit)
+        throws IOException
+    {
+        try (final Stream<String> batches = streamBatches(tenantId, startsWith, from == null ? null : from.getValue(), true)) {
+            return (limit == null ? batches : batches.limit(limit)).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Returns the names of a tenant's batches in alphabetical order, starting from the given name, which are read from the index
+     * as the stream is consumed.
+     */
+    public Stream<String> streamBatches(
+        final TenantId tenantId,
+        final String startsWith,
+        final String from,
+        final boolean fromInclusive
+    ) throws IOException
+    {
+        final Path batchesPath = batchPathProvider.getPathForBatches(tenantId);
+        if (!Files.isDirectory(batchesPath)) {
+            return Stream.empty();
+        }
+        final TenantIndex tenantIndex = tenantIndexes.computeIfAbsent(tenantId.getValue(), t -> new TenantIndex(batchesPath));
+        tenantIndex.ensureCurrent();
+
+        final NavigableSet<String> candidates;
+        if (from != null && (startsWith == null || from.compareTo(startsWith) >= 0)) {
+            candidates = tenantIndex.batchNames.tailSet(from, fromInclusive);
+        } else if (startsWith != null) {
+            candidates = tenantIndex.batchNames.tailSet(startsWith, true);
+        } else {
+            candidates = tenantIndex.batchNames;
+        }
+        // Names sharing a prefix are adjacent, so there are no more matches after the first name without it
+        return startsWith == null ? candidates.stream() : candidates.stream().takeWhile(name -> name.startsWith(startsWith));
+    }
+
+    public void added(final TenantId tenantId, final BatchId batchId)
+    {
+        final TenantIndex tenantIndex = tenantIndexes.get(tenantId.getValue());
+        if (tenantIndex != null) {
+            tenantIndex.add(batchId.getValue());
+        }
+    }
+
+    public void removed(final TenantId tenantId, final BatchId batchId)
+    {
+        final TenantIndex tenantIndex = tenantIndexes.get(tenantId.getValue());
+        if (tenantIndex != null) {
+            tenantIndex.remove(batchId.getValue());
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        rebuildExecutor.shutdownNow();
+        if (watchService == null) {
+            return;
+        }
+        // Closing the watch service stops the watcher thread
+        try {
+            watchService.close();
+        } catch (final IOException ex) {
+            LOGGER.warn("Unable to close batch index watch service", ex);
+            watcher.interrupt();
+        }
+    }
+
+    private static WatchService createWatchService()
+    {
+        try {
+            return FileSystems.getDefault().newWatchService();
+        } catch (final IOException | UnsupportedOperationException ex) {
+            LOGGER.warn("Unable to watch completed folders; batch indexes will only be refreshed when they are too old", ex);
+            return null;
+        }
+    }
+
+    private void watch()
+    {
+        try {
+            while (true) {
+                final WatchKey key = watchService.take();
+                final TenantIndex tenantIndex = watchedIndexes.get(key);
+                if (tenantIndex == null) {
+                    key.pollEvents();
+                    key.reset();
+                    continue;
+                }
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        tenantIndex.invalidate();
+                    } else {
+                        final String batchName = event.context().toString();
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                            if (Files.isDirectory(tenantIndex.batchesPath.resolve(batchName))) {
+                                tenantIndex.add(batchName);
+                            }
+                        } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            tenantIndex.remove(batchName);
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    // The completed folder has gone, so the index is rebuilt if it is recreated
+                    watchedIndexes.remove(key);
+                    tenantIndex.invalidate();
+                }
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (final ClosedWatchServiceException ex) {
+            LOGGER.debug("Batch index watch service closed");
+        }
+    }
+
+    private final class TenantIndex
+    {
+        private final Path batchesPath;
+        private final NavigableSet<String> batchNames;
+        private final AtomicBoolean building;
+        private volatile long builtAt;
+        private volatile boolean valid;
+        private WatchKey watchKey;
+
+        public TenantIndex(final Path batchesPath)
+        {
+            this.batchesPath = batchesPath;
+            this.batchNames = new ConcurrentSkipListSet<>();
+            this.building = new AtomicBoolean();
+            this.valid = false;
+        }
+
+        public void ensureCurrent() throws IOException
+        {
+            if (!valid) {
+                // There is no index to list yet, so the request has to wait for it to be built
+                synchronized (this) {
+                    if (!valid) {
+                        build();
+                    }
+                }
+                return;
+            }
+            if (System.nanoTime() - builtAt >= maxAgeNanos && building.compareAndSet(false, true)) {
+                try {
+                    rebuildExecutor.execute(this::rebuild);
+                } catch (final RejectedExecutionException ex) {
+                    building.set(false);
+                    LOGGER.debug("Batch index closed; not rebuilding the index of {}", batchesPath);
+                }
+            }
+        }
+
+        public synchronized void add(final String batchName)
+        {
+            batchNames.add(batchName);
+        }
+
+        public synchronized void remove(final String batchName)
+        {
+            batchNames.remove(batchName);
+        }
+
+        public void invalidate()
+        {
+            valid = false;
+        }
+
+        private void rebuild()
+        {
+            try {
+                synchronized (this) {
+                    build();
+                }
+            } catch (final IOException ex) {
+                LOGGER.warn("Unable to rebuild the batch index of {}; it will be retried when it is next listed", batchesPath, ex);
+            } finally {
+                building.set(false);
+            }
+        }
+
+        /**
+         * Reads the completed folder into the index. Changes made by this service wait until the folder has been read, so that
+         * they cannot be lost by being made while it is read.
+         */
+        private void build() throws IOException
+        {
+            final long startTime = System.nanoTime();
+            watch();
+            final Set<String> foundNames = new HashSet<>();
+            try (final DirectoryStream<Path> batches = Files.newDirectoryStream(batchesPath, Files::isDirectory)) {
+                for (final Path batch : batches) {
+                    foundNames.add(batch.getFileName().toString());
+                }
+            }
+            final Iterator<String> iterator = batchNames.iterator();
+            while (iterator.hasNext()) {
+                if (!foundNames.contains(iterator.next())) {
+                    iterator.remove();
+                }
+            }
+            batchNames.addAll(foundNames);
+            builtAt = startTime;
+            valid = true;
+            LOGGER.debug("Indexed {} batches in {}", foundNames.size(), batchesPath);
+        }
+
+        private void watch()
+        {
+            if (watchService == null || (watchKey != null && watchKey.isValid())) {
+                return;
+            }
+            try {
+                watchKey = batchesPath.register(
+                    watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+                watchedIndexes.put(watchKey, this);
+            } catch (final IOException | UnsupportedOperationException ex) {
+                LOGGER.warn("Unable to watch {}; its index will only be refreshed when it is too old", batchesPath, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem;
+
+import com.github.cafdataprocessing.services.staging.models.BatchDetails;
+import com.github.cafdataprocessing.services.staging.utils.ServiceIdentifier;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Properties;
+
+/*
+ * The summary is written into a batch when it is completed, so that the size of the batch can be reported by reading a single
+ * small file, rather than by measuring the batch folder.
+ * It holds the numbers of documents, loose files and subbatch files in the batch, the total number of bytes they take up, the
+ * times at which the upload of the batch was started and completed, and the id of the instance of the service which completed it.
+ * The document and subbatch file counts are taken from the subbatch manifest, and the loose files are counted by listing the
+ * loose files folder, which takes place once, when the batch is completed.
+ * Batches staged by earlier versions of the service do not have a summary; their summary is measured when it is requested, and
+ * holds only what can be learned from the batch folder.
+ */
+public final class BatchSummary
+{
+    public static final String FILE_NAME = "batch-summary.properties";
+
+    private static final String CONTENT_FILES = "files";
+
+    private static final String DOCUMENT_COUNT = "documentCount";
+    private static final String LOOSE_FILE_COUNT = "looseFileCount";
+    private static final String SUBBATCH_COUNT = "subbatchCount";
+    private static final String TOTAL_BYTES = "totalBytes";
+    private static final String UPLOAD_START_TIME = "uploadStartTime";
+    private static final String UPLOAD_END_TIME = "uploadEndTime";
+    private static final String SERVICE_ID = "serviceId";
+
+    private final Long documentCount;
+    private final long looseFileCount;
+    private final long subbatchCount;
+    private final long totalBytes;
+    private final Instant uploadStartTime;
+    private final Instant uploadEndTime;
+    private final String serviceId;
+
+    private BatchSummary(
+        final Long documentCount,
+        final long looseFileCount,
+        final long subbatchCount,
+        final long totalBytes,
+        final Instant uploadStartTime,
+        final Instant uploadEndTime,
+        final String serviceId
+    )
+    {
+        this.documentCount = documentCount;
+        this.looseFileCount = looseFileCount;
+        this.subbatchCount = subbatchCount;
+        this.totalBytes = totalBytes;
+        this.uploadStartTime = uploadStartTime;
+        this.uploadEndTime = uploadEndTime;
+        this.serviceId = serviceId;
+    }
+
+    /**
+     * Builds the summary of an in-progress folder which is about to be completed by this service.
+     */
+    public static BatchSummary create(final Path inProgressBatchFolder) throws IOException
+    {
+        final String folderName = inProgressBatchFolder.getFileName().toString();
+        final Instant uploadStartTime = BatchNameProvider.validateFileName(folderName)
+            ? Instant.ofEpochMilli(BatchNameProvider.getFileCreationTime(folderName))
+            : null;
+        return measure(inProgressBatchFolder, uploadStartTime, Instant.now(), ServiceIdentifier.getServiceId());
+    }
+
+    /**
+     * Reads the summary of a completed batch, measuring the batch if it was completed by an earlier version of the service.
+     *
+     * @throws NoSuchFileException if the batch folder does not exist
+     */
+    public static BatchSummary readOrMeasure(final Path batchFolder) throws IOException
+    {
+        final BatchSummary summary = read(batchFolder);
+        if (summary != null) {
+            return summary;
+        }
+        if (!Files.isDirectory(batchFolder)) {
+            throw new NoSuchFileException(batchFolder.toString());
+        }
+        return measure(batchFolder, null, null, null);
+    }
+
+    /**
+     * @return the summary of a completed batch, or null if the batch does not exist or does not have a summary
+     */
+    public static BatchSummary read(final Path batchFolder) throws IOException
+    {
+        final Properties properties = new Properties();
+        try (final InputStream stream = Files.newInputStream(batchFolder.resolve(FILE_NAME))) {
+            properties.load(stream);
+        } catch (final NoSuchFileException ex) {
+            return null;
+        }
+        try {
+            return new BatchSummary(
+                parseLong(properties.getProperty(DOCUMENT_COUNT)),
+                Long.parseLong(properties.getProperty(LOOSE_FILE_COUNT)),
+                Long.parseLong(properties.getProperty(SUBBATCH_COUNT)),
+                Long.parseLong(properties.getProperty(TOTAL_BYTES)),
+                parseInstant(properties.getProperty(UPLOAD_START_TIME)),
+                parseInstant(properties.getProperty(UPLOAD_END_TIME)),
+                properties.getProperty(SERVICE_ID));
+        } catch (final NumberFormatException | DateTimeParseException ex) {
+            throw new IOException("Invalid batch summary in " + batchFolder, ex);
+        }
+    }
+
+    /**
+     * Writes the summary into the folder. The summary is written under a temporary name and renamed, so that a partly written
+     * summary is never read.
+     */
+    public void write(final Path batchFolder) throws IOException
+    {
+        final Properties properties = new Properties();
+        if (documentCount != null) {
+            properties.setProperty(DOCUMENT_COUNT, Long.toString(documentCount));
+        }
+        properties.setProperty(LOOSE_FILE_COUNT, Long.toString(looseFileCount));
+        properties.setProperty(SUBBATCH_COUNT, Long.toString(subbatchCount));
+        properties.setProperty(TOTAL_BYTES, Long.toString(totalBytes));
+        if (uploadStartTime != null) {
+            properties.setProperty(UPLOAD_START_TIME, uploadStartTime.toString());
+        }
+        properties.setProperty(UPLOAD_END_TIME, uploadEndTime.toString());
+        properties.setProperty(SERVICE_ID, serviceId);
+        final Path tempFile = batchFolder.resolve(FILE_NAME + ".tmp");
+        try (final OutputStream stream = Files.newOutputStream(tempFile)) {
+            properties.store(stream, null);
+        }
+        Files.move(tempFile, batchFolder.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public BatchDetails toBatchDetails(final String batchId)
+    {
+        final BatchDetails batchDetails = new BatchDetails();
+        batchDetails.setBatchId(batchId);
+        batchDetails.setDocumentCount(documentCount);
+        batchDetails.setLooseFileCount(looseFileCount);
+        batchDetails.setSubbatchCount(subbatchCount);
+        batchDetails.setTotalBytes(totalBytes);
+        batchDetails.setUploadStartTime(uploadStartTime);
+        batchDetails.setUploadEndTime(uploadEndTime);
+        batchDetails.setServiceId(serviceId);
+        return batchDetails;
+    }
+
+    private static BatchSummary measure(
+        final Path batchFolder,
+        final Instant uploadStartTime,
+        final Instant uploadEndTime,
+        final String serviceId
+    ) throws IOException
+    {
+        final Long documentCount;
+        long subbatchCount = 0;
+        long totalBytes = 0;
+        if (SubbatchManifest.exists(batchFolder)) {
+            final SubbatchManifest manifest = SubbatchManifest.read(batchFolder);
+            documentCount = manifest.getDocumentCount();
+            subbatchCount = manifest.getEntries().size();
+            totalBytes = manifest.getByteLength();
+        } else {
+            // Counting the documents would mean reading every subbatch file
+            documentCount = null;
+            try (final DirectoryStream<Path> files = Files.newDirectoryStream(
+                batchFolder, file -> BatchNameProvider.isSubBatchName(file.getFileName().toString()))) {
+                for (final Path file : files) {
+                    subbatchCount++;
+                    totalBytes += Files.size(file);
+                }
+            }
+        }
+        long looseFileCount = 0;
+        final Path looseFilesFolder = batchFolder.resolve(CONTENT_FILES);
+        if (Files.isDirectory(looseFilesFolder)) {
+            try (final DirectoryStream<Path> looseFiles = Files.newDirectoryStream(looseFilesFolder)) {
+                for (final Path looseFile : looseFiles) {
+                    final BasicFileAttributes attributes = Files.readAttributes(looseFile, BasicFileAttributes.class);
+                    if (attributes.isRegularFile()) {
+                        looseFileCount++;
+                        totalBytes += attributes.size();
+                    }
+                }
+            }
+        }
+        return new BatchSummary(documentCount, looseFileCount, subbatchCount, totalBytes, uploadStartTime, uploadEndTime, serviceId);
+    }
+
+    private static Long parseLong(final String value)
+    {
+        return value == null ? null : Long.valueOf(value);
+    }
+
+    private static Instant parseInstant(final String value)
+    {
+        return value == null ? null : Instant.parse(value);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem;
+
+import com.github.cafdataprocessing.services.staging.TenantId;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * This class keeps a single copy of each distinct loose file uploaded by a tenant, so that a file which is uploaded again in a
+ * later batch takes up no more space.
+ * Loose files are hashed as they are written. Once a file has been written it is renamed after its hash, and is then either
+ * replaced by a hard link to the copy already in the store, or linked into the store as the copy for that content.
+ * The number of batches referring to an entry in the store is its link count less one, so deleting a batch folder releases its
+ * references without any further bookkeeping. Entries which are no longer referenced are removed when a batch which referred to
+ * them is deleted, and by the scheduled clean up.
+ * If the file system does not support hard links, or does not report link counts, files are still renamed after their hash but
+ * each batch keeps its own copy and nothing is ever removed from the store.
+ */
+final class ContentStore
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentStore.class);
+
+    private static final Pattern HASH_NAME = Pattern.compile("[0-9a-f]{64}");
+    private static final String CONTENT_FILES = "files";
+
+    private final BatchPathProvider batchPathProvider;
+
+    public ContentStore(final BatchPathProvider batchPathProvider)
+    {
+        this.batchPathProvider = batchPathProvider;
+    }
+
+    public MessageDigest newDigest()
+    {
+        return DigestUtils.getSha256Digest();
+    }
+
+    /**
+     * Adds a loose file which has just been written to the store, or replaces it with the stored copy of the same content.
+     *
+     * @param tenantId the tenant which uploaded the file
+     * @param file the file which has been written
+     * @param digest the SHA-256 hash of the file's content
+     * @return the name the file now has in its folder
+     */
+    public String addFile(final TenantId tenantId, final Path file, final byte[] digest) throws IOException
+    {
+        final String hash = Hex.encodeHexString(digest);
+        final String extension = FilenameUtils.getExtension(file.getFileName().toString());
+        final String fileName = extension.isEmpty() ? hash : hash + "." + extension;
+        final Path target = file.resolveSibling(fileName);
+        final Path entry = getEntryPath(tenantId, hash);
+
+        if (Files.exists(target)) {
+            LOGGER.debug("Loose file {} duplicates {} in the same batch", file, target);
+            Files.delete(file);
+            return fileName;
+        }
+
+        try {
+            Files.createLink(target, entry);
+            Files.delete(file);
+            LOGGER.debug("Loose file {} replaced by link to stored content {}", file, entry);
+            return fileName;
+        } catch (final NoSuchFileException ex) {
+            // The content is not in the store yet, or has just been removed from it
+        } catch (final IOException | UnsupportedOperationException ex) {
+            LOGGER.warn("Unable to link to stored content {}; keeping separate copy of loose file", entry, ex);
+        }
+
+        Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+        try {
+            Files.createDirectories(entry.getParent());
+            Files.createLink(entry, target);
+            LOGGER.debug("Loose file {} added to content store as {}", target, entry);
+        } catch (final FileAlreadyExistsException ex) {
+            LOGGER.debug("Content {} was stored by a concurrent upload; keeping separate copy of loose file", entry);
+        } catch (final IOException | UnsupportedOperationException ex) {
+            LOGGER.warn("Unable to add loose file {} to content store", target, ex);
+        }
+        return fileName;
+    }
+
+    /**
+     * Finds the store entries which the loose files in a batch folder refer to, so that they can be released once the folder has
+     * been deleted.
+     */
+    public List<Path> getReferencedEntries(final TenantId tenantId, final Path batchFolder)
+    {
+        final Path filesFolder = batchFolder.resolve(CONTENT_FILES);
+        if (!Files.isDirectory(filesFolder)) {
+            return List.of();
+        }
+        final Set<Path> entries = new LinkedHashSet<>();
+        try (final Stream<Path> files = Files.list(filesFolder)) {
+            final Iterator<Path> iterator = files.iterator();
+            while (iterator.hasNext()) {
+                final String baseName = FilenameUtils.getBaseName(iterator.next().getFileName().toString());
+                if (HASH_NAME.matcher(baseName).matches()) {
+                    entries.add(getEntryPath(tenantId, baseName));
+                }
+            }
+        } catch (final IOException ex) {
+            LOGGER.warn("Unable to list loose files in {}; stored content will be released by the scheduled clean up",
+                        filesFolder, ex);
+        }
+        return new ArrayList<>(entries);
+    }
+
+    /**
+     * Removes the given store entries if nothing refers to them any more.
+     */
+    public void releaseEntries(final List<Path> entries)
+    {
+        for (final Path entry : entries) {
+            removeIfUnreferenced(entry);
+        }
+    }
+
+    /**
+     * Removes all of a tenant's store entries which nothing refers to any more.
+     */
+    public void removeUnreferencedEntries(final TenantId tenantId)
+    {
+        final Path storeFolder = batchPathProvider.getContentStorePath(tenantId);
+        if (!Files.isDirectory(storeFolder)) {
+            return;
+        }
+        try (final Stream<Path> entries = Files.walk(storeFolder, 2)) {
+            final Iterator<Path> iterator = entries.filter(Files::isRegularFile).iterator();
+            while (iterator.hasNext()) {
+                removeIfUnreferenced(iterator.next());
+            }
+        } catch (final IOException ex) {
+            LOGGER.error("Unable to list content store {}", storeFolder, ex);
+        }
+    }
+
+    /**
+     * @return the number of loose files which share the content of a store entry, or -1 if this cannot be determined
+     */
+    static int getReferenceCount(final Path entry) throws IOException
+    {
+        try {
+            return ((Number) Files.getAttribute(entry, "unix:nlink")).intValue() - 1;
+        } catch (final UnsupportedOperationException | IllegalArgumentException ex) {
+            return -1;
+        }
+    }
+
+    private void removeIfUnreferenced(final Path entry)
+    {
+        try {
+            // A batch which links to the entry after this check keeps the content, as it holds its own link to it
+            if (getReferenceCount(entry) == 0) {
+                Files.deleteIfExists(entry);
+                LOGGER.debug("Removed unreferenced stored content {}", entry);
+            }
+        } catch (final NoSuchFileException ex) {
+            LOGGER.debug("Stored content {} has already been removed", entry);
+        } catch (final IOException ex) {
+            LOGGER.warn("Unable to remove stored content {}", entry, ex);
+        }
+    }
+
+    private Path getEntryPath(final TenantId tenantId, final String hash)
+    {
+        return batchPathProvider.getContentStorePath(tenantId).resolve(hash.substring(0, 2)).resolve(hash);
+    }
+}
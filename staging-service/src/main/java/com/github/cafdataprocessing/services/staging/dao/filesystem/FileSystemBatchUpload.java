@@ -0,0 +1,270 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem;
+
+import com.github.cafdataprocessing.services.staging.TenantId;
+import com.github.cafdataprocessing.services.staging.dao.BatchUpload;
+import com.github.cafdataprocessing.services.staging.dao.InputStreamSupplier;
+import com.github.cafdataprocessing.services.staging.dao.UploadProgress;
+import com.github.cafdataprocessing.services.staging.dao.filesystem.statusreporting.UploadProgressFile;
+import com.github.cafdataprocessing.services.staging.exceptions.IncompleteBatchException;
+import com.github.cafdataprocessing.services.staging.exceptions.InvalidBatchException;
+import com.github.cafdataprocessing.services.staging.exceptions.StagingException;
+import com.github.cafdataprocessing.services.staging.utils.DocumentBuffer;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * This class writes the parts of a single batch upload into its in-progress folder.
+ * Documents are passed to the SubBatchWriter, either directly or through a ParallelDocumentWriter, and loose files are written
+ * to the files subfolder under a generated name, or under the hash of their content if they are being deduplicated through a
+ * ContentStore.
+ * The documents, loose files and subbatch files written are counted into the progress of the upload, and the number of bytes and
+ * documents written so far is also recorded in a progress file in the folder given for it, from which other instances of the
+ * service report the progress of the upload.
+ * When the upload is completed its Completion is run, which for a whole batch moves the in-progress folder to the completed folder
+ * and for a chunk of an upload session adds the chunk to the session; if the upload is closed without being completed the
+ * in-progress folder is removed.
+ */
+final class FileSystemBatchUpload implements BatchUpload
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileSystemBatchUpload.class);
+
+    private static final String CONTENT_FILES = "files";
+
+    // Documents larger than this are buffered in the in-progress folder rather than in memory
+    private static final int DOCUMENT_MEMORY_THRESHOLD = 1024 * 1024;
+
+    private final FileSystemDao fileSystemDao;
+    private final TenantId tenantId;
+    private final Path inProgressBatchFolderPath;
+    private final String storageRefFolderPath;
+    private final String inprogressContentFolderPath;
+    private final int fieldValueSizeThreshold;
+    private final SubBatchWriter subBatchWriter;
+    private ParallelDocumentWriter parallelDocumentWriter;
+    private final FileWriteStrategy looseFileWriteStrategy;
+    private final ContentStore contentStore;
+    private final LooseFileIndex binaryFilesUploaded;
+    private final List<String> fileNames;
+    private final UploadProgress progress;
+    private final UploadProgressFile progressFile;
+    private final Completion completion;
+    private long looseFileBytesWritten;
+    private boolean completed;
+
+    public FileSystemBatchUpload(
+        final FileSystemDao fileSystemDao,
+        final TenantId tenantId,
+        final Path inProgressBatchFolderPath,
+        final Path storageRefFolderPath,
+        final int subbatchSize,
+        final long subbatchMaxBytes,
+        final int fieldValueSizeThreshold,
+        final ExecutorService documentProcessingExecutor,
+        final int documentProcessingQueueSize,
+        final FileWriteStrategy subbatchWriteStrategy,
+        final FileWriteStrategy looseFileWriteStrategy,
+        final ContentStore contentStore,
+        final boolean compressSubbatches,
+        final LooseFileIndex binaryFilesUploaded,
+        final Path progressFolderPath,
+        final UploadProgress progress,
+        final Completion completion
+    )
+    {
+        this.fileSystemDao = fileSystemDao;
+        this.tenantId = tenantId;
+        this.inProgressBatchFolderPath = inProgressBatchFolderPath;
+        this.storageRefFolderPath = storageRefFolderPath.toString();
+        this.inprogressContentFolderPath = inProgressBatchFolderPath.resolve(CONTENT_FILES).toString();
+        this.fieldValueSizeThreshold = fieldValueSizeThreshold;
+        this.subBatchWriter = new SubBatchWriter(inProgressBatchFolderPath.toFile(), subbatchSize, subbatchMaxBytes,
+                                                 subbatchWriteStrategy, compressSubbatches);
+        this.parallelDocumentWriter = documentProcessingExecutor == null
+            ? null
+            : new ParallelDocumentWriter(documentProcessingExecutor, subBatchWriter, documentProcessingQueueSize,
+                                         this::createDocumentBuffer);
+        this.looseFileWriteStrategy = looseFileWriteStrategy;
+        this.contentStore = contentStore;
+        this.binaryFilesUploaded = binaryFilesUploaded;
+        this.fileNames = new ArrayList<>();
+        this.progress = progress;
+        this.progressFile = new UploadProgressFile(progressFolderPath);
+        this.completion = completion;
+        this.looseFileBytesWritten = 0;
+        this.completed = false;
+    }
+
+    @Override
+    public void writeDocument(final String partName, final InputStreamSupplier inputStreamSupplier)
+        throws StagingException, InvalidBatchException, IncompleteBatchException
+    {
+        LOGGER.debug("Part type: document; field name: {}", partName);
+        if (parallelDocumentWriter == null) {
+            subBatchWriter
+                .writeDocumentFile(inputStreamSupplier,
+                                   storageRefFolderPath,
+                                   inprogressContentFolderPath,
+                                   fieldValueSizeThreshold, binaryFilesUploaded.getCurrentView());
+        } else {
+            parallelDocumentWriter
+                .writeDocumentFile(inputStreamSupplier,
+                                   storageRefFolderPath,
+                                   inprogressContentFolderPath,
+                                   fieldValueSizeThreshold, binaryFilesUploaded.getCurrentView());
+        }
+        fileNames.add(partName);
+        progress.documentWritten();
+        updateProgress();
+    }
+
+    @Override
+    public boolean writeDocument(final String partName, final DocumentBuffer document, final Runnable onWritable)
+        throws StagingException, InvalidBatchException
+    {
+        LOGGER.debug("Part type: document; field name: {}", partName);
+        if (parallelDocumentWriter == null) {
+            // Without a document processing pool, the documents of the upload are processed one at a time on a separate thread
+            parallelDocumentWriter = new ParallelDocumentWriter(fileSystemDao.getAsyncDocumentProcessingExecutor(),
+                                                                subBatchWriter, 1, this::createDocumentBuffer);
+        }
+        final boolean writable = parallelDocumentWriter
+            .submitDocument(document,
+                            storageRefFolderPath,
+                            inprogressContentFolderPath,
+                            fieldValueSizeThreshold, binaryFilesUploaded.getCurrentView(),
+                            onWritable);
+        fileNames.add(partName);
+        progress.documentWritten();
+        updateProgress();
+        return writable;
+    }
+
+    @Override
+    public DocumentBuffer createDocumentBuffer()
+    {
+        return new DocumentBuffer(DOCUMENT_MEMORY_THRESHOLD, inProgressBatchFolderPath.toFile());
+    }
+
+    @Override
+    public OutputStream openLooseFile(final String partName) throws StagingException
+    {
+        LOGGER.debug("Part type: loose file; field name: {}", partName);
+        final String fileExtension = FilenameUtils.getExtension(partName);
+        final String targetFileName = fileExtension.isEmpty()
+            ? UUID.randomUUID().toString() : UUID.randomUUID().toString() + "." + fileExtension;
+        final File targetFile = inProgressBatchFolderPath.resolve(CONTENT_FILES).resolve(targetFileName).toFile();
+        LOGGER.debug("Reading loose file...");
+        final OutputStream fileStream;
+        try {
+            fileStream = looseFileWriteStrategy.openOutputStream(targetFile, false);
+        } catch (final IOException ex) {
+            throw new StagingException(ex);
+        }
+        final MessageDigest digest = contentStore == null ? null : contentStore.newDigest();
+        return new FilterOutputStream(digest == null ? fileStream : new DigestOutputStream(fileStream, digest))
+        {
+            private boolean closed = false;
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException
+            {
+                out.write(b, off, len);
+                looseFileBytesWritten += len;
+                updateProgress();
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                super.close();
+                LOGGER.debug("Loose file written to {}", targetFile);
+                final String storedFileName = digest == null
+                    ? targetFileName
+                    : contentStore.addFile(tenantId, targetFile.toPath(), digest.digest());
+                fileNames.add(storedFileName);
+                binaryFilesUploaded.put(partName, storedFileName);
+                progress.looseFileWritten();
+            }
+        };
+    }
+
+    @Override
+    public List<String> complete() throws StagingException, InvalidBatchException
+    {
+        if (parallelDocumentWriter != null) {
+            parallelDocumentWriter.flush();
+        }
+        try {
+            subBatchWriter.close();
+            progress.setSubbatches(subBatchWriter.getSubbatchesWritten());
+            subBatchWriter.getManifest().write(inProgressBatchFolderPath);
+        } catch (final Exception ex) {
+            throw new StagingException(ex);
+        }
+        completion.complete();
+        completed = true;
+        return fileNames;
+    }
+
+    @Override
+    public void close()
+    {
+        if (parallelDocumentWriter != null) {
+            parallelDocumentWriter.close();
+        }
+        try {
+            subBatchWriter.close();
+        } catch (final Exception ex) {
+            LOGGER.error("Failed to close subbatch file in [{}]", inProgressBatchFolderPath, ex);
+        }
+        if (!completed) {
+            fileSystemDao.cleanupInProgressBatch(inProgressBatchFolderPath.toFile());
+        }
+    }
+
+    private void updateProgress()
+    {
+        progress.setSubbatches(subBatchWriter.getSubbatchesWritten());
+        progressFile.update(subBatchWriter.getBytesWritten() + looseFileBytesWritten, subBatchWriter.getDocumentsWritten());
+    }
+
+    @FunctionalInterface
+    interface Completion
+    {
+        /**
+         * Makes the content of the in-progress folder available once everything has been written to it.
+         */
+        void complete() throws StagingException;
+    }
+}
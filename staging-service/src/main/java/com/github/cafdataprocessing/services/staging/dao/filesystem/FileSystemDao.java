@@ -18,69 +18,107 @@ package com.github.cafdataprocessing.services.staging.dao.filesystem;
 import com.github.cafdataprocessing.services.staging.BatchId;
 import com.github.cafdataprocessing.services.staging.TenantId;
 import com.github.cafdataprocessing.services.staging.dao.BatchDao;
+import com.github.cafdataprocessing.services.staging.dao.BatchUpload;
+import com.github.cafdataprocessing.services.staging.dao.UploadProgress;
 import com.github.cafdataprocessing.services.staging.dao.filesystem.statusreporting.BatchStatusProvider;
+import com.github.cafdataprocessing.services.staging.dao.filesystem.statusreporting.UploadProgressFile;
 import com.github.cafdataprocessing.services.staging.exceptions.BatchNotFoundException;
 import com.github.cafdataprocessing.services.staging.exceptions.IncompleteBatchException;
 import com.github.cafdataprocessing.services.staging.exceptions.InvalidBatchException;
-import com.github.cafdataprocessing.services.staging.exceptions.InvalidTenantIdException;
 import com.github.cafdataprocessing.services.staging.exceptions.StagingException;
+import com.github.cafdataprocessing.services.staging.exceptions.UploadSessionConflictException;
+import com.github.cafdataprocessing.services.staging.exceptions.UploadSessionNotFoundException;
+import com.github.cafdataprocessing.services.staging.models.BatchDetails;
+import com.github.cafdataprocessing.services.staging.models.BatchStatusEntry;
 import com.github.cafdataprocessing.services.staging.models.BatchStatusResponse;
+import com.github.cafdataprocessing.services.staging.models.UploadSession;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.Instant;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.UUID;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.apache.commons.fileupload2.core.FileItemInput;
 import org.apache.commons.fileupload2.core.FileItemInputIterator;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
 
 @EnableScheduling
-public class FileSystemDao implements BatchDao
+public class FileSystemDao implements BatchDao, AutoCloseable
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(FileSystemDao.class);
 
-    private static final String DOCUMENT_JSON_CONTENT = "application/document+json";
-
     private static final String CONTENT_FILES = "files";
 
     private final BatchPathProvider batchPathProvider;
     private final BatchStatusProvider batchStatusProvider;
     private final int subbatchSize;
+    private final long subbatchMaxBytes;
     private final String storagePath;
     private final String basePath;
     private final int fieldValueSizeThreshold;
-    private final long fileAgeThreshold;
     private final boolean skipBatchFileCleanup;
-
-    public FileSystemDao(final String basePath, final int subbatchSize,
-                         final String storagePath, final int fieldValueSizeThreshold,
-                         final long fileAgeThreshold, final boolean skipBatchFileCleanup)
+    private final ExecutorService documentProcessingExecutor;
+    private ExecutorService asyncDocumentProcessingExecutor;
+    private final int documentProcessingQueueSize;
+    private final FileWriteStrategy subbatchWriteStrategy;
+    private final FileWriteStrategy looseFileWriteStrategy;
+    private final ContentStore contentStore;
+    private final boolean compressSubbatches;
+    private final Set<Path> busyUploadSessions;
+    private final TrashReaper trashReaper;
+    private final BatchIndex batchIndex;
+    private final StaleBatchCleaner staleBatchCleaner;
+
+    public FileSystemDao(final FileSystemDaoOptions options)
     {
-        batchPathProvider = new BatchPathProvider(basePath);
-        this.batchStatusProvider = new BatchStatusProvider(batchPathProvider);
-        this.subbatchSize = subbatchSize;
-        this.storagePath = storagePath;
-        this.basePath = basePath;
-        this.fieldValueSizeThreshold = fieldValueSizeThreshold;
-        this.skipBatchFileCleanup = skipBatchFileCleanup;
-        this.fileAgeThreshold = fileAgeThreshold;
+        this.basePath = options.getBasePath();
+        this.batchPathProvider = new BatchPathProvider(basePath);
+        this.batchStatusProvider = new BatchStatusProvider(batchPathProvider, options.getBatchStatusCacheTtl(),
+                                                           options.getBatchStatusThreads());
+        this.subbatchSize = options.getSubbatchSize();
+        this.subbatchMaxBytes = options.getSubbatchMaxBytes();
+        this.storagePath = options.getStoragePath();
+        this.fieldValueSizeThreshold = options.getFieldValueSizeThreshold();
+        this.skipBatchFileCleanup = options.getSkipBatchFileCleanup();
+        this.documentProcessingExecutor = options.getDocumentProcessingThreads() > 0
+            ? Executors.newFixedThreadPool(options.getDocumentProcessingThreads(), new BasicThreadFactory.Builder()
+                                           .namingPattern("document-processing-%d")
+                                           .daemon(true)
+                                           .build())
+            : null;
+        this.documentProcessingQueueSize = options.getDocumentProcessingQueueSize();
+        this.subbatchWriteStrategy = options.getSubbatchWriteStrategy();
+        this.looseFileWriteStrategy = options.getLooseFileWriteStrategy();
+        this.contentStore = options.getDeduplicateLooseFiles() ? new ContentStore(batchPathProvider) : null;
+        this.compressSubbatches = options.getCompressSubbatches();
+        this.busyUploadSessions = ConcurrentHashMap.newKeySet();
+        this.trashReaper = new TrashReaper(contentStore, options.getTrashReaperThreads());
+        this.batchIndex = options.getBatchIndexMaxAge() > 0 ? new BatchIndex(batchPathProvider, options.getBatchIndexMaxAge()) : null;
+        this.staleBatchCleaner = new StaleBatchCleaner(Paths.get(basePath), batchPathProvider, contentStore, trashReaper,
+                                                       options.getFileAgeThreshold(), options.getStaleBatchCleanupPolicy());
     }
 
     @Override
@@ -93,6 +131,14 @@ public class FileSystemDao implements BatchDao
 
         LOGGER.debug("Fetching batches starting with : {}", startsWith);
 
+        if (batchIndex != null) {
+            try {
+                return batchIndex.getBatches(tenantId, startsWith, from, limit);
+            } catch (final IOException ex) {
+                throw new StagingException(ex);
+            }
+        }
+
         final Path batchesPath = batchPathProvider.getPathForBatches(tenantId);
         if (!batchesPath.toFile().exists()) {
             return new ArrayList<>();
@@ -124,6 +170,53 @@ public class FileSystemDao implements BatchDao
         }
     }
 
+    /**
+     * Without the batch index, the completed folder is read in a single pass for each page, keeping only the first batches after
+     * the cursor rather than building and sorting the whole listing.
+     */
+    @Override
+    public Stream<String> streamBatches(final TenantId tenantId, final String startsWith, final BatchId after, final int limit)
+        throws StagingException
+    {
+        final String afterName = after == null ? null : after.getValue();
+        try {
+            if (batchIndex != null) {
+                return batchIndex.streamBatches(tenantId, startsWith, afterName, false).limit(limit);
+            }
+            return scanBatches(batchPathProvider.getPathForBatches(tenantId), startsWith, afterName, limit).stream();
+        } catch (final IOException ex) {
+            throw new StagingException(ex);
+        }
+    }
+
+    private static List<String> scanBatches(final Path batchesPath, final String startsWith, final String after, final int limit)
+        throws IOException
+    {
+        if (!Files.isDirectory(batchesPath)) {
+            return new ArrayList<>();
+        }
+        // Holds the first batches found so far, with the last of them at the head so that it can be replaced by an earlier one
+        final PriorityQueue<String> firstBatches = new PriorityQueue<>(limit, Comparator.reverseOrder());
+        try (final DirectoryStream<Path> entries = Files.newDirectoryStream(batchesPath)) {
+            for (final Path entry : entries) {
+                final String name = entry.getFileName().toString();
+                if ((startsWith != null && !name.startsWith(startsWith))
+                    || (after != null && name.compareTo(after) <= 0)
+                    || (firstBatches.size() == limit && name.compareTo(firstBatches.peek()) >= 0)
+                    || !Files.isDirectory(entry)) {
+                    continue;
+                }
+                if (firstBatches.size() == limit) {
+                    firstBatches.poll();
+                }
+                firstBatches.add(name);
+            }
+        }
+        final List<String> batches = new ArrayList<>(firstBatches);
+        Collections.sort(batches);
+        return batches;
+    }
+
     @Override
     public void deleteBatch(final TenantId tenantId, final BatchId batchId)
         throws BatchNotFoundException, StagingException
@@ -133,87 +226,282 @@ public class FileSystemDao implements BatchDao
             throw new BatchNotFoundException(batchId.getValue());
         }
 
+        final Path trashedBatchPath;
         try {
-            FileUtils.deleteDirectory(batchPath.toFile());
+            trashedBatchPath = moveToTrash(tenantId, batchId, batchPath);
+        } catch (final NoSuchFileException ex) {
+            throw new BatchNotFoundException(batchId.getValue());
         } catch (IOException ex) {
             throw new StagingException(ex);
         }
+        if (batchIndex != null) {
+            batchIndex.removed(tenantId, batchId);
+        }
+        trashReaper.reclaim(tenantId, trashedBatchPath);
     }
 
     @Override
     public List<String> saveFiles(final TenantId tenantId, final BatchId batchId, final FileItemInputIterator fileItemIterator)
         throws StagingException, InvalidBatchException, IncompleteBatchException
     {
+        return saveFiles(tenantId, batchId, fileItemIterator, new UploadProgress());
+    }
 
-        final Path inProgressBatchFolderPath = batchPathProvider.getInProgressPathForBatch(tenantId, batchId);
-        final Path storageRefFolderPath = BatchPathProvider.getStorageRefFolderPathForBatch(tenantId, batchId, this.storagePath, CONTENT_FILES);
-        final List<String> fileNames = new ArrayList<>();
-        final Map<String, String> binaryFilesUploaded = new HashMap<>();
-        try (final SubBatchWriter subBatchWriter = new SubBatchWriter(inProgressBatchFolderPath.toFile(), subbatchSize)) {
-            while (true) {
+    @Override
+    public List<String> saveFiles(
+        final TenantId tenantId,
+        final BatchId batchId,
+        final FileItemInputIterator fileItemIterator,
+        final UploadProgress progress
+    ) throws StagingException, InvalidBatchException, IncompleteBatchException
+    {
+        try (final BatchUpload batchUpload = startBatchUpload(tenantId, batchId, progress)) {
+            writeParts(batchUpload, fileItemIterator);
+            return batchUpload.complete();
+        } catch (IncompleteBatchException | InvalidBatchException | StagingException ex) {
+            LOGGER.error("Error saving batch", ex);
+            throw ex;
+        } catch (Throwable t) {
+            LOGGER.error("Error (throwable) saving batch", t);
+            throw new StagingException(t);
+        }
+    }
 
-                final FileItemInput fileItemInput;
-                try {
-                    LOGGER.debug("Retrieving next part...");
-                    if (!fileItemIterator.hasNext()) {
-                        LOGGER.debug("No further parts.");
-                        break;
-                    }
-                    fileItemInput = fileItemIterator.next();
-                } catch (final IOException ex) {
-                    throw new IncompleteBatchException(ex);
-                }
+    private static void writeParts(final BatchUpload batchUpload, final FileItemInputIterator fileItemIterator)
+        throws StagingException, InvalidBatchException, IncompleteBatchException
+    {
+        while (true) {
 
-                if (!fileItemInput.isFormField()) {
-                    LOGGER.error("A form field is required.");
-                    throw new InvalidBatchException("A form field is required.");
+            final FileItemInput fileItemInput;
+            try {
+                LOGGER.debug("Retrieving next part...");
+                if (!fileItemIterator.hasNext()) {
+                    LOGGER.debug("No further parts.");
+                    break;
                 }
+                fileItemInput = fileItemIterator.next();
+            } catch (final IOException ex) {
+                throw new IncompleteBatchException(ex);
+            }
 
-                final String filename = fileItemInput.getFieldName();
-                if (filename == null || filename.trim().length() == 0) {
-                    LOGGER.error("The form field name must be present and contain the filename.");
-                    throw new InvalidBatchException("The form field name must be present and contain the filename.");
+            if (!fileItemInput.isFormField()) {
+                LOGGER.error("A form field is required.");
+                throw new InvalidBatchException("A form field is required.");
+            }
+
+            final String filename = fileItemInput.getFieldName();
+            if (filename == null || filename.trim().length() == 0) {
+                LOGGER.error("The form field name must be present and contain the filename.");
+                throw new InvalidBatchException("The form field name must be present and contain the filename.");
+            }
+            final String contentType = fileItemInput.getContentType();
+            if (contentType.equalsIgnoreCase(BatchUpload.DOCUMENT_CONTENT_TYPE)) {
+                batchUpload.writeDocument(filename, fileItemInput::getInputStream);
+            } else {
+                try (final InputStream inStream = fileItemInput.getInputStream();
+                     final OutputStream outStream = batchUpload.openLooseFile(filename)) {
+                    IOUtils.copy(inStream, outStream);
+                } catch (IOException ex) {
+                    throw new StagingException(ex);
                 }
-                final String contentType = fileItemInput.getContentType();
-                if (contentType.equalsIgnoreCase(DOCUMENT_JSON_CONTENT)) {
-                    LOGGER.debug("Part type: document; field name: {}", filename);
-                    subBatchWriter
-                        .writeDocumentFile(fileItemInput::getInputStream,
-                                           storageRefFolderPath.toString(),
-                                           inProgressBatchFolderPath.resolve(CONTENT_FILES).toString(),
-                                           fieldValueSizeThreshold, binaryFilesUploaded);
-                    fileNames.add(filename);
-                } else {
-                    LOGGER.debug("Part type: loose file; field name: {}", filename);
-                    final String fileExtension = FilenameUtils.getExtension(filename);
-                    final String targetFileName = fileExtension.isEmpty()
-                        ? UUID.randomUUID().toString() : UUID.randomUUID().toString() + "." + fileExtension;
-                    final File targetFile = inProgressBatchFolderPath.resolve(CONTENT_FILES).resolve(targetFileName).toFile();
-                    LOGGER.debug("Reading loose file...");
-                    try (final InputStream inStream = fileItemInput.getInputStream()) {
-                        FileUtils.copyInputStreamToFile(inStream, targetFile);
-                        LOGGER.debug("Loose file written to {}", targetFile);
-                        fileNames.add(targetFileName);
-                        binaryFilesUploaded.put(filename, targetFileName);
-                    } catch (IOException ex) {
-                        throw new StagingException(ex);
-                    }
+            }
+        }
+    }
+
+    @Override
+    public BatchUpload startBatchUpload(final TenantId tenantId, final BatchId batchId) throws StagingException
+    {
+        return startBatchUpload(tenantId, batchId, new UploadProgress());
+    }
+
+    @Override
+    public BatchUpload startBatchUpload(final TenantId tenantId, final BatchId batchId, final UploadProgress progress)
+        throws StagingException
+    {
+        checkCompletedFolderFileStore(tenantId);
+        final Path inProgressBatchFolderPath = batchPathProvider.getInProgressPathForBatch(tenantId, batchId);
+        return createBatchUpload(tenantId, batchId, inProgressBatchFolderPath, new LooseFileIndex(), inProgressBatchFolderPath,
+                                 progress, () -> completeInProgressBatch(tenantId, inProgressBatchFolderPath, batchId));
+    }
+
+    private BatchUpload createBatchUpload(
+        final TenantId tenantId,
+        final BatchId batchId,
+        final Path inProgressBatchFolderPath,
+        final LooseFileIndex binaryFilesUploaded,
+        final Path progressFolderPath,
+        final UploadProgress progress,
+        final FileSystemBatchUpload.Completion completion
+    )
+    {
+        final Path storageRefFolderPath = BatchPathProvider.getStorageRefFolderPathForBatch(tenantId, batchId, this.storagePath, CONTENT_FILES);
+        return new FileSystemBatchUpload(this, tenantId, inProgressBatchFolderPath, storageRefFolderPath,
+                                         subbatchSize, subbatchMaxBytes, fieldValueSizeThreshold,
+                                         documentProcessingExecutor, documentProcessingQueueSize,
+                                         subbatchWriteStrategy, looseFileWriteStrategy, contentStore,
+                                         compressSubbatches, binaryFilesUploaded, progressFolderPath, progress,
+                                         completion);
+    }
+
+    @Override
+    public UploadSession openUploadSession(final TenantId tenantId, final BatchId batchId) throws StagingException
+    {
+        checkCompletedFolderFileStore(tenantId);
+        final String uploadId = BatchNameProvider.getUploadSessionId();
+        final Path sessionPath = batchPathProvider.getInProgressPathForUploadSession(tenantId, batchId, uploadId);
+        try {
+            UploadSessionFolder.create(sessionPath);
+        } catch (final IOException ex) {
+            throw new StagingException(ex);
+        }
+        LOGGER.info("Opened upload session {} for batch {} for {}", uploadId, batchId, tenantId);
+        return createUploadSession(uploadId, batchId, 0);
+    }
+
+    @Override
+    public UploadSession getUploadSession(final TenantId tenantId, final BatchId batchId, final String uploadId)
+        throws UploadSessionNotFoundException, StagingException
+    {
+        final UploadSessionFolder sessionFolder = getUploadSessionFolder(tenantId, batchId, uploadId);
+        try {
+            return createUploadSession(uploadId, batchId, sessionFolder.getChunksReceived());
+        } catch (final IOException ex) {
+            throw new StagingException(ex);
+        }
+    }
+
+    @Override
+    public void saveChunk(
+        final TenantId tenantId,
+        final BatchId batchId,
+        final String uploadId,
+        final int chunkNumber,
+        final FileItemInputIterator fileItemIterator
+    ) throws UploadSessionNotFoundException, UploadSessionConflictException, IncompleteBatchException, InvalidBatchException,
+             StagingException
+    {
+        saveChunk(tenantId, batchId, uploadId, chunkNumber, fileItemIterator, new UploadProgress());
+    }
+
+    @Override
+    public void saveChunk(
+        final TenantId tenantId,
+        final BatchId batchId,
+        final String uploadId,
+        final int chunkNumber,
+        final FileItemInputIterator fileItemIterator,
+        final UploadProgress progress
+    ) throws UploadSessionNotFoundException, UploadSessionConflictException, IncompleteBatchException, InvalidBatchException,
+             StagingException
+    {
+        final UploadSessionFolder sessionFolder = getUploadSessionFolder(tenantId, batchId, uploadId);
+        lockUploadSession(sessionFolder);
+        try {
+            final int chunksReceived = sessionFolder.getChunksReceived();
+            if (chunkNumber <= chunksReceived) {
+                LOGGER.info("Chunk {} of upload session {} has already been received", chunkNumber, uploadId);
+                return;
+            }
+            if (chunkNumber != chunksReceived + 1) {
+                throw new UploadSessionConflictException(
+                    "Chunk " + chunkNumber + " cannot be accepted until chunk " + (chunksReceived + 1) + " has been received");
+            }
+            final LooseFileIndex binaryFilesUploaded = sessionFolder.loadLooseFileIndex();
+            final int previouslyUploadedPosition = binaryFilesUploaded.getPosition();
+            final Path chunkFolderPath = sessionFolder.createPartialChunkFolder();
+            // Chunks are uploaded one at a time, so the progress of the current chunk is kept in the session folder
+            try (final BatchUpload chunkUpload = createBatchUpload(tenantId, batchId, chunkFolderPath, binaryFilesUploaded,
+                                                                   sessionFolder.getPath(), progress, () -> {
+                try {
+                    sessionFolder.acknowledgeChunk(
+                        chunkNumber, binaryFilesUploaded.getFilesAddedAfter(previouslyUploadedPosition));
+                } catch (final IOException ex) {
+                    throw new StagingException(ex);
                 }
+            })) {
+                writeParts(chunkUpload, fileItemIterator);
+                chunkUpload.complete();
             }
         } catch (IncompleteBatchException | InvalidBatchException | StagingException ex) {
-            LOGGER.error("Error saving batch", ex);
-            cleanupInProgressBatch(inProgressBatchFolderPath.toFile());
+            LOGGER.error("Error saving chunk {} of upload session {}", chunkNumber, uploadId, ex);
             throw ex;
-        } catch (Throwable t) {
-            LOGGER.error("Error (throwable) saving batch", t);
-            cleanupInProgressBatch(inProgressBatchFolderPath.toFile());
-            throw new StagingException(t);
+        } catch (IOException ex) {
+            throw new StagingException(ex);
+        } finally {
+            unlockUploadSession(sessionFolder);
         }
-        completeInProgressBatch(tenantId, inProgressBatchFolderPath, batchId);
-        return fileNames;
     }
 
-    private void cleanupInProgressBatch(final File inProgressBatchFolderPath)
+    @Override
+    public void commitUploadSession(final TenantId tenantId, final BatchId batchId, final String uploadId)
+        throws UploadSessionNotFoundException, UploadSessionConflictException, StagingException
+    {
+        final UploadSessionFolder sessionFolder = getUploadSessionFolder(tenantId, batchId, uploadId);
+        lockUploadSession(sessionFolder);
+        try {
+            sessionFolder.mergeChunks();
+            completeInProgressBatch(tenantId, sessionFolder.getPath(), batchId);
+        } catch (final IOException ex) {
+            throw new StagingException(ex);
+        } finally {
+            unlockUploadSession(sessionFolder);
+        }
+    }
+
+    @Override
+    public void abandonUploadSession(final TenantId tenantId, final BatchId batchId, final String uploadId)
+        throws UploadSessionNotFoundException, UploadSessionConflictException, StagingException
+    {
+        final UploadSessionFolder sessionFolder = getUploadSessionFolder(tenantId, batchId, uploadId);
+        lockUploadSession(sessionFolder);
+        try {
+            trashReaper.reclaim(tenantId, moveToTrash(tenantId, batchId, sessionFolder.getPath()));
+        } catch (final IOException ex) {
+            throw new StagingException(ex);
+        } finally {
+            unlockUploadSession(sessionFolder);
+        }
+    }
+
+    private UploadSessionFolder getUploadSessionFolder(final TenantId tenantId, final BatchId batchId, final String uploadId)
+        throws UploadSessionNotFoundException
+    {
+        if (!BatchNameProvider.isUploadSessionId(uploadId)) {
+            throw new UploadSessionNotFoundException(uploadId);
+        }
+        final Path sessionPath = batchPathProvider.getInProgressPathForUploadSession(tenantId, batchId, uploadId);
+        if (!UploadSessionFolder.exists(sessionPath)) {
+            throw new UploadSessionNotFoundException(uploadId);
+        }
+        return new UploadSessionFolder(sessionPath);
+    }
+
+    /**
+     * Prevents concurrent requests to this service from writing to the same upload session.
+     */
+    private void lockUploadSession(final UploadSessionFolder sessionFolder) throws UploadSessionConflictException
+    {
+        if (!busyUploadSessions.add(sessionFolder.getPath())) {
+            throw new UploadSessionConflictException(
+                "Upload session is being used by another request: " + sessionFolder.getPath().getFileName());
+        }
+    }
+
+    private void unlockUploadSession(final UploadSessionFolder sessionFolder)
+    {
+        busyUploadSessions.remove(sessionFolder.getPath());
+    }
+
+    private static UploadSession createUploadSession(final String uploadId, final BatchId batchId, final int chunksReceived)
+    {
+        final UploadSession uploadSession = new UploadSession();
+        uploadSession.setUploadId(uploadId);
+        uploadSession.setBatchId(batchId.getValue());
+        uploadSession.setChunksReceived(chunksReceived);
+        return uploadSession;
+    }
+
+    void cleanupInProgressBatch(final File inProgressBatchFolderPath)
     {
 
         try {
@@ -226,67 +514,122 @@ public class FileSystemDao implements BatchDao
         }
     }
 
-    private void completeInProgressBatch(final TenantId tenantId, final Path inProgressBatchFolderPath, final BatchId batchId)
+    /**
+     * Moves the in-progress folder of a batch into the completed folder with a single rename, so that the batch appears complete
+     * at once and no data is copied. A batch which was previously uploaded is first renamed into the trash folder of the tenant
+     * and is reclaimed once the new batch has taken its place, so readers are only without the batch between the two renames.
+     */
+    void completeInProgressBatch(final TenantId tenantId, final Path inProgressBatchFolderPath, final BatchId batchId)
         throws StagingException
     {
         LOGGER.info("Completing batch with id {} for {}...", batchId, tenantId);
 
         final Path batchFolder = batchPathProvider.getPathForBatch(tenantId, batchId);
-        if (batchFolder.toFile().exists()) {
-            LOGGER.warn("Batch {} has been previously uploaded.  Removing previously uploaded batch...", batchId);
-            try {
-                FileUtils.deleteDirectory(batchFolder.toFile());
-            } catch (IOException ex) {
-                LOGGER.error(String.format("Failed to delete existing batch [%s]", batchId));
-                throw new StagingException(ex);
+        final Path replacedBatchFolder;
+        try {
+            UploadProgressFile.delete(inProgressBatchFolderPath);
+            BatchSummary.create(inProgressBatchFolderPath).write(inProgressBatchFolderPath);
+            Files.createDirectories(batchFolder.getParent());
+            if (Files.exists(batchFolder)) {
+                LOGGER.warn("Batch {} has been previously uploaded.  Replacing previously uploaded batch...", batchId);
+                replacedBatchFolder = moveToTrash(tenantId, batchId, batchFolder);
+            } else {
+                replacedBatchFolder = null;
             }
+        } catch (final AtomicMoveNotSupportedException ex) {
+            throw new StagingException("The trash folder is not on the same file system as the completed folder", ex);
+        } catch (final IOException ex) {
+            LOGGER.error(String.format("Failed to move existing batch [%s] to the trash folder", batchId));
+            throw new StagingException(ex);
         }
 
         LOGGER.debug("Moving {} to completed folder...", batchId);
 
         try {
-            FileUtils.moveDirectory(inProgressBatchFolderPath.toFile(), batchFolder.toFile());
-        } catch (IOException ex) {
+            Files.move(inProgressBatchFolderPath, batchFolder, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException ex) {
             LOGGER.error(String.format("Failed to move in progress batch [%s]", batchId));
-            throw new StagingException(ex);
+            if (replacedBatchFolder != null) {
+                restoreBatchFromTrash(replacedBatchFolder, batchFolder);
+            }
+            throw ex instanceof AtomicMoveNotSupportedException
+                ? new StagingException("The in-progress folder is not on the same file system as the completed folder", ex)
+                : new StagingException(ex);
+        }
+        if (batchIndex != null) {
+            batchIndex.added(tenantId, batchId);
+        }
+
+        if (replacedBatchFolder != null) {
+            trashReaper.reclaim(tenantId, replacedBatchFolder);
         }
 
         LOGGER.debug("Batch {} completed successfully.", batchId);
     }
 
     /**
-     *
+     * Renames a folder into the trash folder of the tenant, from where it is removed by the trash reaper.
      */
-    @Scheduled(fixedDelayString = "${staging.fileCleanUpInterval}")
-    @Override
-    public void cleanUpStaleInprogressBatches()
+    private Path moveToTrash(final TenantId tenantId, final BatchId batchId, final Path folder) throws IOException
+    {
+        final Path trashFolder = batchPathProvider.getTenantTrashDirectory(tenantId);
+        Files.createDirectories(trashFolder);
+        final Path trashedFolder = trashFolder.resolve(BatchNameProvider.getBatchDirectoryName(batchId));
+        Files.move(folder, trashedFolder, StandardCopyOption.ATOMIC_MOVE);
+        return trashedFolder;
+    }
+
+    private static void restoreBatchFromTrash(final Path trashedBatchFolder, final Path batchFolder)
     {
-        if (skipBatchFileCleanup) {
-            return;
+        try {
+            Files.move(trashedBatchFolder, batchFolder, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException ex) {
+            LOGGER.error("Failed to restore replaced batch from {}", trashedBatchFolder, ex);
         }
-        // "Each mapped stream is closed after its contents have been placed into this stream."-
-        try (final Stream<Path> batchesToClean = Files.list(Paths.get(basePath))
-            .map(p -> getTenantInprogressDirectorySafely(p.getFileName().toString()))
-            .flatMap(p -> getAllBatchFilesForAllDirectories(p.get()))
-            .filter(p -> BatchNameProvider.validateFileName(p.getFileName().toString()))
-            .filter(p -> shouldDelete(p.getFileName().toString()))
-            .filter(p -> checkAllSubfilesSafely(p))) {
+    }
 
-            final Iterator<Path> paths = batchesToClean.iterator();
-            while (paths.hasNext()) {
-                final Path path = paths.next();
-                try {
-                    FileUtils.deleteDirectory(path.toFile());
-                } catch (final IOException | IllegalArgumentException ex) {
-                    LOGGER.error("Unable to delete directory {}", path);
-                    LOGGER.debug("An error occured while attempting to delete folder {}", path, ex);
-                }
+    /**
+     * Batches are completed by renaming their in-progress folder, which is only possible within a file system, so an upload is
+     * refused before any of it is read if the completed folder of the tenant is on a different file system.
+     */
+    private void checkCompletedFolderFileStore(final TenantId tenantId) throws StagingException
+    {
+        final Path inProgressFolder = batchPathProvider.getTenantInprogressDirectory(tenantId);
+        final Path completedFolder = batchPathProvider.getPathForBatches(tenantId);
+        try {
+            Files.createDirectories(inProgressFolder);
+            Files.createDirectories(completedFolder);
+            if (!Files.getFileStore(inProgressFolder).equals(Files.getFileStore(completedFolder))) {
+                LOGGER.error("The in-progress folder {} is not on the same file system as the completed folder {}",
+                             inProgressFolder, completedFolder);
+                throw new StagingException("The in-progress folder is not on the same file system as the completed folder");
             }
         } catch (final IOException ex) {
-            LOGGER.error("An exception occured trying to read the files in the base directory.", ex);
+            throw new StagingException(ex);
         }
     }
 
+    /**
+     * Picks up the trash folders of the tenants and removes abandoned in-progress batches. Each run carries on from the last
+     * tenant cleaned up by the previous run.
+     */
+    @Scheduled(fixedDelayString = "${staging.fileCleanUpInterval}")
+    @Override
+    public void cleanUpStaleInprogressBatches()
+    {
+        try {
+            staleBatchCleaner.run(!skipBatchFileCleanup);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public long getPendingReclaimBytes()
+    {
+        return trashReaper.getPendingReclaimBytes();
+    }
+
     @Override
     public BatchStatusResponse getBatchStatus(final TenantId tenantId, final BatchId batchId)
         throws BatchNotFoundException, StagingException, InterruptedException
@@ -294,63 +637,66 @@ public class FileSystemDao implements BatchDao
         return batchStatusProvider.getStatus(tenantId, batchId);
     }
 
-    private boolean checkAllSubfilesSafely(final Path path)
+    @Override
+    public List<BatchStatusEntry> getBatchStatuses(final TenantId tenantId, final List<BatchId> batchIds)
+        throws StagingException, InterruptedException
     {
-        try {
-            return Files.list(path)
-                .filter(p -> BatchNameProvider.validateFileName(p.getFileName().toString()))
-                .filter(p -> !shouldDelete(p.getFileName().toString()))
-                .collect(Collectors.toList())
-                .isEmpty();
-        } catch (final IOException ex) {
-            LOGGER.error("Unable to open directory {}", path, ex);
-            return false;
-        }
+        return batchStatusProvider.getStatuses(tenantId, batchIds);
     }
 
-    /**
-     * Obtain a path to the tenants in_progress folder, if the string provided is not a valid tenant id this method will return an empty
-     * Optional
-     *
-     * @param tenantIdFolderName The name of the tenant
-     * @return An Optional of paths to the tenants in_progress folder
-     */
-    private Optional<Path> getTenantInprogressDirectorySafely(final String tenantIdFolderName)
+    @Override
+    public BatchDetails getBatchDetails(final TenantId tenantId, final BatchId batchId)
+        throws BatchNotFoundException, StagingException
     {
+        final Path batchFolder = batchPathProvider.getPathForBatch(tenantId, batchId);
         try {
-            final TenantId tenantId = new TenantId(tenantIdFolderName);
-            return Optional.ofNullable(batchPathProvider.getTenantInprogressDirectory(tenantId));
-        } catch (final InvalidTenantIdException ex) {
-            LOGGER.debug("Ignoring folder {} as it does not represent a valid tenantId.", tenantIdFolderName);
-            return Optional.empty();
+            return BatchSummary.readOrMeasure(batchFolder).toBatchDetails(batchId.getValue());
+        } catch (final NoSuchFileException ex) {
+            throw new BatchNotFoundException(batchId.getValue());
+        } catch (final IOException ex) {
+            throw new StagingException(ex);
         }
     }
 
     /**
-     * Returns a list of the path to all sub files in all folders provide
-     *
-     * @param tenantFolders List of Path objects that represent all current tenant in_progress folders
-     * @return return a Stream of paths to all subfiles under all folders provided
+     * Returns the pool on which documents handed to an upload without waiting for them to be written are processed. If no
+     * document processing threads are configured, a pool is started the first time one is needed, as the caller cannot be kept
+     * waiting while the document is processed.
      */
-    private Stream<Path> getAllBatchFilesForAllDirectories(final Path tenantFolder)
+    synchronized ExecutorService getAsyncDocumentProcessingExecutor()
     {
-        try {
-            return Files.list(tenantFolder);
-        } catch (final IOException ex) {
-            LOGGER.error("Unable to list files in directory {}", tenantFolder, ex);
-            return Stream.empty();
+        if (documentProcessingExecutor != null) {
+            return documentProcessingExecutor;
         }
+        if (asyncDocumentProcessingExecutor == null) {
+            asyncDocumentProcessingExecutor = Executors.newCachedThreadPool(new BasicThreadFactory.Builder()
+                                                                            .namingPattern("async-document-processing-%d")
+                                                                            .daemon(true)
+                                                                            .build());
+        }
+        return asyncDocumentProcessingExecutor;
     }
 
     /**
-     * Determines if the file was created longer ago than the file age threshold
-     *
-     * @param filename A filename to be used to obtain the file creation time
-     * @return true if file creation time is longer than the file age threshold ago
+     * Stops the threads used by this DAO. Uploads which are still in progress fail, and folders waiting to be removed are picked
+     * up by the scheduled clean up of the next instance.
      */
-    private boolean shouldDelete(final String filename)
+    @Override
+    public void close()
     {
-        final long fileCreationTime = BatchNameProvider.getFileCreationTime(filename);
-        return (Instant.now().toEpochMilli() - fileAgeThreshold) >= fileCreationTime;
+        if (documentProcessingExecutor != null) {
+            documentProcessingExecutor.shutdownNow();
+        }
+        synchronized (this) {
+            if (asyncDocumentProcessingExecutor != null) {
+                asyncDocumentProcessingExecutor.shutdownNow();
+            }
+        }
+        staleBatchCleaner.close();
+        trashReaper.close();
+        batchStatusProvider.close();
+        if (batchIndex != null) {
+            batchIndex.close();
+        }
     }
 }
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem;
+
+import java.util.Objects;
+
+/*
+ * This class holds the settings of a FileSystemDao. Settings which are not given to the builder take the same values as the
+ * service's configuration defaults, except that no background threads, batch index or status cache are used unless asked for.
+ */
+public final class FileSystemDaoOptions
+{
+    private final String basePath;
+    private final String storagePath;
+    private final int subbatchSize;
+    private final long subbatchMaxBytes;
+    private final int fieldValueSizeThreshold;
+    private final long fileAgeThreshold;
+    private final boolean skipBatchFileCleanup;
+    private final int documentProcessingThreads;
+    private final int documentProcessingQueueSize;
+    private final FileWriteStrategy subbatchWriteStrategy;
+    private final FileWriteStrategy looseFileWriteStrategy;
+    private final boolean deduplicateLooseFiles;
+    private final boolean compressSubbatches;
+    private final int trashReaperThreads;
+    private final long batchIndexMaxAge;
+    private final long batchStatusCacheTtl;
+    private final int batchStatusThreads;
+    private final StaleBatchCleanupPolicy staleBatchCleanupPolicy;
+
+    private FileSystemDaoOptions(final Builder builder)
+    {
+        this.basePath = builder.basePath;
+        this.storagePath = builder.storagePath;
+        this.subbatchSize = builder.subbatchSize;
+        this.subbatchMaxBytes = builder.subbatchMaxBytes;
+        this.fieldValueSizeThreshold = builder.fieldValueSizeThreshold;
+        this.fileAgeThreshold = builder.fileAgeThreshold;
+        this.skipBatchFileCleanup = builder.skipBatchFileCleanup;
+        this.documentProcessingThreads = builder.documentProcessingThreads;
+        this.documentProcessingQueueSize = builder.documentProcessingQueueSize;
+        this.subbatchWriteStrategy = builder.subbatchWriteStrategy;
+        this.looseFileWriteStrategy = builder.looseFileWriteStrategy;
+        this.deduplicateLooseFiles = builder.deduplicateLooseFiles;
+        this.compressSubbatches = builder.compressSubbatches;
+        this.trashReaperThreads = builder.trashReaperThreads;
+        this.batchIndexMaxAge = builder.batchIndexMaxAge;
+        this.batchStatusCacheTtl = builder.batchStatusCacheTtl;
+        this.batchStatusThreads = builder.batchStatusThreads;
+        this.staleBatchCleanupPolicy = builder.staleBatchCleanupPolicy;
+    }
+
+    public String getBasePath()
+    {
+        return basePath;
+    }
+
+    public String getStoragePath()
+    {
+        return storagePath;
+    }
+
+    public int getSubbatchSize()
+    {
+        return subbatchSize;
+    }
+
+    public long getSubbatchMaxBytes()
+    {
+        return subbatchMaxBytes;
+    }
+
+    public int getFieldValueSizeThreshold()
+    {
+        return fieldValueSizeThreshold;
+    }
+
+    public long getFileAgeThreshold()
+    {
+        return fileAgeThreshold;
+    }
+
+    public boolean getSkipBatchFileCleanup()
+    {
+        return skipBatchFileCleanup;
+    }
+
+    public int getDocumentProcessingThreads()
+    {
+        return documentProcessingThreads;
+    }
+
+    public int getDocumentProcessingQueueSize()
+    {
+        return documentProcessingQueueSize;
+    }
+
+    public FileWriteStrategy getSubbatchWriteStrategy()
+    {
+        return subbatchWriteStrategy;
+    }
+
+    public FileWriteStrategy getLooseFileWriteStrategy()
+    {
+        return looseFileWriteStrategy;
+    }
+
+    public boolean getDeduplicateLooseFiles()
+    {
+        return deduplicateLooseFiles;
+    }
+
+    public boolean getCompressSubbatches()
+    {
+        return compressSubbatches;
+    }
+
+    public int getTrashReaperThreads()
+    {
+        return trashReaperThreads;
+    }
+
+    public long getBatchIndexMaxAge()
+    {
+        return batchIndexMaxAge;
+    }
+
+    public long getBatchStatusCacheTtl()
+    {
+        return batchStatusCacheTtl;
+    }
+
+    public int getBatchStatusThreads()
+    {
+        return batchStatusThreads;
+    }
+
+    public StaleBatchCleanupPolicy getStaleBatchCleanupPolicy()
+    {
+        return staleBatchCleanupPolicy;
+    }
+
+    public static final class Builder
+    {
+        private final String basePath;
+        private final String storagePath;
+        private int subbatchSize;
+        private long subbatchMaxBytes;
+        private int fieldValueSizeThreshold;
+        private long fileAgeThreshold;
+        private boolean skipBatchFileCleanup;
+        private int documentProcessingThreads;
+        private int documentProcessingQueueSize;
+        private FileWriteStrategy subbatchWriteStrategy;
+        private FileWriteStrategy looseFileWriteStrategy;
+        private boolean deduplicateLooseFiles;
+        private boolean compressSubbatches;
+        private int trashReaperThreads;
+        private long batchIndexMaxAge;
+        private long batchStatusCacheTtl;
+        private int batchStatusThreads;
+        private StaleBatchCleanupPolicy staleBatchCleanupPolicy;
+
+        /**
+         * @param basePath The folder holding the tenants' batches
+         * @param storagePath The path through which workers read the batches, which is used for references to loose files
+         */
+        public Builder(final String basePath, final String storagePath)
+        {
+            this.basePath = Objects.requireNonNull(basePath, "basePath");
+            this.storagePath = Objects.requireNonNull(storagePath, "storagePath");
+            this.subbatchSize = 250;
+            this.subbatchMaxBytes = 0;
+            this.fieldValueSizeThreshold = 8192;
+            this.fileAgeThreshold = 3600000;
+            this.skipBatchFileCleanup = false;
+            this.documentProcessingThreads = 0;
+            this.documentProcessingQueueSize = 16;
+            this.subbatchWriteStrategy = FileWriteStrategy.DEFAULT;
+            this.looseFileWriteStrategy = FileWriteStrategy.DEFAULT;
+            this.deduplicateLooseFiles = false;
+            this.compressSubbatches = false;
+            this.trashReaperThreads = 0;
+            this.batchIndexMaxAge = 0;
+            this.batchStatusCacheTtl = 0;
+            this.batchStatusThreads = 0;
+            this.staleBatchCleanupPolicy = StaleBatchCleanupPolicy.DEFAULT;
+        }
+
+        /**
+         * @param subbatchSize The maximum number of documents in a subbatch file, or 0 for no limit when subbatchMaxBytes is set
+         */
+        public Builder subbatchSize(final int subbatchSize)
+        {
+            this.subbatchSize = subbatchSize;
+            return this;
+        }
+
+        /**
+         * @param subbatchMaxBytes The number of bytes of minified documents after which a subbatch file is closed and a new one is
+         * started, or 0 to limit subbatch files by the number of documents alone
+         */
+        public Builder subbatchMaxBytes(final long subbatchMaxBytes)
+        {
+            this.subbatchMaxBytes = subbatchMaxBytes;
+            return this;
+        }
+
+        /**
+         * @param fieldValueSizeThreshold The size in bytes above which data field values are moved out to loose files
+         */
+        public Builder fieldValueSizeThreshold(final int fieldValueSizeThreshold)
+        {
+            this.fieldValueSizeThreshold = fieldValueSizeThreshold;
+            return this;
+        }
+
+        /**
+         * @param fileAgeThreshold The number of milliseconds after which an in-progress batch is removed by the scheduled clean up
+         */
+        public Builder fileAgeThreshold(final long fileAgeThreshold)
+        {
+            this.fileAgeThreshold = fileAgeThreshold;
+            return this;
+        }
+
+        /**
+         * @param skipBatchFileCleanup Whether the scheduled clean up leaves abandoned in-progress batches in place
+         */
+        public Builder skipBatchFileCleanup(final boolean skipBatchFileCleanup)
+        {
+            this.skipBatchFileCleanup = skipBatchFileCleanup;
+            return this;
+        }
+
+        /**
+         * @param documentProcessingThreads The number of threads used to validate and minify documents in parallel with reading the
+         * upload, or 0 to process each document on the thread reading the upload
+         * @param documentProcessingQueueSize The maximum number of documents per upload which may be buffered awaiting or
+         * undergoing processing when documentProcessingThreads is not 0
+         */
+        public Builder documentProcessing(final int documentProcessingThreads, final int documentProcessingQueueSize)
+        {
+            this.documentProcessingThreads = documentProcessingThreads;
+            this.documentProcessingQueueSize = documentProcessingQueueSize;
+            return this;
+        }
+
+        /**
+         * @param subbatchWriteStrategy How the subbatch files are written
+         */
+        public Builder subbatchWriteStrategy(final FileWriteStrategy subbatchWriteStrategy)
+        {
+            this.subbatchWriteStrategy = Objects.requireNonNull(subbatchWriteStrategy, "subbatchWriteStrategy");
+            return this;
+        }
+
+        /**
+         * @param looseFileWriteStrategy How loose files uploaded with a batch are written
+         */
+        public Builder looseFileWriteStrategy(final FileWriteStrategy looseFileWriteStrategy)
+        {
+            this.looseFileWriteStrategy = Objects.requireNonNull(looseFileWriteStrategy, "looseFileWriteStrategy");
+            return this;
+        }
+
+        /**
+         * @param deduplicateLooseFiles Whether loose files with the same content are stored only once for each tenant, with the
+         * batches sharing them through hard links
+         */
+        public Builder deduplicateLooseFiles(final boolean deduplicateLooseFiles)
+        {
+            this.deduplicateLooseFiles = deduplicateLooseFiles;
+            return this;
+        }
+
+        /**
+         * @param compressSubbatches Whether the subbatch files are gzip compressed
+         */
+        public Builder compressSubbatches(final boolean compressSubbatches)
+        {
+            this.compressSubbatches = compressSubbatches;
+            return this;
+        }
+
+        /**
+         * @param trashReaperThreads The number of threads used to remove deleted and replaced batches from the trash folders in the
+         * background, or 0 to remove them on the thread of the request which deleted or replaced them
+         */
+        public Builder trashReaperThreads(final int trashReaperThreads)
+        {
+            this.trashReaperThreads = trashReaperThreads;
+            return this;
+        }
+
+        /**
+         * @param batchIndexMaxAge The number of milliseconds after which the in-memory index of a tenant's completed batches is
+         * rebuilt from the completed folder, or 0 to read the completed folder each time batches are listed
+         */
+        public Builder batchIndexMaxAge(final long batchIndexMaxAge)
+        {
+            this.batchIndexMaxAge = batchIndexMaxAge;
+            return this;
+        }
+
+        /**
+         * @param batchStatusCacheTtl The number of milliseconds for which the status of a batch is reused for further status
+         * requests, or 0 to only share the status between requests which are made while it is being worked out
+         */
+        public Builder batchStatusCacheTtl(final long batchStatusCacheTtl)
+        {
+            this.batchStatusCacheTtl = batchStatusCacheTtl;
+            return this;
+        }
+
+        /**
+         * @param batchStatusThreads The number of threads on which the statuses of batches requested together are worked out, or 0
+         * to work them out one after another
+         */
+        public Builder batchStatusThreads(final int batchStatusThreads)
+        {
+            this.batchStatusThreads = batchStatusThreads;
+            return this;
+        }
+
+        /**
+         * @param staleBatchCleanupPolicy How much of the scheduled clean up is done by each run, and which tenants this instance
+         * cleans up
+         */
+        public Builder staleBatchCleanupPolicy(final StaleBatchCleanupPolicy staleBatchCleanupPolicy)
+        {
+            this.staleBatchCleanupPolicy = Objects.requireNonNull(staleBatchCleanupPolicy, "staleBatchCleanupPolicy");
+            return this;
+        }
+
+        public FileSystemDaoOptions build()
+        {
+            return new FileSystemDaoOptions(this);
+        }
+    }
+}
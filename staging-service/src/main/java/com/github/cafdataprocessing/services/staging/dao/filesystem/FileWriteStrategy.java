@@ -0,0 +1,198 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.apache.commons.io.FileUtils;
+
+/*
+ * This class determines how the files of a batch are written.
+ * STREAM writes through a BufferedOutputStream of the configured size.
+ * CHANNEL writes through a FileChannel from direct buffers of the configured size. The buffers are pooled between files, so the
+ * cost of allocating them is only paid once, and each full buffer is handed to the file system in a single call without first
+ * being copied out of the Java heap.
+ * For CHANNEL writes a preallocation size can also be given. The file is extended to that size when it is opened and truncated to
+ * the length actually written when it is closed, which on some file systems saves the file from being grown many times over.
+ */
+public final class FileWriteStrategy
+{
+    public enum Mode
+    {
+        STREAM,
+        CHANNEL
+    }
+
+    public static final FileWriteStrategy DEFAULT = new FileWriteStrategy(Mode.STREAM, 8192, 0);
+
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private final Mode mode;
+    private final int bufferSize;
+    private final long preallocationSize;
+    private final BlockingQueue<ByteBuffer> bufferPool;
+
+    /**
+     * @param mode How the files are written
+     * @param bufferSize The number of bytes which are collected before they are written to the file
+     * @param preallocationSize The size to extend a new file to before it is written, or 0 to not extend it; only used for
+     * CHANNEL writes
+     */
+    public FileWriteStrategy(final Mode mode, final int bufferSize, final long preallocationSize)
+    {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Write buffer size must be greater than 0: " + bufferSize);
+        }
+        this.mode = mode;
+        this.bufferSize = bufferSize;
+        this.preallocationSize = preallocationSize;
+        this.bufferPool = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+    }
+
+    /**
+     * Opens a file for writing, creating its parent folders if necessary.
+     *
+     * @param file the file to write
+     * @param append whether to add to the end of the file if it already exists rather than replace it; files are not preallocated
+     * when appending
+     * @return the stream for writing the file
+     */
+    public OutputStream openOutputStream(final File file, final boolean append) throws IOException
+    {
+        FileUtils.createParentDirectories(file);
+        if (mode == Mode.STREAM) {
+            return new BufferedOutputStream(new FileOutputStream(file, append), bufferSize);
+        }
+        final FileChannel channel = append
+            ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+            : FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                               StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            final boolean preallocate = !append && preallocationSize > 0;
+            if (preallocate) {
+                // Writing the last byte extends the file without moving the position that the content is written from
+                channel.write(ByteBuffer.allocate(1), preallocationSize - 1);
+            }
+            return new ChannelOutputStream(channel, preallocate);
+        } catch (final IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private ByteBuffer acquireBuffer()
+    {
+        final ByteBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    private void releaseBuffer(final ByteBuffer buffer)
+    {
+        buffer.clear();
+        // If the pool is already full the buffer is left to be garbage collected
+        bufferPool.offer(buffer);
+    }
+
+    private final class ChannelOutputStream extends OutputStream
+    {
+        private final FileChannel channel;
+        private final boolean preallocated;
+        private ByteBuffer buffer;
+
+        public ChannelOutputStream(final FileChannel channel, final boolean preallocated)
+        {
+            this.channel = channel;
+            this.preallocated = preallocated;
+            this.buffer = acquireBuffer();
+        }
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            ensureOpen();
+            if (!buffer.hasRemaining()) {
+                writeBuffer();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            ensureOpen();
+            int offset = off;
+            int remaining = len;
+            while (remaining > 0) {
+                if (!buffer.hasRemaining()) {
+                    writeBuffer();
+                }
+                final int count = Math.min(remaining, buffer.remaining());
+                buffer.put(b, offset, count);
+                offset += count;
+                remaining -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            ensureOpen();
+            writeBuffer();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (buffer == null) {
+                return;
+            }
+            try {
+                writeBuffer();
+                if (preallocated) {
+                    channel.truncate(channel.position());
+                }
+            } finally {
+                releaseBuffer(buffer);
+                buffer = null;
+                channel.close();
+            }
+        }
+
+        private void writeBuffer() throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void ensureOpen() throws IOException
+        {
+            if (buffer == null) {
+                throw new IOException("Stream closed");
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * This class records the loose files that have been uploaded as part of a batch, mapping the name they were uploaded with to the
+ * name they were stored under.
+ * Documents resolve their local_ref fields against a view of the index taken when the document is reached in the upload, so a
+ * document only sees the loose files which were uploaded before it, even when it is processed on another thread after later
+ * loose files have been added.
+ * Only the thread reading the upload may add files; views may be read from any thread.
+ * An upload session seeds the index of each chunk with the loose files from the chunks before it, and records the files which
+ * were added after that point alongside the chunk.
+ */
+final class LooseFileIndex
+{
+    private final Map<String, UploadedFile> uploadedFiles;
+    private int position;
+
+    public LooseFileIndex()
+    {
+        this.uploadedFiles = new ConcurrentHashMap<>();
+        this.position = 0;
+    }
+
+    public void put(final String uploadedFileName, final String targetFileName)
+    {
+        position++;
+        uploadedFiles.put(uploadedFileName, new UploadedFile(position, targetFileName, uploadedFiles.get(uploadedFileName)));
+    }
+
+    public Map<String, String> getCurrentView()
+    {
+        return new View(position);
+    }
+
+    public int getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * @return the latest name stored for each file which was uploaded after the given position
+     */
+    public Map<String, String> getFilesAddedAfter(final int position)
+    {
+        final Map<String, String> addedFiles = new HashMap<>();
+        for (final Map.Entry<String, UploadedFile> entry : uploadedFiles.entrySet()) {
+            if (entry.getValue().position > position) {
+                addedFiles.put(entry.getKey(), entry.getValue().targetFileName);
+            }
+        }
+        return addedFiles;
+    }
+
+    private static final class UploadedFile
+    {
+        private final int position;
+        private final String targetFileName;
+        private final UploadedFile previous;
+
+        public UploadedFile(final int position, final String targetFileName, final UploadedFile previous)
+        {
+            this.position = position;
+            this.targetFileName = targetFileName;
+            this.previous = previous;
+        }
+    }
+
+    private final class View extends AbstractMap<String, String>
+    {
+        private final int position;
+
+        public View(final int position)
+        {
+            this.position = position;
+        }
+
+        @Override
+        public String get(final Object uploadedFileName)
+        {
+            UploadedFile uploadedFile = uploadedFiles.get(uploadedFileName);
+            while (uploadedFile != null && uploadedFile.position > position) {
+                uploadedFile = uploadedFile.previous;
+            }
+            return uploadedFile == null ? null : uploadedFile.targetFileName;
+        }
+
+        @Override
+        public boolean containsKey(final Object uploadedFileName)
+        {
+            return get(uploadedFileName) != null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet()
+        {
+            final Map<String, String> visibleEntries = new HashMap<>();
+            for (final String uploadedFileName : uploadedFiles.keySet()) {
+                final String targetFileName = get(uploadedFileName);
+                if (targetFileName != null) {
+                    visibleEntries.put(uploadedFileName, targetFileName);
+                }
+            }
+            return visibleEntries.entrySet();
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.cafdataprocessing.services.staging.dao.InputStreamSupplier;
+import com.github.cafdataprocessing.services.staging.exceptions.IncompleteBatchException;
+import com.github.cafdataprocessing.services.staging.exceptions.InvalidBatchException;
+import com.github.cafdataprocessing.services.staging.exceptions.StagingException;
+import com.github.cafdataprocessing.services.staging.utils.DocumentBuffer;
+import com.github.cafdataprocessing.services.staging.utils.JsonMinifier;
+import com.microfocus.caf.worker.document.schema.validator.InvalidDocumentException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * This class validates and minifies the documents of a batch on a shared pool of threads.
+ * The thread reading the upload buffers each document and hands it to the pool, then continues reading the next part. Large
+ * documents are buffered on disk so that the documents in flight do not all have to fit in memory.
+ * Minified documents are passed to the SubBatchWriter in the order they were uploaded, so the subbatch files are the same as
+ * they would have been if the documents had been processed one at a time. Whichever pool thread finishes the oldest document in
+ * flight writes it, along with any later documents which have already finished.
+ * At most a configurable number of documents can be in flight for an upload. Once that limit is reached, writeDocumentFile waits
+ * for the oldest document to be written, whereas submitDocument returns straight away and runs a callback once there is room,
+ * so that a non-blocking reader can pause rather than tie up its thread.
+ */
+final class ParallelDocumentWriter implements AutoCloseable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelDocumentWriter.class);
+
+    // The pool threads are long-lived and shared by all uploads, so each keeps its own minifier
+    private static final ThreadLocal<JsonMinifier> jsonMinifier = ThreadLocal.withInitial(JsonMinifier::new);
+
+    private final ExecutorService documentProcessingExecutor;
+    private final SubBatchWriter subBatchWriter;
+    private final int maxDocumentsInFlight;
+    private final Supplier<DocumentBuffer> documentBufferFactory;
+    private final Deque<DocumentInFlight> documentsInFlight;
+    private Exception failure;
+    private Runnable writableCallback;
+    private volatile boolean aborted;
+
+    public ParallelDocumentWriter(
+        final ExecutorService documentProcessingExecutor,
+        final SubBatchWriter subBatchWriter,
+        final int maxDocumentsInFlight,
+        final Supplier<DocumentBuffer> documentBufferFactory
+    )
+    {
+        this.documentProcessingExecutor = documentProcessingExecutor;
+        this.subBatchWriter = subBatchWriter;
+        this.maxDocumentsInFlight = Math.max(1, maxDocumentsInFlight);
+        this.documentsInFlight = new ArrayDeque<>(this.maxDocumentsInFlight);
+        this.documentBufferFactory = documentBufferFactory;
+        this.failure = null;
+        this.writableCallback = null;
+        this.aborted = false;
+    }
+
+    public void writeDocumentFile(final InputStreamSupplier inputStreamSupplier,
+                                  final String storageRefFolderPath,
+                                  final String inprogressContentFolderPath,
+                                  final int fieldValueSizeThreshold,
+                                  final Map<String, String> binaryFilesUploaded)
+        throws StagingException, InvalidBatchException, IncompleteBatchException
+    {
+        final DocumentBuffer document = documentBufferFactory.get();
+        try (final InputStream inStream = inputStreamSupplier.get()) {
+            IOUtils.copy(inStream, document);
+            document.close();
+        } catch (final IOException ex) {
+            document.discard();
+            throw new IncompleteBatchException(ex);
+        }
+
+        synchronized (this) {
+            try {
+                while (documentsInFlight.size() >= maxDocumentsInFlight && failure == null) {
+                    wait();
+                }
+            } catch (final InterruptedException ex) {
+                document.discard();
+                Thread.currentThread().interrupt();
+                throw new StagingException(ex);
+            }
+            submit(document, storageRefFolderPath, inprogressContentFolderPath, fieldValueSizeThreshold, binaryFilesUploaded);
+        }
+    }
+
+    /**
+     * Hands a document which has already been buffered to the pool without waiting for it to be processed. The document is
+     * discarded once it has been processed, or straight away if it cannot be accepted.
+     *
+     * @return true if another document can be submitted straight away; false if the limit on the documents in flight has been
+     * reached, in which case onWritable is run on a pool thread once the oldest document has been written or has failed
+     */
+    public synchronized boolean submitDocument(final DocumentBuffer document,
+                                               final String storageRefFolderPath,
+                                               final String inprogressContentFolderPath,
+                                               final int fieldValueSizeThreshold,
+                                               final Map<String, String> binaryFilesUploaded,
+                                               final Runnable onWritable)
+        throws StagingException, InvalidBatchException
+    {
+        submit(document, storageRefFolderPath, inprogressContentFolderPath, fieldValueSizeThreshold, binaryFilesUploaded);
+        if (documentsInFlight.size() < maxDocumentsInFlight) {
+            return true;
+        }
+        writableCallback = onWritable;
+        return false;
+    }
+
+    private void submit(final DocumentBuffer document,
+                        final String storageRefFolderPath,
+                        final String inprogressContentFolderPath,
+                        final int fieldValueSizeThreshold,
+                        final Map<String, String> binaryFilesUploaded)
+        throws StagingException, InvalidBatchException
+    {
+        final DocumentInFlight documentInFlight = new DocumentInFlight();
+        try {
+            throwIfFailed();
+            documentsInFlight.add(documentInFlight);
+            documentProcessingExecutor.execute(() -> processDocument(
+                documentInFlight, document, storageRefFolderPath, inprogressContentFolderPath, fieldValueSizeThreshold,
+                binaryFilesUploaded));
+        } catch (final StagingException | InvalidBatchException | RuntimeException ex) {
+            documentsInFlight.remove(documentInFlight);
+            document.discard();
+            throw ex;
+        }
+    }
+
+    public synchronized void flush() throws StagingException, InvalidBatchException
+    {
+        try {
+            while (!documentsInFlight.isEmpty() && failure == null) {
+                wait();
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new StagingException(ex);
+        }
+        throwIfFailed();
+    }
+
+    private void throwIfFailed() throws StagingException, InvalidBatchException
+    {
+        if (failure instanceof InvalidBatchException) {
+            throw (InvalidBatchException) failure;
+        } else if (failure instanceof StagingException) {
+            throw (StagingException) failure;
+        } else if (failure != null) {
+            throw new StagingException(failure);
+        }
+    }
+
+    private void processDocument(final DocumentInFlight documentInFlight,
+                                 final DocumentBuffer document,
+                                 final String storageRefFolderPath,
+                                 final String inprogressContentFolderPath,
+                                 final int fieldValueSizeThreshold,
+                                 final Map<String, String> binaryFilesUploaded)
+    {
+        byte[] minifiedDocument = null;
+        Exception error = null;
+        try {
+            minifiedDocument = minifyDocument(
+                document, storageRefFolderPath, inprogressContentFolderPath, fieldValueSizeThreshold, binaryFilesUploaded);
+        } catch (final StagingException | InvalidBatchException | RuntimeException ex) {
+            error = ex;
+        }
+        final Runnable callback = documentProcessed(documentInFlight, minifiedDocument, error);
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Writes any documents at the head of the queue which have finished, and returns the callback waiting for room in the queue
+     * if there now is some.
+     */
+    private synchronized Runnable documentProcessed(final DocumentInFlight documentInFlight,
+                                                    final byte[] minifiedDocument,
+                                                    final Exception error)
+    {
+        documentInFlight.minifiedDocument = minifiedDocument;
+        documentInFlight.done = true;
+        if (error != null) {
+            if (aborted) {
+                LOGGER.debug("Discarding document which failed after the batch was abandoned", error);
+            } else if (failure == null) {
+                failure = error;
+            }
+        }
+        while (!documentsInFlight.isEmpty() && documentsInFlight.peek().done) {
+            final DocumentInFlight oldestDocument = documentsInFlight.remove();
+            if (failure == null && !aborted) {
+                try {
+                    subBatchWriter.writeMinifiedDocument(oldestDocument.minifiedDocument);
+                } catch (final StagingException ex) {
+                    failure = ex;
+                }
+            }
+        }
+        notifyAll();
+        if (writableCallback == null || (documentsInFlight.size() >= maxDocumentsInFlight && failure == null)) {
+            return null;
+        }
+        final Runnable callback = writableCallback;
+        writableCallback = null;
+        return callback;
+    }
+
+    private byte[] minifyDocument(final DocumentBuffer document,
+                                  final String storageRefFolderPath,
+                                  final String inprogressContentFolderPath,
+                                  final int fieldValueSizeThreshold,
+                                  final Map<String, String> binaryFilesUploaded)
+        throws StagingException, InvalidBatchException
+    {
+        try {
+            if (aborted) {
+                return null;
+            }
+            // Oversized field values are moved out to loose files, so the minified document is usually much smaller
+            final ByteArrayOutputStream outStream = new ByteArrayOutputStream((int) Math.min(document.size(), 8192));
+            try (final InputStream inStream = document.toInputStream()) {
+                jsonMinifier.get().validateAndMinify(inStream, outStream, storageRefFolderPath,
+                                                     inprogressContentFolderPath, fieldValueSizeThreshold, binaryFilesUploaded);
+            } catch (final JsonProcessingException | InvalidDocumentException ex) {
+                LOGGER.error("Error staging document", ex);
+                throw new InvalidBatchException(ex);
+            } catch (final IOException ioe) {
+                LOGGER.error("IOException when staging document", ioe);
+                throw new StagingException(ioe);
+            }
+            return outStream.toByteArray();
+        } finally {
+            document.discard();
+        }
+    }
+
+    /**
+     * Discards any documents which have not yet been written, waiting for those which are currently being processed to finish so
+     * that they do not write loose files into the in-progress folder after it has been cleaned up.
+     */
+    @Override
+    public synchronized void close()
+    {
+        aborted = true;
+        writableCallback = null;
+        boolean interrupted = false;
+        while (!documentsInFlight.isEmpty()) {
+            try {
+                wait();
+            } catch (final InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class DocumentInFlight
+    {
+        private byte[] minifiedDocument;
+        private boolean done;
+    }
+}
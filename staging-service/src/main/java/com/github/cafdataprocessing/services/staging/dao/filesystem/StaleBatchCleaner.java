@@ -0,0 +1,344 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem;
+
+import com.github.cafdataprocessing.services.staging.TenantId;
+import com.github.cafdataprocessing.services.staging.exceptions.InvalidTenantIdException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * This class carries out the scheduled clean up of the tenants: it picks up folders left in their trash folders, removes
+ * in-progress folders which have been abandoned, for example because the service was restarted part way through an upload, and
+ * removes stored content which only the abandoned folders referred to.
+ * An in-progress folder is abandoned if both its name and the names of the chunk folders within it are older than the file age
+ * threshold.
+ * The tenants are cleaned up in name order from a cursor kept in the base folder, so that a run which is limited to a number of
+ * tenants, or which is stopped by a restart, is carried on by the next run rather than starting again. The cursor goes back to
+ * the start once the last tenant has been cleaned up. Each shard of the tenants has its own cursor.
+ * Each listing of a folder and each file removed counts as one file system operation against the rate limit, which is shared by
+ * all of the threads of the clean up.
+ */
+final class StaleBatchCleaner implements AutoCloseable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(StaleBatchCleaner.class);
+
+    // Tenant ids cannot contain capital letters, so the cursor file is never taken for a tenant folder
+    private static final String CURSOR_FILE_PREFIX = "StaleBatchCleanup-";
+
+    private final Path basePath;
+    private final BatchPathProvider batchPathProvider;
+    private final ContentStore contentStore;
+    private final TrashReaper trashReaper;
+    private final long fileAgeThreshold;
+    private final StaleBatchCleanupPolicy policy;
+    private final Path cursorFile;
+    private final OperationRateLimiter rateLimiter;
+    private final ExecutorService executor;
+
+    public StaleBatchCleaner(
+        final Path basePath,
+        final BatchPathProvider batchPathProvider,
+        final ContentStore contentStore,
+        final TrashReaper trashReaper,
+        final long fileAgeThreshold,
+        final StaleBatchCleanupPolicy policy
+    )
+    {
+        this.basePath = basePath;
+        this.batchPathProvider = batchPathProvider;
+        this.contentStore = contentStore;
+        this.trashReaper = trashReaper;
+        this.fileAgeThreshold = fileAgeThreshold;
+        this.policy = policy;
+        this.cursorFile = basePath.resolve(CURSOR_FILE_PREFIX + policy.getShardIndex() + "-of-" + policy.getShardCount());
+        this.rateLimiter = new OperationRateLimiter(policy.getOperationsPerSecond());
+        this.executor = policy.getThreads() > 0
+            ? Executors.newFixedThreadPool(policy.getThreads(), new BasicThreadFactory.Builder()
+                                           .namingPattern("stale-batch-cleanup-%d")
+                                           .daemon(true)
+                                           .build())
+            : null;
+    }
+
+    /**
+     * Cleans up the next tenants of this instance's shard.
+     *
+     * @param removeStaleBatches whether abandoned in-progress folders are removed, or only the trash folders are picked up
+     */
+    public void run(final boolean removeStaleBatches) throws InterruptedException
+    {
+        final List<TenantId> tenants = listTenants();
+        final String cursor = readCursor();
+        final List<TenantId> remainingTenants = new ArrayList<>();
+        for (final TenantId tenantId : tenants) {
+            if (tenantId.getValue().compareTo(cursor) > 0) {
+                remainingTenants.add(tenantId);
+            }
+        }
+
+        final int tenantsPerRun = policy.getTenantsPerRun();
+        final int tenantCount = tenantsPerRun > 0 ? Math.min(tenantsPerRun, remainingTenants.size()) : remainingTenants.size();
+        LOGGER.debug("Cleaning up {} of {} tenants after '{}'", tenantCount, remainingTenants.size(), cursor);
+        for (final TenantId tenantId : remainingTenants.subList(0, tenantCount)) {
+            cleanUp(tenantId, removeStaleBatches);
+            writeCursor(tenantId.getValue());
+        }
+        if (tenantCount == remainingTenants.size()) {
+            resetCursor();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void cleanUp(final TenantId tenantId, final boolean removeStaleBatches) throws InterruptedException
+    {
+        trashReaper.reclaimAll(tenantId, batchPathProvider.getTenantTrashDirectory(tenantId));
+        if (!removeStaleBatches) {
+            return;
+        }
+        removeStaleBatches(tenantId);
+        if (contentStore != null) {
+            // Picks up content which was only referred to by abandoned in-progress batches
+            contentStore.removeUnreferencedEntries(tenantId);
+        }
+    }
+
+    private void removeStaleBatches(final TenantId tenantId) throws InterruptedException
+    {
+        final Path inProgressFolder = batchPathProvider.getTenantInprogressDirectory(tenantId);
+        if (!Files.isDirectory(inProgressFolder)) {
+            return;
+        }
+        final List<Future<?>> removals = new ArrayList<>();
+        try {
+            rateLimiter.acquire();
+            try (final DirectoryStream<Path> folders = Files.newDirectoryStream(inProgressFolder)) {
+                for (final Path folder : folders) {
+                    if (isStale(folder.getFileName().toString()) && isEveryEntryStale(folder)) {
+                        if (executor == null) {
+                            remove(folder);
+                        } else {
+                            removals.add(executor.submit(() -> remove(folder)));
+                        }
+                    }
+                }
+            } catch (final IOException ex) {
+                LOGGER.error("Unable to list in-progress folder {}", inProgressFolder, ex);
+            }
+            for (final Future<?> removal : removals) {
+                try {
+                    removal.get();
+                } catch (final ExecutionException ex) {
+                    LOGGER.error("Unexpected error removing stale batch in {}", inProgressFolder, ex.getCause());
+                }
+            }
+        } finally {
+            // Stops the remaining removals if the clean up has been interrupted
+            for (final Future<?> removal : removals) {
+                removal.cancel(true);
+            }
+        }
+    }
+
+    private boolean isEveryEntryStale(final Path folder) throws InterruptedException
+    {
+        rateLimiter.acquire();
+        try (final DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+            for (final Path entry : entries) {
+                final String name = entry.getFileName().toString();
+                if (BatchNameProvider.validateFileName(name) && !isStale(name)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (final IOException ex) {
+            LOGGER.error("Unable to open directory {}", folder, ex);
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the name starts with a time which is longer ago than the file age threshold
+     */
+    private boolean isStale(final String name)
+    {
+        return BatchNameProvider.validateFileName(name)
+            && Instant.now().toEpochMilli() - fileAgeThreshold >= BatchNameProvider.getFileCreationTime(name);
+    }
+
+    private void remove(final Path folder)
+    {
+        LOGGER.debug("Removing stale batch {}", folder);
+        try {
+            Files.walkFileTree(folder, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException
+                {
+                    acquireOperation();
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException
+                {
+                    if (exc != null) {
+                        throw exc;
+                    }
+                    acquireOperation();
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (final InterruptedIOException ex) {
+            LOGGER.debug("Removal of stale batch {} interrupted", folder);
+        } catch (final IOException ex) {
+            LOGGER.error("Unable to remove stale batch {}", folder, ex);
+        }
+    }
+
+    private void acquireOperation() throws InterruptedIOException
+    {
+        try {
+            rateLimiter.acquire();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * @return the tenants of this instance's shard, in name order
+     */
+    private List<TenantId> listTenants() throws InterruptedException
+    {
+        final List<TenantId> tenants = new ArrayList<>();
+        rateLimiter.acquire();
+        try (final DirectoryStream<Path> tenantFolders = Files.newDirectoryStream(basePath)) {
+            for (final Path tenantFolder : tenantFolders) {
+                final String tenantIdFolderName = tenantFolder.getFileName().toString();
+                try {
+                    final TenantId tenantId = new TenantId(tenantIdFolderName);
+                    if (policy.isInShard(tenantId.getValue())) {
+                        tenants.add(tenantId);
+                    }
+                } catch (final InvalidTenantIdException ex) {
+                    LOGGER.debug("Ignoring folder {} as it does not represent a valid tenantId.", tenantIdFolderName);
+                }
+            }
+        } catch (final IOException ex) {
+            LOGGER.error("An exception occured trying to read the tenant folders in the base directory.", ex);
+        }
+        Collections.sort(tenants);
+        return tenants;
+    }
+
+    /**
+     * @return the last tenant which was cleaned up, or an empty string if the clean up is starting from the first tenant
+     */
+    private String readCursor()
+    {
+        try {
+            return new String(Files.readAllBytes(cursorFile), StandardCharsets.UTF_8).trim();
+        } catch (final NoSuchFileException ex) {
+            return "";
+        } catch (final IOException ex) {
+            LOGGER.warn("Unable to read clean up cursor {}; starting from the first tenant", cursorFile, ex);
+            return "";
+        }
+    }
+
+    private void writeCursor(final String tenantId)
+    {
+        final Path tempFile = cursorFile.resolveSibling(cursorFile.getFileName() + ".tmp");
+        try {
+            Files.write(tempFile, tenantId.getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, cursorFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException ex) {
+            LOGGER.warn("Unable to write clean up cursor {}", cursorFile, ex);
+        }
+    }
+
+    private void resetCursor()
+    {
+        try {
+            Files.deleteIfExists(cursorFile);
+        } catch (final IOException ex) {
+            LOGGER.warn("Unable to reset clean up cursor {}", cursorFile, ex);
+        }
+    }
+
+    private static final class OperationRateLimiter
+    {
+        private final long intervalNanos;
+        private long nextPermitNanos;
+
+        public OperationRateLimiter(final int operationsPerSecond)
+        {
+            this.intervalNanos = operationsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / operationsPerSecond : 0;
+            this.nextPermitNanos = System.nanoTime();
+        }
+
+        /**
+         * Waits until the next operation is allowed. Operations which were not used while the clean up was idle are not saved up.
+         */
+        public void acquire() throws InterruptedException
+        {
+            if (intervalNanos == 0) {
+                return;
+            }
+            final long waitNanos;
+            synchronized (this) {
+                final long now = System.nanoTime();
+                final long permitNanos = Math.max(nextPermitNanos, now);
+                nextPermitNanos = permitNanos + intervalNanos;
+                waitNanos = permitNanos - now;
+            }
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem;
+
+/*
+ * This class determines how much of the scheduled clean up is done by each run, and by which instance of the service.
+ * Each run cleans up at most the given number of tenants, carrying on from where the last run stopped. The tenants can be split
+ * into shards, with each instance sharing the base folder given the number of shards and its own shard, so that each tenant is
+ * only cleaned up by one instance. The file system operations made by the clean up can be limited to a number per second, and
+ * the stale folders of a tenant are removed on a fixed number of threads.
+ */
+public final class StaleBatchCleanupPolicy
+{
+    public static final StaleBatchCleanupPolicy DEFAULT = new StaleBatchCleanupPolicy(0, 1, 0, 0, 0);
+
+    private final int tenantsPerRun;
+    private final int shardCount;
+    private final int shardIndex;
+    private final int threads;
+    private final int operationsPerSecond;
+
+    /**
+     * @param tenantsPerRun The maximum number of tenants cleaned up by each run, or 0 to clean up every tenant in each run
+     * @param shardCount The number of shards the tenants are split into
+     * @param shardIndex The shard of the tenants cleaned up by this instance, from 0 to one less than the number of shards
+     * @param threads The number of threads on which stale folders are removed, or 0 to remove them on the clean up thread
+     * @param operationsPerSecond The maximum number of file system operations made by the clean up each second, or 0 for no limit
+     */
+    public StaleBatchCleanupPolicy(
+        final int tenantsPerRun,
+        final int shardCount,
+        final int shardIndex,
+        final int threads,
+        final int operationsPerSecond
+    )
+    {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Clean up shard count must be at least 1: " + shardCount);
+        }
+        if (shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("Clean up shard index must be from 0 to " + (shardCount - 1) + ": " + shardIndex);
+        }
+        this.tenantsPerRun = tenantsPerRun;
+        this.shardCount = shardCount;
+        this.shardIndex = shardIndex;
+        this.threads = threads;
+        this.operationsPerSecond = operationsPerSecond;
+    }
+
+    public int getTenantsPerRun()
+    {
+        return tenantsPerRun;
+    }
+
+    public int getShardCount()
+    {
+        return shardCount;
+    }
+
+    public int getShardIndex()
+    {
+        return shardIndex;
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    public int getOperationsPerSecond()
+    {
+        return operationsPerSecond;
+    }
+
+    /**
+     * @return true if the tenant is cleaned up by this instance
+     */
+    public boolean isInShard(final String tenantId)
+    {
+        // String hash codes are the same in every JVM, so every instance agrees on the shard of each tenant
+        return Math.floorMod(tenantId.hashCode(), shardCount) == shardIndex;
+    }
+}
@@ -22,50 +22,101 @@ import com.github.cafdataprocessing.services.staging.exceptions.InvalidBatchExce
 import com.github.cafdataprocessing.services.staging.exceptions.StagingException;
 import com.github.cafdataprocessing.services.staging.utils.JsonMinifier;
 import com.microfocus.caf.worker.document.schema.validator.InvalidDocumentException;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /*
  * This class handles the sub-batching and storing of documents.
- * It opens a subbatch file with the following naming pattern "yyyyMMdd-HHmmssSSS-json.batch"
+ * It opens a subbatch file with the following naming pattern "yyyyMMdd-HHmmssSSS-json.batch", or "yyyyMMdd-HHmmssSSS-json.gz.batch"
+ * if the subbatch files are to be gzip compressed
  * It writes the metadata of each document family out into the subbatch file in minified json format.
  * When a configurable subbatch size is reached the subbatch file will be closed and a new one will be opened.
+ * The size can be limited by the number of documents, by the number of bytes of minified json written before compression, or by
+ * both, in which case whichever is reached first applies. A document is never split between subbatch files, so the byte limit
+ * is exceeded by the last document written to each file.
+ * The name, number of documents, length and checksum of each subbatch file are recorded as it is written, so that the manifest
+ * of the batch can be built without reading the files again.
  */
 public class SubBatchWriter implements AutoCloseable
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(SubBatchWriter.class);
+    private static final int GZIP_BUFFER_SIZE = 8192;
 
     private final File inProgressBatchFolder;
     private final int subbatchSize;
-    private OutputStream outStream;
+    private final long subbatchMaxBytes;
+    private final FileWriteStrategy writeStrategy;
+    private final boolean compress;
+    private final JsonMinifier jsonMinifier;
+    private final SubbatchManifest.Builder manifestBuilder;
+    private String subBatchFileName;
+    // Numbers the subbatch files in the order they are opened, so that their names sort in that order
+    private int subBatchSequenceNumber = 0;
+    private CountingOutputStream storedStream;
+    private CheckedOutputStream checkedStream;
+    // The counts are read to report progress while documents are being written by a ParallelDocumentWriter on another thread
+    private volatile CountingOutputStream outStream;
     //Track number of document files processed
-    private int count = 0;
+    private volatile int count = 0;
+    // Subbatch files which have been closed, and the documents and bytes of minified json in them
+    private volatile int closedSubbatches = 0;
+    private volatile long closedDocuments = 0;
+    private volatile long closedBytes = 0;
 
     public SubBatchWriter(final File inProgressBatchFolder, final int subbatchSize)
+    {
+        this(inProgressBatchFolder, subbatchSize, FileWriteStrategy.DEFAULT, false);
+    }
+
+    public SubBatchWriter(final File inProgressBatchFolder, final int subbatchSize, final FileWriteStrategy writeStrategy,
+                          final boolean compress)
+    {
+        this(inProgressBatchFolder, subbatchSize, 0, writeStrategy, compress);
+    }
+
+    /**
+     * @param subbatchSize The maximum number of documents in a subbatch file, or 0 for no limit when subbatchMaxBytes is set
+     * @param subbatchMaxBytes The number of bytes of minified json after which a subbatch file is closed, or 0 for no limit
+     */
+    public SubBatchWriter(final File inProgressBatchFolder, final int subbatchSize, final long subbatchMaxBytes,
+                          final FileWriteStrategy writeStrategy, final boolean compress)
     {
         this.inProgressBatchFolder = inProgressBatchFolder;
         this.subbatchSize = subbatchSize;
+        this.subbatchMaxBytes = subbatchMaxBytes;
+        this.writeStrategy = writeStrategy;
+        this.compress = compress;
+        this.jsonMinifier = new JsonMinifier();
+        this.manifestBuilder = new SubbatchManifest.Builder();
     }
 
     private void createSubBatchOutStream() throws StagingException
     {
         //Make a new subbatch file
-        final String subBatchFileName = BatchNameProvider.getSubBatchName();
-        final File subBatch = inProgressBatchFolder.toPath().resolve(subBatchFileName).toFile();
+        String fileName;
+        File subBatch;
+        do {
+            fileName = BatchNameProvider.getSubBatchName(compress, ++subBatchSequenceNumber);
+            subBatch = inProgressBatchFolder.toPath().resolve(fileName).toFile();
+        } while (subBatch.exists());
         LOGGER.debug("Created new subbatchFile : {} ", subBatch);
         //Open new stream to start writing to subbatch file
 
         try {
-            outStream = new BufferedOutputStream(new FileOutputStream(subBatch, true));
-        } catch (FileNotFoundException e) {
+            storedStream = new CountingOutputStream(writeStrategy.openOutputStream(subBatch, true));
+            checkedStream = new CheckedOutputStream(storedStream, new CRC32C());
+            outStream = new CountingOutputStream(compress ? new GZIPOutputStream(checkedStream, GZIP_BUFFER_SIZE) : checkedStream);
+            subBatchFileName = fileName;
+        } catch (IOException e) {
             throw new StagingException(e);
         }
     }
@@ -77,24 +128,12 @@ public class SubBatchWriter implements AutoCloseable
                                   final Map<String, String> binaryFilesUploaded)
         throws StagingException, InvalidBatchException, IncompleteBatchException
     {
-
-        if (count >= subbatchSize) {
-            //Close the stream for the current subbatch file
-            try {
-                close();
-            } catch (Exception e) {
-                throw new StagingException(e);
-            }
-        }
-
-        if (outStream == null) {
-            createSubBatchOutStream();
-        }
+        startDocument();
 
         try (final InputStream inStream = inputStreamSupplier.get()) {
             try {
-                JsonMinifier.validateAndMinifyJson(inStream, outStream, storageRefFolderPath,
-                                                   inprogressContentFolderPath, fieldValueSizeThreshold, binaryFilesUploaded);
+                jsonMinifier.validateAndMinify(inStream, outStream, storageRefFolderPath,
+                                               inprogressContentFolderPath, fieldValueSizeThreshold, binaryFilesUploaded);
                 count++;
             } catch (final JsonProcessingException | InvalidDocumentException ex) {
                 LOGGER.error("Error staging document", ex);
@@ -110,14 +149,95 @@ public class SubBatchWriter implements AutoCloseable
         LOGGER.trace("Wrote minified document to  subbatchFile");
     }
 
+    public void writeMinifiedDocument(final byte[] minifiedDocument) throws StagingException
+    {
+        startDocument();
+
+        try {
+            outStream.write(minifiedDocument);
+            count++;
+        } catch (final IOException ioe) {
+            LOGGER.error("IOException when staging document", ioe);
+            throw new StagingException(ioe);
+        }
+
+        LOGGER.trace("Wrote minified document to  subbatchFile");
+    }
+
+    private void startDocument() throws StagingException
+    {
+        if (isSubbatchFull()) {
+            //Close the stream for the current subbatch file
+            try {
+                close();
+            } catch (Exception e) {
+                throw new StagingException(e);
+            }
+        }
+
+        if (outStream == null) {
+            createSubBatchOutStream();
+        }
+    }
+
+    private boolean isSubbatchFull()
+    {
+        if (outStream == null) {
+            return false;
+        }
+        if (subbatchMaxBytes > 0) {
+            return outStream.getByteCount() >= subbatchMaxBytes || (subbatchSize > 0 && count >= subbatchSize);
+        }
+        return count >= subbatchSize;
+    }
+
+    /**
+     * Returns the manifest of the subbatch files which have been closed.
+     */
+    public SubbatchManifest getManifest()
+    {
+        return manifestBuilder.build();
+    }
+
+    /**
+     * Returns the number of documents which have been written so far.
+     */
+    public long getDocumentsWritten()
+    {
+        return closedDocuments + count;
+    }
+
+    /**
+     * Returns the number of subbatch files which have been started so far.
+     */
+    public int getSubbatchesWritten()
+    {
+        return closedSubbatches + (outStream == null ? 0 : 1);
+    }
+
+    /**
+     * Returns the number of bytes of minified json which have been written so far, before any compression.
+     */
+    public long getBytesWritten()
+    {
+        final CountingOutputStream stream = outStream;
+        return closedBytes + (stream == null ? 0 : stream.getByteCount());
+    }
+
     @Override
     public void close() throws Exception
     {
         if (outStream != null) {
             LOGGER.debug("Closing subbatchFile");
+            final int documentCount = count;
             count = 0;
             outStream.flush();
             outStream.close();
+            closedSubbatches++;
+            closedDocuments += documentCount;
+            closedBytes += outStream.getByteCount();
+            manifestBuilder.add(subBatchFileName, documentCount, storedStream.getByteCount(),
+                                checkedStream.getChecksum().getValue());
         }
         outStream = null;
     }
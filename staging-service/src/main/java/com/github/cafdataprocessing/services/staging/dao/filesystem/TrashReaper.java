@@ -0,0 +1,210 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem;
+
+import com.github.cafdataprocessing.services.staging.TenantId;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Batches which are deleted or replaced are renamed into the trash folder of their tenant, which takes the same time whatever
+ * their size, and this class then removes them in the background.
+ * Each folder is measured when it is handed to the reaper, so that the space which is about to be freed is reported while the
+ * folder waits for a thread as well as while it is being removed, and the count falls as its files are removed. Files which are
+ * hard linked from elsewhere, such as loose files shared through the content store, free no space and are not counted.
+ * A fixed number of threads removes the folders, each one file at a time, which bounds the I/O spent on removing them. With no
+ * threads the folders are removed on the thread which trashed them.
+ * Folders left in a trash folder, for example when the service was restarted before they were removed, are picked up when the
+ * trash folders are scanned by the scheduled clean up.
+ */
+final class TrashReaper implements AutoCloseable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(TrashReaper.class);
+
+    private final ContentStore contentStore;
+    private final ExecutorService executor;
+    private final Set<Path> pendingFolders;
+    private final AtomicLong pendingBytes;
+
+    public TrashReaper(final ContentStore contentStore, final int threads)
+    {
+        this.contentStore = contentStore;
+        this.executor = threads > 0
+            ? Executors.newFixedThreadPool(threads, new BasicThreadFactory.Builder()
+                                           .namingPattern("trash-reaper-%d")
+                                           .daemon(true)
+                                           .build())
+            : null;
+        this.pendingFolders = ConcurrentHashMap.newKeySet();
+        this.pendingBytes = new AtomicLong();
+    }
+
+    /**
+     * Removes a folder which has been moved into a trash folder, along with any stored content which only it referred to.
+     */
+    public void reclaim(final TenantId tenantId, final Path trashedFolder)
+    {
+        if (!pendingFolders.add(trashedFolder)) {
+            return;
+        }
+        final AtomicLong remainingBytes;
+        try {
+            remainingBytes = new AtomicLong(measure(trashedFolder));
+        } catch (final IOException ex) {
+            pendingFolders.remove(trashedFolder);
+            LOGGER.error("Unable to measure {}; it will be retried by the scheduled clean up", trashedFolder, ex);
+            return;
+        }
+        pendingBytes.addAndGet(remainingBytes.get());
+        if (executor == null) {
+            remove(tenantId, trashedFolder, remainingBytes);
+            return;
+        }
+        try {
+            executor.execute(() -> remove(tenantId, trashedFolder, remainingBytes));
+        } catch (final RejectedExecutionException ex) {
+            pendingBytes.addAndGet(-remainingBytes.get());
+            pendingFolders.remove(trashedFolder);
+            LOGGER.warn("Unable to schedule removal of {}; it will be retried by the scheduled clean up", trashedFolder, ex);
+        }
+    }
+
+    /**
+     * Removes every folder in a trash folder which is not already being removed.
+     */
+    public void reclaimAll(final TenantId tenantId, final Path trashFolder)
+    {
+        if (!Files.isDirectory(trashFolder)) {
+            return;
+        }
+        try (final DirectoryStream<Path> trashedFolders = Files.newDirectoryStream(trashFolder)) {
+            for (final Path trashedFolder : trashedFolders) {
+                reclaim(tenantId, trashedFolder);
+            }
+        } catch (final IOException ex) {
+            LOGGER.error("Unable to list trash folder {}", trashFolder, ex);
+        }
+    }
+
+    /**
+     * @return the number of bytes which will be freed once the folders which are being removed are gone
+     */
+    public long getPendingReclaimBytes()
+    {
+        return pendingBytes.get();
+    }
+
+    /**
+     * Stops the background removals. Folders which have not been removed are left in the trash folders, and are picked up again by
+     * the scheduled clean up.
+     */
+    @Override
+    public void close()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Removes a folder whose reclaimable bytes have already been added to the pending count. The count is reduced as its files
+     * are removed, and by whatever is left of the folder's bytes once the removal has finished or failed.
+     */
+    private void remove(final TenantId tenantId, final Path trashedFolder, final AtomicLong remainingBytes)
+    {
+        try {
+            final List<Path> storedContent
+                = contentStore == null ? List.of() : contentStore.getReferencedEntries(tenantId, trashedFolder);
+            LOGGER.debug("Removing {} from trash, freeing {} bytes", trashedFolder, remainingBytes.get());
+
+            Files.walkFileTree(trashedFolder, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException
+                {
+                    final long length = getReclaimableLength(file, attrs);
+                    Files.delete(file);
+                    remainingBytes.addAndGet(-length);
+                    pendingBytes.addAndGet(-length);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException
+                {
+                    if (exc != null) {
+                        throw exc;
+                    }
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            if (contentStore != null) {
+                contentStore.releaseEntries(storedContent);
+            }
+        } catch (final IOException ex) {
+            LOGGER.error("Failed to remove {} from trash; it will be retried by the scheduled clean up", trashedFolder, ex);
+        } finally {
+            pendingBytes.addAndGet(-remainingBytes.get());
+            pendingFolders.remove(trashedFolder);
+        }
+    }
+
+    private static long measure(final Path folder) throws IOException
+    {
+        final AtomicLong total = new AtomicLong();
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException
+            {
+                total.addAndGet(getReclaimableLength(file, attrs));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return total.get();
+    }
+
+    private static long getReclaimableLength(final Path file, final BasicFileAttributes attrs) throws IOException
+    {
+        try {
+            final Object linkCount = Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+            if (linkCount instanceof Integer && (Integer) linkCount > 1) {
+                return 0;
+            }
+        } catch (final UnsupportedOperationException | IllegalArgumentException ex) {
+            // Link counts are not available on this file system
+        }
+        return attrs.size();
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * This class manages the in-progress folder of an upload session, in which a batch is uploaded as a series of numbered chunks.
+ * Each chunk is written to a partial chunk folder. Once the whole chunk has been written, the names of the loose files it
+ * contained are recorded alongside it, everything is flushed to disk and the folder is renamed to mark the chunk as received, so
+ * that a chunk is either kept in full or not at all, even if the service stops part way through.
+ * When the session is committed the content of the chunks is merged into the session folder, which can then be completed in the
+ * same way as the in-progress folder of any other upload. Merging is done one file at a time, so a commit which is interrupted can
+ * be run again.
+ * The chunk folders, which hold the subbatch manifests of the chunks, are kept until the manifest for the session has been
+ * written, so that a commit which is run again gives the subbatch files the same names and builds the same manifest.
+ */
+final class UploadSessionFolder
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadSessionFolder.class);
+
+    private static final String SESSION_MARKER = "upload-session";
+    private static final String PARTIAL_CHUNK_FOLDER = "partial-chunk";
+    private static final String LOOSE_FILES_INDEX = "loose-files.properties";
+    private static final String CONTENT_FILES = "files";
+
+    private final Path sessionPath;
+
+    public UploadSessionFolder(final Path sessionPath)
+    {
+        this.sessionPath = sessionPath;
+    }
+
+    public static UploadSessionFolder create(final Path sessionPath) throws IOException
+    {
+        Files.createDirectories(sessionPath);
+        final Path marker = sessionPath.resolve(SESSION_MARKER);
+        Files.createFile(marker);
+        sync(marker);
+        sync(sessionPath);
+        return new UploadSessionFolder(sessionPath);
+    }
+
+    public static boolean exists(final Path sessionPath)
+    {
+        return Files.isRegularFile(sessionPath.resolve(SESSION_MARKER));
+    }
+
+    public Path getPath()
+    {
+        return sessionPath;
+    }
+
+    public int getChunksReceived() throws IOException
+    {
+        return getChunkFolders().size();
+    }
+
+    /**
+     * Builds the index of the loose files uploaded in the chunks which have been received, so that documents in the next chunk can
+     * refer to them.
+     */
+    public LooseFileIndex loadLooseFileIndex() throws IOException
+    {
+        final LooseFileIndex index = new LooseFileIndex();
+        for (final Path chunkFolder : getChunkFolders().values()) {
+            final Properties looseFiles = new Properties();
+            try (final InputStream stream = Files.newInputStream(chunkFolder.resolve(LOOSE_FILES_INDEX))) {
+                looseFiles.load(stream);
+            }
+            for (final String uploadedFileName : looseFiles.stringPropertyNames()) {
+                index.put(uploadedFileName, looseFiles.getProperty(uploadedFileName));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Creates an empty folder for the next chunk to be written to, removing anything left by a chunk which was not received in
+     * full.
+     */
+    public Path createPartialChunkFolder() throws IOException
+    {
+        final Path partialChunkFolder = sessionPath.resolve(PARTIAL_CHUNK_FOLDER);
+        FileUtils.deleteDirectory(partialChunkFolder.toFile());
+        Files.createDirectory(partialChunkFolder);
+        return partialChunkFolder;
+    }
+
+    /**
+     * Marks the chunk in the partial chunk folder as received.
+     *
+     * @param chunkNumber the number of the chunk
+     * @param looseFiles the loose files which were uploaded in the chunk, mapped to the names they were stored under
+     */
+    public void acknowledgeChunk(final int chunkNumber, final Map<String, String> looseFiles) throws IOException
+    {
+        final Path partialChunkFolder = sessionPath.resolve(PARTIAL_CHUNK_FOLDER);
+        final Properties looseFilesIndex = new Properties();
+        looseFilesIndex.putAll(looseFiles);
+        try (final OutputStream stream = Files.newOutputStream(partialChunkFolder.resolve(LOOSE_FILES_INDEX))) {
+            looseFilesIndex.store(stream, null);
+        }
+        try (final Stream<Path> paths = Files.walk(partialChunkFolder)) {
+            final Iterator<Path> iterator = paths.iterator();
+            while (iterator.hasNext()) {
+                sync(iterator.next());
+            }
+        }
+        final Path chunkFolder = sessionPath.resolve(BatchNameProvider.getUploadChunkDirectoryName(chunkNumber));
+        Files.move(partialChunkFolder, chunkFolder, StandardCopyOption.ATOMIC_MOVE);
+        sync(sessionPath);
+        LOGGER.debug("Chunk {} received in upload session {}", chunkNumber, sessionPath);
+    }
+
+    /**
+     * Moves the content of the chunks which have been received into the session folder, and removes everything else which belongs
+     * to the session, leaving the folder in the same state as the in-progress folder of any other upload.
+     */
+    public void mergeChunks() throws IOException
+    {
+        FileUtils.deleteDirectory(sessionPath.resolve(PARTIAL_CHUNK_FOLDER).toFile());
+        final Map<Integer, Path> chunkFolders = getChunkFolders();
+        // The session manifest is written once everything has been merged, so if it is present only the clean up remains
+        if (!SubbatchManifest.exists(sessionPath)) {
+            final SubbatchManifest.Builder manifest = new SubbatchManifest.Builder();
+            int subbatchSequenceNumber = 0;
+            for (final Path chunkFolder : chunkFolders.values()) {
+                subbatchSequenceNumber = mergeChunk(chunkFolder, manifest, subbatchSequenceNumber);
+            }
+            manifest.build().write(sessionPath);
+        }
+        for (final Path chunkFolder : chunkFolders.values()) {
+            FileUtils.deleteDirectory(chunkFolder.toFile());
+        }
+        Files.deleteIfExists(sessionPath.resolve(SESSION_MARKER));
+    }
+
+    /**
+     * @return the sequence number of the last subbatch file of the session once the chunk has been merged
+     */
+    private int mergeChunk(
+        final Path chunkFolder,
+        final SubbatchManifest.Builder manifest,
+        final int lastSubbatchSequenceNumber
+    ) throws IOException
+    {
+        final Path chunkContentFolder = chunkFolder.resolve(CONTENT_FILES);
+        if (Files.isDirectory(chunkContentFolder)) {
+            final Path contentFolder = sessionPath.resolve(CONTENT_FILES);
+            Files.createDirectories(contentFolder);
+            for (final Path file : listFolder(chunkContentFolder)) {
+                final Path target = contentFolder.resolve(file.getFileName());
+                if (Files.exists(target)) {
+                    // Loose files stored under the hash of their content are already present if an earlier chunk had them
+                    Files.delete(file);
+                } else {
+                    Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+        }
+        int subbatchSequenceNumber = lastSubbatchSequenceNumber;
+        for (final SubbatchManifest.Entry entry : getChunkManifest(chunkFolder).getEntries()) {
+            final String fileName = entry.getFileName();
+            // The sequence numbers of each chunk start again from 1, so chunks written in the same millisecond would share names.
+            // The files are numbered again across the session, in chunk order, which gives the same names if a commit is retried.
+            final String mergedFileName = BatchNameProvider.renumberSubBatchName(fileName, ++subbatchSequenceNumber);
+            final Path file = chunkFolder.resolve(fileName);
+            // The file has already been moved if an earlier commit was interrupted
+            if (Files.exists(file)) {
+                Files.move(file, sessionPath.resolve(mergedFileName), StandardCopyOption.ATOMIC_MOVE);
+            }
+            manifest.add(mergedFileName, entry.getDocumentCount(), entry.getByteLength(), entry.getChecksum());
+        }
+        return subbatchSequenceNumber;
+    }
+
+    /**
+     * Returns the manifest of the subbatch files of a chunk, building it from the files themselves if the chunk was received by a
+     * version of the service which did not write one.
+     */
+    private static SubbatchManifest getChunkManifest(final Path chunkFolder) throws IOException
+    {
+        if (SubbatchManifest.exists(chunkFolder)) {
+            return SubbatchManifest.read(chunkFolder);
+        }
+        final SubbatchManifest.Builder manifest = new SubbatchManifest.Builder();
+        for (final Path file : listFolder(chunkFolder)) {
+            final String fileName = file.getFileName().toString();
+            if (Files.isRegularFile(file) && !fileName.equals(LOOSE_FILES_INDEX)) {
+                final CRC32C checksum = new CRC32C();
+                final long documentCount;
+                try (final CheckedInputStream checkedStream = new CheckedInputStream(Files.newInputStream(file), checksum);
+                     final InputStream stream = new BufferedInputStream(BatchNameProvider.isCompressedSubBatchName(fileName)
+                         ? new GZIPInputStream(checkedStream)
+                         : checkedStream)) {
+                    documentCount = countLines(stream);
+                    checkedStream.transferTo(OutputStream.nullOutputStream());
+                }
+                manifest.add(fileName, documentCount, Files.size(file), checksum.getValue());
+            }
+        }
+        // Kept with the chunk so that files which have already been moved are still listed if the commit is interrupted
+        final SubbatchManifest chunkManifest = manifest.build();
+        chunkManifest.write(chunkFolder);
+        return chunkManifest;
+    }
+
+    private static long countLines(final InputStream stream) throws IOException
+    {
+        long lines = 0;
+        int b;
+        while ((b = stream.read()) != -1) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    private Map<Integer, Path> getChunkFolders() throws IOException
+    {
+        final Map<Integer, Path> chunkFolders = new TreeMap<>();
+        for (final Path path : listFolder(sessionPath)) {
+            final int chunkNumber = BatchNameProvider.getUploadChunkNumber(path.getFileName().toString());
+            if (chunkNumber > 0) {
+                chunkFolders.put(chunkNumber, path);
+            }
+        }
+        return chunkFolders;
+    }
+
+    private static List<Path> listFolder(final Path folder) throws IOException
+    {
+        try (final Stream<Path> paths = Files.list(folder)) {
+            return new ArrayList<>(paths.toList());
+        }
+    }
+
+    /**
+     * Flushes a file or folder to disk. Not all platforms allow folders to be flushed, in which case they are left to the file
+     * system.
+     */
+    private static void sync(final Path path) throws IOException
+    {
+        final boolean isDirectory = Files.isDirectory(path);
+        try (final FileChannel channel = FileChannel.open(path, isDirectory ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (final IOException ex) {
+            if (!isDirectory) {
+                throw ex;
+            }
+            LOGGER.debug("Unable to flush folder {}", path, ex);
+        }
+    }
+}
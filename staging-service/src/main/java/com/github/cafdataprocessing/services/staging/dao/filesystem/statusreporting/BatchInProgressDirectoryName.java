@@ -25,7 +25,7 @@ import com.github.cafdataprocessing.services.staging.utils.ServiceIdentifier;
  */
 final class BatchInProgressDirectoryName
 {
-    private static final int THREAD_ID_POS = 23;
+    private static final int SEQUENCE_NUMBER_POS = 23;
 
     private final String directoryName;
     private final int serviceIdPos;
@@ -34,13 +34,13 @@ final class BatchInProgressDirectoryName
     public BatchInProgressDirectoryName(final String batchDirectoryName)
     {
         this.directoryName = batchDirectoryName;
-        this.serviceIdPos = directoryName.indexOf('-', THREAD_ID_POS) + 1;
+        this.serviceIdPos = directoryName.indexOf('-', SEQUENCE_NUMBER_POS) + 1;
         this.batchIdPos = directoryName.indexOf('-', serviceIdPos) + 1;
     }
 
-    private String getThreadId()
+    private String getSequenceNumber()
     {
-        return directoryName.substring(THREAD_ID_POS, serviceIdPos - 1);
+        return directoryName.substring(SEQUENCE_NUMBER_POS, serviceIdPos - 1);
     }
 
     private String getServiceId()
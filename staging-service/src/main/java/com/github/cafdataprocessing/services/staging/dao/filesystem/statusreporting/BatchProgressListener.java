@@ -17,40 +17,72 @@ package com.github.cafdataprocessing.services.staging.dao.filesystem.statusrepor
 
 import com.github.cafdataprocessing.services.staging.BatchId;
 import com.github.cafdataprocessing.services.staging.TenantId;
+import com.github.cafdataprocessing.services.staging.dao.UploadProgress;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 import org.apache.commons.fileupload2.core.ProgressListener;
 
+/*
+ * Each upload has a single UploadProgress, which is registered under the id of the upload for as long as the upload is running.
+ * The listener records the bytes read into it as the request is read, and the batch upload counts the documents, loose files and
+ * subbatch files it writes into it, so that the status of the batch is built from the live counters when it is requested.
+ */
 public final class BatchProgressListener implements ProgressListener, AutoCloseable
 {
+    // Uploads are not tied to a thread: non-blocking uploads move between threads, and virtual threads share carrier threads
+    private static final AtomicLong uploadIdSequence = new AtomicLong();
+
     private final BatchProgressTrackerKey trackerKey;
-    private final Instant uploadStartTime;
-    private long megaBytes;
+    private final UploadProgress progress;
+    private final LongSupplier rateLimit;
 
     public BatchProgressListener(final TenantId tenantId, final BatchId batchId)
     {
-        this.trackerKey = new BatchProgressTrackerKey(tenantId, batchId, Thread.currentThread().getId());
-        this.uploadStartTime = Instant.now();
-        this.megaBytes = -1;
+        this(tenantId, batchId, () -> 0);
+    }
 
-        BatchProgressTracker.put(trackerKey, new Tracker());
+    /**
+     * @param rateLimit supplies the number of bytes per second the upload is currently limited to, or 0 if it is not limited
+     */
+    public BatchProgressListener(final TenantId tenantId, final BatchId batchId, final LongSupplier rateLimit)
+    {
+        this.trackerKey = new BatchProgressTrackerKey(tenantId, batchId, uploadIdSequence.incrementAndGet());
+        this.progress = new UploadProgress();
+        this.rateLimit = rateLimit;
+
+        BatchProgressTracker.put(trackerKey, this);
+    }
+
+    public UploadProgress getProgress()
+    {
+        return progress;
     }
 
     @Override
     public void update(final long totalBytesRead, final long contentLength, final int item)
     {
-        final long totalBytesInMBytes = totalBytesRead / 1_048_576;
-        if (megaBytes == totalBytesInMBytes) {
-            return;
-        }
-        megaBytes = totalBytesInMBytes;
-        final Instant now = Instant.now();
-        final long diff = ChronoUnit.MILLIS.between(uploadStartTime, now);
-        if (diff > 0) {
-            final long speed = Math.floorDiv(totalBytesRead, diff);
-            final Tracker tracker = new Tracker(now, totalBytesRead, speed * 1000, true);
-            BatchProgressTracker.put(trackerKey, tracker);
+        progress.setBytesReceived(totalBytesRead);
+    }
+
+    Tracker toTracker()
+    {
+        final long lastUpdateTime = progress.getLastUpdateTimeMillis();
+        if (lastUpdateTime == 0) {
+            return new Tracker();
         }
+        final long bytesReceived = progress.getBytesReceived();
+        final long elapsedMillis = System.currentTimeMillis() - progress.getStartTimeMillis();
+        final long limit = rateLimit.getAsLong();
+        return new Tracker(
+            Instant.ofEpochMilli(lastUpdateTime),
+            bytesReceived,
+            elapsedMillis > 0 ? bytesReceived * 1000 / elapsedMillis : null,
+            limit > 0 ? limit : null,
+            progress.getDocuments(),
+            progress.getLooseFiles(),
+            progress.getSubbatches(),
+            true);
     }
 
     @Override
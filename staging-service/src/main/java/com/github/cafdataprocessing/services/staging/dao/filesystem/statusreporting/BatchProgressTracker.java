@@ -19,18 +19,19 @@ import com.github.cafdataprocessing.services.staging.BatchId;
 import com.github.cafdataprocessing.services.staging.TenantId;
 import java.util.Collection;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
 
 final class BatchProgressTracker
 {
-    private static final ConcurrentSkipListMap<BatchProgressTrackerKey, Tracker> inProgressTrackerMap = new ConcurrentSkipListMap<>();
+    private static final ConcurrentSkipListMap<BatchProgressTrackerKey, BatchProgressListener> inProgressTrackerMap = new ConcurrentSkipListMap<>();
 
     private BatchProgressTracker()
     {
     }
 
-    public static void put(final BatchProgressTrackerKey key, final Tracker tracker)
+    public static void put(final BatchProgressTrackerKey key, final BatchProgressListener listener)
     {
-        inProgressTrackerMap.put(key, tracker);
+        inProgressTrackerMap.put(key, listener);
     }
 
     public static void remove(final BatchProgressTrackerKey key)
@@ -43,6 +44,8 @@ final class BatchProgressTracker
         final BatchProgressTrackerKey fromKey = new BatchProgressTrackerKey(tenantId, batchId, Long.MIN_VALUE);
         final BatchProgressTrackerKey toKey = new BatchProgressTrackerKey(tenantId, batchId, Long.MAX_VALUE);
 
-        return inProgressTrackerMap.subMap(fromKey, true, toKey, true).values();
+        return inProgressTrackerMap.subMap(fromKey, true, toKey, true).values().stream()
+            .map(BatchProgressListener::toTracker)
+            .collect(Collectors.toList());
     }
 }
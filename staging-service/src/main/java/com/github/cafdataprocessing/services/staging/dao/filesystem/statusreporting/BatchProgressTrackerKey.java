@@ -23,13 +23,13 @@ final class BatchProgressTrackerKey implements Comparable<BatchProgressTrackerKe
 {
     private final TenantId tenantId;
     private final BatchId batchId;
-    private final long threadId;
+    private final long uploadId;
 
-    public BatchProgressTrackerKey(final TenantId tenantId, final BatchId batchId, final long threadId)
+    public BatchProgressTrackerKey(final TenantId tenantId, final BatchId batchId, final long uploadId)
     {
         this.tenantId = Objects.requireNonNull(tenantId);
         this.batchId = Objects.requireNonNull(batchId);
-        this.threadId = threadId;
+        this.uploadId = uploadId;
     }
 
     @Override
@@ -43,7 +43,7 @@ final class BatchProgressTrackerKey implements Comparable<BatchProgressTrackerKe
 
         return tenantId.equals(other.tenantId)
             && batchId.equals(other.batchId)
-            && threadId == other.threadId;
+            && uploadId == other.uploadId;
     }
 
     @Override
@@ -52,7 +52,7 @@ final class BatchProgressTrackerKey implements Comparable<BatchProgressTrackerKe
         int hash = 7;
         hash = 59 * hash + tenantId.hashCode();
         hash = 59 * hash + batchId.hashCode();
-        hash = 59 * hash + Long.hashCode(threadId);
+        hash = 59 * hash + Long.hashCode(uploadId);
         return hash;
     }
 
@@ -69,6 +69,6 @@ final class BatchProgressTrackerKey implements Comparable<BatchProgressTrackerKe
             return batchCompareResult;
         }
 
-        return Long.compare(threadId, other.threadId);
+        return Long.compare(uploadId, other.uploadId);
     }
 }
@@ -18,9 +18,11 @@ package com.github.cafdataprocessing.services.staging.dao.filesystem.statusrepor
 import com.github.cafdataprocessing.services.staging.BatchId;
 import com.github.cafdataprocessing.services.staging.TenantId;
 import com.github.cafdataprocessing.services.staging.dao.filesystem.BatchPathProvider;
+import com.github.cafdataprocessing.services.staging.dao.filesystem.BatchSummary;
 import com.github.cafdataprocessing.services.staging.exceptions.BatchNotFoundException;
 import com.github.cafdataprocessing.services.staging.exceptions.StagingException;
 import com.github.cafdataprocessing.services.staging.models.BatchStatus;
+import com.github.cafdataprocessing.services.staging.models.BatchStatusEntry;
 import com.github.cafdataprocessing.services.staging.models.BatchStatusResponse;
 import com.github.cafdataprocessing.services.staging.models.InProgress;
 import java.io.IOException;
@@ -28,27 +30,216 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public final class BatchStatusProvider
+/*
+ * Working out the status of a batch reads the in-progress folder of the tenant, and may have to measure the in-progress folders of
+ * uploads run by earlier versions of the service, so requests for the status of the same batch share the work.
+ * A request which arrives while the status of the batch is being worked out waits for that result rather than working it out
+ * again, and a status which has been worked out is reused by further requests until it is older than the cache TTL. Failures are
+ * passed to the requests which were waiting for them, but are not reused. If the thread working out a status is interrupted,
+ * which happens to the status threads when a request for many statuses fails, the interruption is not passed on; instead, one of
+ * the waiting requests works the status out again.
+ * An expired status is replaced when its batch is next requested, and the statuses of batches which are not requested again are
+ * swept out at most once per cache TTL, so that a request does not have to check every status in the cache.
+ * When the statuses of many batches are requested together, the in-progress folder of the tenant is listed once for all of them,
+ * and the statuses are worked out concurrently on the status threads.
+ */
+public final class BatchStatusProvider implements AutoCloseable
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(BatchStatusProvider.class);
 
     private final BatchPathProvider batchPathProvider;
+    private final long cacheTtlNanos;
+    private final Map<String, StatusComputation> statusComputations;
+    private final AtomicLong nextSweepAt;
+    private final ExecutorService statusExecutor;
 
     public BatchStatusProvider(final BatchPathProvider batchPathProvider)
+    {
+        this(batchPathProvider, 0);
+    }
+
+    public BatchStatusProvider(final BatchPathProvider batchPathProvider, final long cacheTtlMillis)
+    {
+        this(batchPathProvider, cacheTtlMillis, 0);
+    }
+
+    /**
+     * @param cacheTtlMillis The number of milliseconds for which the status of a batch is reused, or 0 to only share the status
+     * between the requests which were made while it was being worked out
+     * @param threads The number of threads on which the statuses of batches requested together are worked out, or 0 to work them
+     * out one after another on the requesting thread
+     */
+    public BatchStatusProvider(final BatchPathProvider batchPathProvider, final long cacheTtlMillis, final int threads)
     {
         this.batchPathProvider = batchPathProvider;
+        this.cacheTtlNanos = cacheTtlMillis * 1_000_000L;
+        this.statusComputations = new ConcurrentHashMap<>();
+        this.nextSweepAt = new AtomicLong(System.nanoTime() + this.cacheTtlNanos);
+        this.statusExecutor = threads > 0
+            ? Executors.newFixedThreadPool(threads, new BasicThreadFactory.Builder()
+                                           .namingPattern("batch-status-%d")
+                                           .daemon(true)
+                                           .build())
+            : null;
     }
 
     public BatchStatusResponse getStatus(final TenantId tenantId, final BatchId batchId)
         throws BatchNotFoundException, StagingException, InterruptedException
+    {
+        return getStatus(tenantId, batchId, null);
+    }
+
+    /**
+     * Gets the status of each of the batches, in the order in which they were requested, with duplicates removed. Batches which
+     * do not exist, or whose status could not be read, are reported in their entries.
+     *
+     * @throws StagingException if the in-progress folder of the tenant could not be read
+     */
+    public List<BatchStatusEntry> getStatuses(final TenantId tenantId, final List<BatchId> batchIds)
+        throws StagingException, InterruptedException
+    {
+        final Map<String, List<Path>> inProgressBatchDirs = getOtherServicesInProgressBatchDirectories(tenantId);
+        final List<BatchId> distinctBatchIds = new ArrayList<>(new LinkedHashSet<>(batchIds));
+
+        final List<BatchStatusEntry> entries = new ArrayList<>(distinctBatchIds.size());
+        if (statusExecutor == null) {
+            for (final BatchId batchId : distinctBatchIds) {
+                entries.add(getStatusEntry(tenantId, batchId, inProgressBatchDirs));
+            }
+            return entries;
+        }
+
+        final List<Future<BatchStatusEntry>> futures = new ArrayList<>(distinctBatchIds.size());
+        try {
+            for (final BatchId batchId : distinctBatchIds) {
+                futures.add(statusExecutor.submit(() -> getStatusEntry(tenantId, batchId, inProgressBatchDirs)));
+            }
+            for (final Future<BatchStatusEntry> future : futures) {
+                entries.add(future.get());
+            }
+        } catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new StagingException(cause);
+            }
+        } finally {
+            // Stops the remaining statuses from being worked out if the request has failed or been interrupted
+            for (final Future<BatchStatusEntry> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public void close()
+    {
+        if (statusExecutor != null) {
+            statusExecutor.shutdownNow();
+        }
+    }
+
+    private BatchStatusEntry getStatusEntry(
+        final TenantId tenantId,
+        final BatchId batchId,
+        final Map<String, List<Path>> inProgressBatchDirs
+    ) throws InterruptedException
+    {
+        final BatchStatusEntry entry = new BatchStatusEntry();
+        entry.setBatchId(batchId.getValue());
+        try {
+            entry.setBatchStatus(getStatus(tenantId, batchId, inProgressBatchDirs).getBatchStatus());
+            entry.setNotFound(false);
+        } catch (final BatchNotFoundException ex) {
+            entry.setNotFound(true);
+        } catch (final StagingException ex) {
+            LOGGER.error("Failed to get the status of batch {}", batchId, ex);
+            entry.setNotFound(false);
+            entry.setError(ex.getMessage());
+        }
+        return entry;
+    }
+
+    /**
+     * @param inProgressBatchDirs The in-progress folders of other services by batch id, if they have already been listed
+     */
+    private BatchStatusResponse getStatus(
+        final TenantId tenantId,
+        final BatchId batchId,
+        final Map<String, List<Path>> inProgressBatchDirs
+    ) throws BatchNotFoundException, StagingException, InterruptedException
+    {
+        final String key = tenantId.getValue() + "/" + batchId.getValue();
+        while (true) {
+            final long now = System.nanoTime();
+            sweepExpiredStatuses(now);
+            final StatusComputation computation = statusComputations.compute(
+                key, (k, current) -> current != null && !current.isExpired(now) ? current : new StatusComputation());
+
+            if (computation.start()) {
+                try {
+                    computation.complete(computeStatus(tenantId, batchId, inProgressBatchDirs));
+                } catch (final InterruptedException ex) {
+                    // Only this thread was interrupted, so the requests waiting for the status work it out again
+                    statusComputations.remove(key, computation);
+                    computation.abandon();
+                    throw ex;
+                } catch (final BatchNotFoundException | StagingException | RuntimeException ex) {
+                    statusComputations.remove(key, computation);
+                    computation.fail(ex);
+                }
+                if (cacheTtlNanos == 0) {
+                    statusComputations.remove(key, computation);
+                }
+            }
+            final BatchStatusResponse status = computation.get();
+            if (status != null) {
+                return status;
+            }
+        }
+    }
+
+    /**
+     * Removes the expired statuses of batches which have not been requested again, if the cache has not been swept for a TTL.
+     */
+    private void sweepExpiredStatuses(final long now)
+    {
+        final long sweepAt = nextSweepAt.get();
+        if (cacheTtlNanos == 0 || now - sweepAt < 0 || !nextSweepAt.compareAndSet(sweepAt, now + cacheTtlNanos)) {
+            return;
+        }
+        statusComputations.values().removeIf(computation -> computation.isExpired(now));
+    }
+
+    private BatchStatusResponse computeStatus(
+        final TenantId tenantId,
+        final BatchId batchId,
+        final Map<String, List<Path>> inProgressBatchDirs
+    ) throws BatchNotFoundException, StagingException, InterruptedException
     {
         // Get the directories where other services are progressing this batch
-        final List<Path> otherServiceInProgressBatchDirs = getOtherServicesInProgressBatchDirectories(tenantId, batchId);
+        final List<Path> otherServiceInProgressBatchDirs
+            = (inProgressBatchDirs != null ? inProgressBatchDirs : getOtherServicesInProgressBatchDirectories(tenantId))
+            .getOrDefault(batchId.getValue(), List.of());
 
         // Get the progress reports of other services
         final List<Tracker> inProgressReports = new ArrayList<>();
@@ -67,8 +258,10 @@ public final class BatchStatusProvider
         // Add in the progress reports from this service
         inProgressReports.addAll(BatchProgressTracker.get(tenantId, batchId));
 
-        // Check if the batch has been completed
-        final boolean batchInCompletedState = batchPathProvider.getPathForBatch(tenantId, batchId).toFile().exists();
+        // Check if the batch has been completed, reading its summary if it has one
+        final Path batchFolder = batchPathProvider.getPathForBatch(tenantId, batchId);
+        final BatchSummary batchSummary = readBatchSummary(batchFolder);
+        final boolean batchInCompletedState = batchSummary != null || Files.exists(batchFolder);
 
         if (!batchInCompletedState) {
             // Ignore IOExceptions that happened when retrieving the in-progress reports if the batch is completed,
@@ -93,6 +286,9 @@ public final class BatchStatusProvider
         inProgress.setMetrics(inProgressReports.stream().map(Tracker::toInProgressMetrics).collect(Collectors.toList()));
         final BatchStatus batchStatus = new BatchStatus();
         batchStatus.setBatchComplete(batchInCompletedState);
+        if (batchSummary != null) {
+            batchStatus.setDetails(batchSummary.toBatchDetails(batchId.getValue()));
+        }
         batchStatus.setInProgress(inProgress);
         final BatchStatusResponse response = new BatchStatusResponse();
         response.setBatchId(batchId.getValue());
@@ -100,28 +296,46 @@ public final class BatchStatusProvider
         return response;
     }
 
-    private List<Path> getOtherServicesInProgressBatchDirectories(final TenantId tenantId, final BatchId batchId)
+    private static BatchSummary readBatchSummary(final Path batchFolder)
+    {
+        try {
+            return BatchSummary.read(batchFolder);
+        } catch (final IOException ex) {
+            LOGGER.warn("Unable to read the summary of batch {}", batchFolder, ex);
+            return null;
+        }
+    }
+
+    /**
+     * @return the folders in which other services are progressing batches of the tenant, by batch id
+     */
+    private Map<String, List<Path>> getOtherServicesInProgressBatchDirectories(final TenantId tenantId)
         throws StagingException
     {
         final Path tenantInProgressDir = batchPathProvider.getTenantInprogressDirectory(tenantId);
-        final String batchIdStr = batchId.getValue();
-        final List<Path> list = new ArrayList<>();
+        final Map<String, List<Path>> map = new HashMap<>();
         try (final DirectoryStream<Path> directoryStream = Files.newDirectoryStream(tenantInProgressDir)) {
             for (final Path batch : directoryStream) {
                 final BatchInProgressDirectoryName batchDir = new BatchInProgressDirectoryName(batch.getFileName().toString());
-                if (!batchDir.isThisService() && batchDir.getBatchId().equals(batchIdStr)) {
-                    list.add(batch);
+                if (!batchDir.isThisService()) {
+                    map.computeIfAbsent(batchDir.getBatchId(), k -> new ArrayList<>()).add(batch);
                 }
             }
         } catch (final IOException ex) {
             throw new StagingException("Error while traversing in-progress folder", ex);
         }
-        return list;
+        return map;
     }
 
     private static Tracker getProgressReportFromDirectory(final Path batchDirectory)
         throws IOException, InterruptedException
     {
+        final Tracker progressFileReport = UploadProgressFile.read(batchDirectory);
+        if (progressFileReport != null) {
+            return progressFileReport;
+        }
+
+        // The upload is being run by an earlier version of the service, which does not keep a progress file
         final DirectoryInfo before = DirectoryInfo.create(batchDirectory);
         Thread.sleep(1000);
         final DirectoryInfo after = DirectoryInfo.create(batchDirectory);
@@ -132,4 +346,70 @@ public final class BatchStatusProvider
             after.getTotalSize() - before.getTotalSize(),
             after.getLastModifiedTime().compareTo(before.getLastModifiedTime()) > 0 || after.getTotalSize() > before.getTotalSize());
     }
+
+    private final class StatusComputation
+    {
+        private final AtomicBoolean started;
+        private final CompletableFuture<BatchStatusResponse> status;
+        private volatile long completedAt;
+
+        public StatusComputation()
+        {
+            this.started = new AtomicBoolean();
+            this.status = new CompletableFuture<>();
+        }
+
+        /**
+         * @return true if the caller is the first to request this status, and must work it out
+         */
+        public boolean start()
+        {
+            return started.compareAndSet(false, true);
+        }
+
+        public void complete(final BatchStatusResponse response)
+        {
+            completedAt = System.nanoTime();
+            status.complete(response);
+        }
+
+        public void fail(final Exception ex)
+        {
+            status.completeExceptionally(ex);
+        }
+
+        /**
+         * Releases the requests waiting for the status without a result, so that they work it out themselves.
+         */
+        public void abandon()
+        {
+            status.complete(null);
+        }
+
+        public boolean isExpired(final long now)
+        {
+            return status.isDone() && (status.isCompletedExceptionally() || now - completedAt >= cacheTtlNanos);
+        }
+
+        /**
+         * @return the status, or null if the computation was abandoned
+         */
+        public BatchStatusResponse get() throws BatchNotFoundException, StagingException, InterruptedException
+        {
+            try {
+                return status.get();
+            } catch (final ExecutionException ex) {
+                final Throwable cause = ex.getCause();
+                if (cause instanceof BatchNotFoundException) {
+                    throw (BatchNotFoundException) cause;
+                } else if (cause instanceof StagingException) {
+                    throw (StagingException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else {
+                    throw new StagingException(cause);
+                }
+            }
+        }
+    }
 }
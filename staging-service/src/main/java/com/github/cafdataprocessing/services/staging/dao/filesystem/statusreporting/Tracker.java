@@ -23,6 +23,10 @@ final class Tracker
     private final Instant lastModifiedTime;
     private final Long numberOfBytesReceived;
     private final Long fileUploadRateInBytesPerSecond;
+    private final Long fileUploadRateLimitInBytesPerSecond;
+    private final Long numberOfDocumentsReceived;
+    private final Long numberOfLooseFilesReceived;
+    private final Long numberOfSubbatchesWritten;
     private final boolean isProgressing;
 
     public Tracker()
@@ -36,10 +40,40 @@ final class Tracker
         final Long fileUploadRateInBytesPerSecond,
         final boolean isProgressing
     )
+    {
+        this(lastModifiedTime, numberOfBytesReceived, fileUploadRateInBytesPerSecond, null, isProgressing);
+    }
+
+    public Tracker(
+        final Instant lastModifiedTime,
+        final Long numberOfBytesReceived,
+        final Long fileUploadRateInBytesPerSecond,
+        final Long fileUploadRateLimitInBytesPerSecond,
+        final boolean isProgressing
+    )
+    {
+        this(lastModifiedTime, numberOfBytesReceived, fileUploadRateInBytesPerSecond, fileUploadRateLimitInBytesPerSecond,
+             null, null, null, isProgressing);
+    }
+
+    public Tracker(
+        final Instant lastModifiedTime,
+        final Long numberOfBytesReceived,
+        final Long fileUploadRateInBytesPerSecond,
+        final Long fileUploadRateLimitInBytesPerSecond,
+        final Long numberOfDocumentsReceived,
+        final Long numberOfLooseFilesReceived,
+        final Long numberOfSubbatchesWritten,
+        final boolean isProgressing
+    )
     {
         this.lastModifiedTime = lastModifiedTime;
         this.numberOfBytesReceived = numberOfBytesReceived;
         this.fileUploadRateInBytesPerSecond = fileUploadRateInBytesPerSecond;
+        this.fileUploadRateLimitInBytesPerSecond = fileUploadRateLimitInBytesPerSecond;
+        this.numberOfDocumentsReceived = numberOfDocumentsReceived;
+        this.numberOfLooseFilesReceived = numberOfLooseFilesReceived;
+        this.numberOfSubbatchesWritten = numberOfSubbatchesWritten;
         this.isProgressing = isProgressing;
     }
 
@@ -49,6 +83,10 @@ final class Tracker
         inProgressMetrics.setLastModifiedDate(lastModifiedTime);
         inProgressMetrics.setBytesReceived(numberOfBytesReceived);
         inProgressMetrics.setBytesPerSecond(fileUploadRateInBytesPerSecond);
+        inProgressMetrics.setBytesPerSecondLimit(fileUploadRateLimitInBytesPerSecond);
+        inProgressMetrics.setDocumentsReceived(numberOfDocumentsReceived);
+        inProgressMetrics.setLooseFilesReceived(numberOfLooseFilesReceived);
+        inProgressMetrics.setSubbatchesWritten(numberOfSubbatchesWritten);
         inProgressMetrics.setIsProgressing(isProgressing);
         return inProgressMetrics;
     }
@@ -60,6 +98,10 @@ final class Tracker
             + "lastModifiedTime=" + lastModifiedTime
             + ", numberOfBytesReceived=" + numberOfBytesReceived
             + ", fileUploadRateInBytesPerSecond=" + fileUploadRateInBytesPerSecond
+            + ", fileUploadRateLimitInBytesPerSecond=" + fileUploadRateLimitInBytesPerSecond
+            + ", numberOfDocumentsReceived=" + numberOfDocumentsReceived
+            + ", numberOfLooseFilesReceived=" + numberOfLooseFilesReceived
+            + ", numberOfSubbatchesWritten=" + numberOfSubbatchesWritten
             + ", isProgressing=" + isProgressing
             + '}';
     }
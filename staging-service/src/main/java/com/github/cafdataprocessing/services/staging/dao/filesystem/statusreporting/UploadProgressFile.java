@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem.statusreporting;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * The progress file is a heartbeat which an upload keeps in its in-progress folder, so that other instances of the service can
+ * report the progress of the upload by reading a single small file, rather than by measuring the folder twice with a pause in
+ * between.
+ * It is a single tab-separated line holding the format version, the time of the last update in milliseconds since the epoch, and
+ * the numbers of bytes and documents written so far and the bytes written per second since the previous update.
+ * The file is rewritten at most once per update interval, under a temporary name which is then renamed over it, so that a partly
+ * written file is never read. An upload which has not updated its file for several intervals is reported as not progressing.
+ * In-progress folders of earlier versions of the service do not have a progress file.
+ */
+public final class UploadProgressFile
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadProgressFile.class);
+
+    public static final String FILE_NAME = "upload.progress";
+
+    private static final String VERSION = "upload-progress-1";
+    private static final String SEPARATOR = "\t";
+    private static final long UPDATE_INTERVAL_MILLIS = 1000;
+    private static final long STALLED_AFTER_MILLIS = 5 * UPDATE_INTERVAL_MILLIS;
+
+    private final Path folder;
+    private long lastUpdateNanos;
+    private long lastUpdateBytes;
+    private boolean updated;
+
+    public UploadProgressFile(final Path folder)
+    {
+        this.folder = folder;
+        this.updated = false;
+    }
+
+    /**
+     * Records the progress of the upload, if the progress file has not been updated within the update interval. Failures are
+     * logged rather than thrown, as they only affect the progress reported by other instances.
+     */
+    public synchronized void update(final long bytesWritten, final long documentsWritten)
+    {
+        final long now = System.nanoTime();
+        final long elapsedMillis = (now - lastUpdateNanos) / 1_000_000;
+        if (updated && elapsedMillis < UPDATE_INTERVAL_MILLIS) {
+            return;
+        }
+        final long bytesPerSecond = updated ? (bytesWritten - lastUpdateBytes) * 1000 / elapsedMillis : 0;
+        final String line = String.join(SEPARATOR, VERSION, Long.toString(System.currentTimeMillis()),
+                                        Long.toString(bytesWritten), Long.toString(documentsWritten),
+                                        Long.toString(bytesPerSecond));
+        final Path tempFile = folder.resolve(FILE_NAME + ".tmp");
+        try {
+            Files.write(tempFile, line.getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, folder.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final NoSuchFileException ex) {
+            // Nothing has been written to the folder yet, or it has been removed because the upload failed
+            return;
+        } catch (final IOException ex) {
+            LOGGER.warn("Unable to update progress file in {}", folder, ex);
+        }
+        lastUpdateNanos = now;
+        lastUpdateBytes = bytesWritten;
+        updated = true;
+    }
+
+    public static void delete(final Path folder) throws IOException
+    {
+        Files.deleteIfExists(folder.resolve(FILE_NAME));
+        Files.deleteIfExists(folder.resolve(FILE_NAME + ".tmp"));
+    }
+
+    /**
+     * @return the progress recorded in the folder, or null if the folder does not have a progress file
+     */
+    static Tracker read(final Path folder) throws IOException
+    {
+        final Path progressFile = folder.resolve(FILE_NAME);
+        final String line;
+        try {
+            line = new String(Files.readAllBytes(progressFile), StandardCharsets.UTF_8).trim();
+        } catch (final NoSuchFileException ex) {
+            return null;
+        }
+        final String[] fields = line.split(SEPARATOR);
+        if (fields.length < 5 || !fields[0].equals(VERSION)) {
+            throw new IOException("Unsupported progress file: " + progressFile);
+        }
+        final long lastUpdateMillis;
+        final long bytesWritten;
+        final long documentsWritten;
+        final long bytesPerSecond;
+        try {
+            lastUpdateMillis = Long.parseLong(fields[1]);
+            bytesWritten = Long.parseLong(fields[2]);
+            documentsWritten = Long.parseLong(fields[3]);
+            bytesPerSecond = Long.parseLong(fields[4]);
+        } catch (final NumberFormatException ex) {
+            throw new IOException("Invalid progress file " + progressFile + ": " + line, ex);
+        }
+        final boolean isProgressing = System.currentTimeMillis() - lastUpdateMillis < STALLED_AFTER_MILLIS;
+        return new Tracker(Instant.ofEpochMilli(lastUpdateMillis), bytesWritten, isProgressing ? bytesPerSecond : 0L, null,
+                           documentsWritten, null, null, isProgressing);
+    }
+}
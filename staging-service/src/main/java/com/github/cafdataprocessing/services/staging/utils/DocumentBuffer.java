@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+/**
+ * Holds a document which has to be read more than once, or read later on a different thread.
+ *
+ * The document is kept in memory while it is small, and moved to a temporary file once it grows past the memory threshold, so
+ * documents with very large field values do not have to fit in memory. Once the buffer has been closed its content can be read
+ * back with {@link #toInputStream()}; {@link #discard()} must be called when the content is no longer needed.
+ */
+public final class DocumentBuffer extends OutputStream
+{
+    private final DeferredFileOutputStream stream;
+
+    public DocumentBuffer(final int memoryThreshold, final File directory)
+    {
+        this.stream = DeferredFileOutputStream.builder()
+            .setThreshold(memoryThreshold)
+            .setPrefix("document-")
+            .setSuffix(".tmp")
+            .setDirectory(directory)
+            .get();
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+        stream.write(b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException
+    {
+        stream.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        stream.close();
+    }
+
+    public long size()
+    {
+        return stream.getByteCount();
+    }
+
+    public InputStream toInputStream() throws IOException
+    {
+        return stream.toInputStream();
+    }
+
+    /**
+     * Removes the temporary file, if one was needed.
+     */
+    public void discard()
+    {
+        IOUtils.closeQuietly(stream);
+        if (!stream.isInMemory()) {
+            FileUtils.deleteQuietly(stream.getFile());
+        }
+    }
+}
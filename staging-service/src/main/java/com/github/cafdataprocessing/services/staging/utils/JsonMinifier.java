@@ -17,9 +17,13 @@ package com.github.cafdataprocessing.services.staging.utils;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.core.JsonGenerator.Feature;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.core.util.JsonRecyclerPools;
 import com.github.cafdataprocessing.services.staging.exceptions.InvalidBatchException;
 import com.microfocus.caf.worker.document.schema.validator.DocumentValidator;
 import com.microfocus.caf.worker.document.schema.validator.InvalidDocumentException;
@@ -27,23 +31,50 @@ import com.worldturner.medeia.api.ValidationFailedException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.Map;
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.codec.binary.Base64OutputStream;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Minifies documents, moving large field values out to loose files and resolving references to loose files uploaded with the
+ * batch.
+ *
+ * Data field values which are larger than the field value size threshold are written to loose files as they are read, so the memory
+ * needed to minify a document does not depend on the size of its field values.
+ *
+ * An instance keeps the buffers it needs between documents, so it should be reused for a sequence of documents rather than created
+ * for each one. Instances are not thread-safe.
+ */
 public final class JsonMinifier
 {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(JsonMinifier.class);
 
+    // The factory is immutable once built, and the buffers used by its parsers and generators are returned to a shared pool
+    // rather than being tied to a thread, so they are reused even when documents are processed on short-lived or virtual threads
+    private static final JsonFactory JSON_FACTORY = JsonFactory.builder()
+        .configure(StreamWriteFeature.FLUSH_PASSED_TO_STREAM, false)
+        .configure(StreamWriteFeature.AUTO_CLOSE_TARGET, false)
+        .configure(StreamReadFeature.AUTO_CLOSE_SOURCE, false)
+        .recyclerPool(JsonRecyclerPools.sharedConcurrentDequePool())
+        .build();
+
     private static final String DATA_FIELD = "data";
     private static final String ENCODING_FIELD = "encoding";
+    private static final SerializableString DATA_FIELD_NAME = new SerializedString(DATA_FIELD);
+    private static final SerializableString ENCODING_FIELD_NAME = new SerializedString(ENCODING_FIELD);
     private static final String LOCAL_REF = "local_ref";
     private static final String STORAGE_REF = "storage_ref";
     private static final String UTF8_ENCODING = "utf8";
@@ -51,8 +82,19 @@ public final class JsonMinifier
     private static final String TXT_ENTENSION = ".txt";
     private static final String BINARY_ENTENSION = ".bin";
 
-    private JsonMinifier()
+    private static final int INITIAL_DATA_BUFFER_SIZE = 1024;
+    private static final int MAX_RETAINED_DATA_BUFFER_SIZE = 65536;
+
+    // The value of the current data field, held as characters so that small values can be passed on without creating a String
+    private char[] dataBuffer;
+    private int dataLength;
+    private boolean hasData;
+    // The file holding the value of the current data field, if it was too large to be held in memory
+    private OversizedDataSpillingInputStream.SpilledValue spilledData;
+
+    public JsonMinifier()
     {
+        this.dataBuffer = new char[INITIAL_DATA_BUFFER_SIZE];
     }
 
     public static final void validateAndMinifyJson(final InputStream inputStream,
@@ -63,18 +105,8 @@ public final class JsonMinifier
                                                    final Map<String, String> binaryFilesUploaded)
         throws IOException, InvalidDocumentException, InvalidBatchException
     {
-        final JsonFactory factory = new JsonFactory();
-        factory.configure(Feature.FLUSH_PASSED_TO_STREAM, false);
-        factory.configure(Feature.AUTO_CLOSE_TARGET, false);
-        final JsonParser parser = DocumentValidator.getValidatingParser(inputStream);
-        try (final JsonGenerator gen = factory.createGenerator(outstream)) {
-            try {
-                processJsonTokens(parser, gen, storageRefPath, inprogressContentFolderPath, fieldValueSizeThreshold, binaryFilesUploaded);
-            } catch (final ValidationFailedException e) {
-                throw new InvalidDocumentException(e);
-            }
-        }
-        outstream.write('\n');
+        new JsonMinifier().validateAndMinify(inputStream, outstream, storageRefPath, inprogressContentFolderPath,
+                                             fieldValueSizeThreshold, binaryFilesUploaded);
     }
 
     public static final void minifyJson(final InputStream inputStream,
@@ -84,24 +116,67 @@ public final class JsonMinifier
                                         final int fieldValueSizeThreshold,
                                         final Map<String, String> binaryFilesUploaded) throws IOException, InvalidBatchException
     {
-        final JsonFactory factory = new JsonFactory();
-        factory.configure(Feature.FLUSH_PASSED_TO_STREAM, false);
-        factory.configure(Feature.AUTO_CLOSE_TARGET, false);
-        final JsonParser parser = factory.createParser(inputStream);
-        try (final JsonGenerator gen = factory.createGenerator(outstream)) {
-            processJsonTokens(parser, gen, storageRefPath, inprogressContentFolderPath, fieldValueSizeThreshold, binaryFilesUploaded);
+        new JsonMinifier().minify(inputStream, outstream, storageRefPath, inprogressContentFolderPath,
+                                  fieldValueSizeThreshold, binaryFilesUploaded);
+    }
+
+    public void validateAndMinify(final InputStream inputStream,
+                                  final OutputStream outstream,
+                                  final String storageRefPath,
+                                  final String inprogressContentFolderPath,
+                                  final int fieldValueSizeThreshold,
+                                  final Map<String, String> binaryFilesUploaded)
+        throws IOException, InvalidDocumentException, InvalidBatchException
+    {
+        try (final OversizedDataSpillingInputStream spillingStream = new OversizedDataSpillingInputStream(
+                 inputStream, Paths.get(inprogressContentFolderPath), fieldValueSizeThreshold);
+             final JsonParser parser = DocumentValidator.getValidatingParser(spillingStream);
+             final JsonGenerator gen = JSON_FACTORY.createGenerator(outstream)) {
+            try {
+                processJsonTokens(parser, gen, spillingStream, storageRefPath, inprogressContentFolderPath, fieldValueSizeThreshold,
+                                  binaryFilesUploaded);
+            } catch (final ValidationFailedException e) {
+                throw new InvalidDocumentException(e);
+            }
+        } catch (final OversizedDataSpillingInputStream.InvalidValueException e) {
+            throw new InvalidBatchException(e.getMessage(), e);
+        } finally {
+            releaseDataBuffer();
         }
         outstream.write('\n');
     }
 
-    private static void processJsonTokens(final JsonParser parser,
-                                          final JsonGenerator gen,
-                                          final String storageRefPath,
-                                          final String inprogressContentFolderPath,
-                                          final int fieldValueSizeThreshold,
-                                          final Map<String, String> binaryFilesUploaded) throws IOException, InvalidBatchException
+    public void minify(final InputStream inputStream,
+                       final OutputStream outstream,
+                       final String storageRefPath,
+                       final String inprogressContentFolderPath,
+                       final int fieldValueSizeThreshold,
+                       final Map<String, String> binaryFilesUploaded) throws IOException, InvalidBatchException
     {
-        String dataBuffer = null;
+        try (final OversizedDataSpillingInputStream spillingStream = new OversizedDataSpillingInputStream(
+                 inputStream, Paths.get(inprogressContentFolderPath), fieldValueSizeThreshold);
+             final JsonParser parser = JSON_FACTORY.createParser(spillingStream);
+             final JsonGenerator gen = JSON_FACTORY.createGenerator(outstream)) {
+            processJsonTokens(parser, gen, spillingStream, storageRefPath, inprogressContentFolderPath, fieldValueSizeThreshold,
+                              binaryFilesUploaded);
+        } catch (final OversizedDataSpillingInputStream.InvalidValueException e) {
+            throw new InvalidBatchException(e.getMessage(), e);
+        } finally {
+            releaseDataBuffer();
+        }
+        outstream.write('\n');
+    }
+
+    private void processJsonTokens(final JsonParser parser,
+                                   final JsonGenerator gen,
+                                   final OversizedDataSpillingInputStream spillingStream,
+                                   final String storageRefPath,
+                                   final String inprogressContentFolderPath,
+                                   final int fieldValueSizeThreshold,
+                                   final Map<String, String> binaryFilesUploaded) throws IOException, InvalidBatchException
+    {
+        hasData = false;
+        spilledData = null;
         String encodingBuffer = null;
         JsonToken token;
         boolean pauseWriting = false;
@@ -114,11 +189,12 @@ public final class JsonMinifier
             switch (token) {
                 case FIELD_NAME:
                     // Pause writing and start buffering if the 'data' or 'encoding' fields are encountered
-                    if (parser.getText().equalsIgnoreCase(DATA_FIELD)) {
+                    final String fieldName = parser.currentName();
+                    if (isFieldName(fieldName, DATA_FIELD)) {
                         pauseWriting = true;
                         bufferData = true;
                         bufferEncoding = false;
-                    } else if (parser.getText().equalsIgnoreCase(ENCODING_FIELD)) {
+                    } else if (isFieldName(fieldName, ENCODING_FIELD)) {
                         pauseWriting = true;
                         bufferEncoding = true;
                         bufferData = false;
@@ -136,15 +212,15 @@ public final class JsonMinifier
                 case VALUE_TRUE:
                     // Buffer data or encoding field values
                     if (bufferData) {
-                        dataBuffer = parser.getText();
+                        bufferData(parser, spillingStream);
                     }
                     if (bufferEncoding) {
-                        encodingBuffer = parser.getText();
-                        if (encodingBuffer.equalsIgnoreCase(LOCAL_REF)) {
+                        if (textEquals(parser, LOCAL_REF, true)) {
                             encodingBuffer = STORAGE_REF;
                             updateReference = true;
                             isLocalRefFile = true;
                         } else {
+                            encodingBuffer = getEncodingText(parser);
                             updateReference = false;
                         }
                     }
@@ -153,38 +229,51 @@ public final class JsonMinifier
                     // If writing was paused, update buffered data/encoding
                     // values and write them out
                     if (pauseWriting) {
+                        String dataReference = null;
                         // check size of data field value
-                        if (dataBuffer != null && dataBuffer.getBytes().length > fieldValueSizeThreshold) {
+                        if (spilledData != null) {
+                            // it has already been written out to a loose file
+                            dataReference = moveSpilledDataToFile(encodingBuffer);
+                            encodingBuffer = STORAGE_REF;
+                            updateReference = true;
+                        } else if (hasData && getUtf8Length(dataBuffer, dataLength) > fieldValueSizeThreshold) {
                             // write it out to a loose file
                             final String fileName = RandomStringUtils.randomAlphanumeric(10);
-                            final String contentFileName = writeDataToFile(dataBuffer, fileName, inprogressContentFolderPath, encodingBuffer);
-                            dataBuffer = contentFileName;
+                            dataReference = writeDataToFile(fileName, inprogressContentFolderPath, encodingBuffer);
                             encodingBuffer = STORAGE_REF;
                             updateReference = true;
                         }
+                        gen.writeFieldName(DATA_FIELD_NAME);
                         if (updateReference) {
-                            if (isLocalRefFile && !binaryFilesUploaded.keySet().contains(dataBuffer)) {
+                            if (dataReference == null && hasData) {
+                                dataReference = new String(dataBuffer, 0, dataLength);
+                            }
+                            if (isLocalRefFile && !binaryFilesUploaded.keySet().contains(dataReference)) {
                                 LOGGER.error("Binary files referenced in the JSON documents must be uploaded before the JSON documents. "
-                                    + "Check file {}", dataBuffer);
+                                    + "Check file {}", dataReference);
                                 throw new InvalidBatchException("Binary files referenced in the JSON documents must be uploaded before "
-                                    + "the JSON documents. Check file " + dataBuffer);
-                            } else if (isLocalRefFile && binaryFilesUploaded.keySet().contains(dataBuffer)) {
+                                    + "the JSON documents. Check file " + dataReference);
+                            } else if (isLocalRefFile && binaryFilesUploaded.keySet().contains(dataReference)) {
                                 LOGGER.debug("The binary file has been uploaded {}, its new file name is {}",
-                                             dataBuffer, binaryFilesUploaded.get(dataBuffer));
-                                dataBuffer = storageRefPath + "/" + binaryFilesUploaded.get(dataBuffer);
+                                             dataReference, binaryFilesUploaded.get(dataReference));
+                                gen.writeString(storageRefPath + "/" + binaryFilesUploaded.get(dataReference));
                             } else {
-                                dataBuffer = storageRefPath + "/" + dataBuffer;
+                                gen.writeString(storageRefPath + "/" + dataReference);
                             }
+                        } else if (hasData) {
+                            gen.writeString(dataBuffer, 0, dataLength);
+                        } else {
+                            gen.writeNull();
                         }
-                        gen.writeFieldName(DATA_FIELD);
-                        gen.writeString(dataBuffer);
                         if (encodingBuffer != null) {
-                            gen.writeFieldName(ENCODING_FIELD);
+                            gen.writeFieldName(ENCODING_FIELD_NAME);
                             gen.writeString(encodingBuffer);
                         }
                         // clear the buffers
-                        dataBuffer = null;
+                        hasData = false;
                         encodingBuffer = null;
+                    } else {
+                        discardSpilledData();
                     }
                     // reset checks
                     updateReference = false;
@@ -205,21 +294,164 @@ public final class JsonMinifier
         }
     }
 
-    private static String writeDataToFile(final String data, final String fileName,
-                                          final String inprogressContentFolderPath, final String encoding) throws IOException
+    private void bufferData(final JsonParser parser, final OversizedDataSpillingInputStream spillingStream) throws IOException
+    {
+        discardSpilledData();
+        final int length = parser.getTextLength();
+        if (length > dataBuffer.length) {
+            dataBuffer = new char[Math.max(length, dataBuffer.length * 2)];
+        }
+        System.arraycopy(parser.getTextCharacters(), parser.getTextOffset(), dataBuffer, 0, length);
+        dataLength = length;
+        hasData = true;
+        spilledData = spillingStream.claimSpilledValue(dataBuffer, 0, dataLength);
+    }
+
+    private void releaseDataBuffer()
+    {
+        // Don't hold on to the memory used by an unusually large value
+        if (dataBuffer.length > MAX_RETAINED_DATA_BUFFER_SIZE) {
+            dataBuffer = new char[INITIAL_DATA_BUFFER_SIZE];
+        }
+        hasData = false;
+        discardSpilledData();
+    }
+
+    private void discardSpilledData()
+    {
+        // A data field value which is not written out, e.g. because it is followed by another value for the same field
+        if (spilledData != null) {
+            FileUtils.deleteQuietly(spilledData.getFile().toFile());
+            spilledData = null;
+        }
+    }
+
+    private static boolean isFieldName(final String fieldName, final String expectedFieldName)
+    {
+        // Field names returned by the parser are normally interned, so most names can be matched without comparing characters
+        return fieldName == expectedFieldName
+            || (fieldName.length() == expectedFieldName.length() && fieldName.equalsIgnoreCase(expectedFieldName));
+    }
+
+    private static String getEncodingText(final JsonParser parser) throws IOException
+    {
+        // Avoid creating a String for the common encodings
+        if (textEquals(parser, UTF8_ENCODING, false)) {
+            return UTF8_ENCODING;
+        } else if (textEquals(parser, BASE64_ENCODING, false)) {
+            return BASE64_ENCODING;
+        } else {
+            return parser.getText();
+        }
+    }
+
+    private static boolean textEquals(final JsonParser parser, final String expected, final boolean ignoreCase)
+        throws IOException
+    {
+        final int length = parser.getTextLength();
+        if (length != expected.length()) {
+            return false;
+        }
+        final char[] text = parser.getTextCharacters();
+        final int offset = parser.getTextOffset();
+        for (int i = 0; i < length; i++) {
+            final char c = text[offset + i];
+            final char e = expected.charAt(i);
+            if (c != e && !(ignoreCase && Character.toLowerCase(c) == Character.toLowerCase(e))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long getUtf8Length(final char[] chars, final int length)
+    {
+        long utf8Length = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = chars[i];
+            if (c < 0x80) {
+                utf8Length++;
+            } else if (c < 0x800) {
+                utf8Length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars[i + 1])) {
+                utf8Length += 4;
+                i++;
+            } else {
+                utf8Length += 3;
+            }
+        }
+        return utf8Length;
+    }
+
+    private String moveSpilledDataToFile(final String encoding) throws IOException, InvalidBatchException
+    {
+        final Path source = spilledData.getFile();
+        final boolean base64Decoded = spilledData.isBase64Decoded();
+        spilledData = null;
+        final String fileName = FilenameUtils.getBaseName(source.getFileName().toString());
+        String contentFileName = fileName;
+        if (encoding == null || encoding.equalsIgnoreCase(UTF8_ENCODING)) {
+            if (base64Decoded) {
+                Files.delete(source);
+                throw new InvalidBatchException("The encoding of a data field was changed from base64 after its value");
+            }
+            contentFileName = fileName + TXT_ENTENSION;
+            Files.move(source, source.resolveSibling(contentFileName), StandardCopyOption.ATOMIC_MOVE);
+        } else if (encoding.equalsIgnoreCase(BASE64_ENCODING)) {
+            contentFileName = fileName + BINARY_ENTENSION;
+            if (base64Decoded) {
+                // The value was decoded as it was read
+                Files.move(source, source.resolveSibling(contentFileName), StandardCopyOption.ATOMIC_MOVE);
+                return contentFileName;
+            }
+            // If encoding is base64, write file after base64 decoding the data
+            try (final InputStream decodingStream = new Base64InputStream(Files.newInputStream(source))) {
+                FileUtils.copyInputStreamToFile(decodingStream, source.resolveSibling(contentFileName).toFile());
+            }
+            Files.delete(source);
+        } else {
+            // The value is not written out for other encodings
+            Files.delete(source);
+        }
+        return contentFileName;
+    }
+
+    private String writeDataToFile(final String fileName, final String inprogressContentFolderPath, final String encoding)
+        throws IOException
     {
         String contentFileName = fileName;
         if (encoding == null || encoding.equalsIgnoreCase(UTF8_ENCODING)) {
             contentFileName = fileName + TXT_ENTENSION;
             final Path targetFile = Paths.get(inprogressContentFolderPath, contentFileName);
-            FileUtils.writeStringToFile(targetFile.toFile(), data, StandardCharsets.UTF_8);
+            try (final Writer writer = new OutputStreamWriter(FileUtils.openOutputStream(targetFile.toFile()), StandardCharsets.UTF_8)) {
+                writer.write(dataBuffer, 0, dataLength);
+            }
         } else if (encoding.equalsIgnoreCase(BASE64_ENCODING)) {
             contentFileName = fileName + BINARY_ENTENSION;
             final Path targetFile = Paths.get(inprogressContentFolderPath, contentFileName);
             // If encoding is base64, write file after base64 decoding the data
-            final byte[] decodedData = Base64.decodeBase64(data);
-            FileUtils.writeByteArrayToFile(targetFile.toFile(), decodedData);
+            try (final OutputStream decodingStream = new Base64OutputStream(FileUtils.openOutputStream(targetFile.toFile()), false)) {
+                writeDataAsAscii(decodingStream);
+            }
         }
         return contentFileName;
     }
+
+    private void writeDataAsAscii(final OutputStream outputStream) throws IOException
+    {
+        // Non-ASCII characters are never part of a base64 value, so they are dropped just as the decoder would drop their UTF-8 bytes
+        final byte[] chunk = new byte[Math.min(dataLength, 8192)];
+        int chunkLength = 0;
+        for (int i = 0; i < dataLength; i++) {
+            final char c = dataBuffer[i];
+            if (c < 0x80) {
+                chunk[chunkLength++] = (byte) c;
+                if (chunkLength == chunk.length) {
+                    outputStream.write(chunk, 0, chunkLength);
+                    chunkLength = 0;
+                }
+            }
+        }
+        outputStream.write(chunk, 0, chunkLength);
+    }
 }
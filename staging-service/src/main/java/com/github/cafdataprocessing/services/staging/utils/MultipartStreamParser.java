@@ -0,0 +1,292 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.utils;
+
+import com.github.cafdataprocessing.services.staging.exceptions.IncompleteBatchException;
+import com.github.cafdataprocessing.services.staging.exceptions.InvalidBatchException;
+import com.github.cafdataprocessing.services.staging.exceptions.StagingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A push-style parser for multipart request bodies.
+ *
+ * The body is passed to the parser in whatever chunks it arrives in, and the parser reports the parts it contains to a
+ * {@link PartHandler} as soon as the bytes are available. Only a small amount of the body, at most one delimiter's worth of part
+ * data or one set of part headers, is held by the parser at any time.
+ */
+public final class MultipartStreamParser
+{
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte DASH = '-';
+    private static final int MAX_HEADER_SIZE = 10240;
+
+    public interface PartHandler
+    {
+        void startPart(String fieldName, String contentType, boolean isFormField)
+            throws StagingException, InvalidBatchException, IncompleteBatchException;
+
+        void partData(byte[] buffer, int offset, int length)
+            throws StagingException, InvalidBatchException, IncompleteBatchException;
+
+        void endPart()
+            throws StagingException, InvalidBatchException, IncompleteBatchException;
+    }
+
+    private enum State
+    {
+        PREAMBLE,
+        DELIMITER_SUFFIX,
+        HEADERS,
+        BODY,
+        EPILOGUE
+    }
+
+    private final byte[] delimiter;
+    private final Charset headerCharset;
+    private final PartHandler partHandler;
+    private final Map<String, String> headers;
+    private byte[] buffer;
+    private int start;
+    private int end;
+    private State state;
+
+    public MultipartStreamParser(final String boundary, final Charset headerCharset, final PartHandler partHandler)
+    {
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.headerCharset = headerCharset;
+        this.partHandler = partHandler;
+        this.headers = new HashMap<>();
+        this.buffer = new byte[Math.max(8192, delimiter.length * 2)];
+        // The first delimiter is not preceded by a line break if there is no preamble, so supply one
+        this.buffer[0] = CR;
+        this.buffer[1] = LF;
+        this.start = 0;
+        this.end = 2;
+        this.state = State.PREAMBLE;
+    }
+
+    /**
+     * Extracts the boundary parameter from a multipart content type.
+     *
+     * @param contentType the content type of the request
+     * @return the boundary, or null if the content type is not a multipart type or does not specify a boundary
+     */
+    public static String getBoundary(final String contentType)
+    {
+        if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/")) {
+            return null;
+        }
+        final String boundary = parseParameters(contentType).get("boundary");
+        return boundary == null || boundary.isEmpty() ? null : boundary;
+    }
+
+    public void write(final byte[] bytes, final int offset, final int length)
+        throws StagingException, InvalidBatchException, IncompleteBatchException
+    {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, end, length);
+        end += length;
+        process();
+    }
+
+    /**
+     * Signals the end of the body.
+     *
+     * @throws IncompleteBatchException if the body ended before the closing delimiter was reached
+     */
+    public void close() throws IncompleteBatchException
+    {
+        if (state != State.EPILOGUE) {
+            throw new IncompleteBatchException("Stream ended unexpectedly");
+        }
+    }
+
+    private void process() throws StagingException, InvalidBatchException, IncompleteBatchException
+    {
+        boolean progressing = true;
+        while (progressing) {
+            switch (state) {
+                case PREAMBLE:
+                    progressing = skipPreamble();
+                    break;
+                case DELIMITER_SUFFIX:
+                    progressing = readDelimiterSuffix();
+                    break;
+                case HEADERS:
+                    progressing = readHeaderLine();
+                    break;
+                case BODY:
+                    progressing = readBody();
+                    break;
+                case EPILOGUE:
+                default:
+                    start = end;
+                    progressing = false;
+                    break;
+            }
+        }
+    }
+
+    private boolean skipPreamble()
+    {
+        final int delimiterPos = indexOf(delimiter, start, end);
+        if (delimiterPos == -1) {
+            // Keep enough of the preamble to recognise a delimiter which has only partly arrived
+            start = Math.max(start, end - delimiter.length + 1);
+            return false;
+        }
+        start = delimiterPos + delimiter.length;
+        state = State.DELIMITER_SUFFIX;
+        return true;
+    }
+
+    private boolean readDelimiterSuffix() throws IncompleteBatchException
+    {
+        if (end - start < 2) {
+            return false;
+        }
+        if (buffer[start] == DASH && buffer[start + 1] == DASH) {
+            start += 2;
+            state = State.EPILOGUE;
+            return true;
+        }
+        // Skip any transport padding before the line break
+        int pos = start;
+        while (pos < end && (buffer[pos] == ' ' || buffer[pos] == '\t')) {
+            pos++;
+        }
+        if (end - pos < 2) {
+            return false;
+        }
+        if (buffer[pos] != CR || buffer[pos + 1] != LF) {
+            throw new IncompleteBatchException("Unexpected characters follow a boundary");
+        }
+        start = pos + 2;
+        headers.clear();
+        state = State.HEADERS;
+        return true;
+    }
+
+    private boolean readHeaderLine() throws StagingException, InvalidBatchException, IncompleteBatchException
+    {
+        final int lineEnd = indexOfLineBreak(start, end);
+        if (lineEnd == -1) {
+            if (end - start > MAX_HEADER_SIZE) {
+                throw new IncompleteBatchException("Part headers exceed maximum size of " + MAX_HEADER_SIZE + " bytes");
+            }
+            return false;
+        }
+        final String line = new String(buffer, start, lineEnd - start, headerCharset);
+        start = lineEnd + 2;
+        if (!line.isEmpty()) {
+            final int colonPos = line.indexOf(':');
+            if (colonPos > 0) {
+                headers.put(line.substring(0, colonPos).trim().toLowerCase(Locale.ROOT), line.substring(colonPos + 1).trim());
+            }
+            return true;
+        }
+        final Map<String, String> disposition = parseParameters(headers.getOrDefault("content-disposition", ""));
+        partHandler.startPart(disposition.get("name"), headers.get("content-type"), !disposition.containsKey("filename"));
+        state = State.BODY;
+        return true;
+    }
+
+    private boolean readBody() throws StagingException, InvalidBatchException, IncompleteBatchException
+    {
+        final int delimiterPos = indexOf(delimiter, start, end);
+        if (delimiterPos == -1) {
+            // Pass on everything except what could be the start of a delimiter which has only partly arrived
+            final int safeEnd = end - delimiter.length + 1;
+            if (safeEnd > start) {
+                partHandler.partData(buffer, start, safeEnd - start);
+                start = safeEnd;
+            }
+            return false;
+        }
+        if (delimiterPos > start) {
+            partHandler.partData(buffer, start, delimiterPos - start);
+        }
+        partHandler.endPart();
+        start = delimiterPos + delimiter.length;
+        state = State.DELIMITER_SUFFIX;
+        return true;
+    }
+
+    private void ensureCapacity(final int length)
+    {
+        if (end + length <= buffer.length) {
+            return;
+        }
+        final int remaining = end - start;
+        if (remaining + length > buffer.length) {
+            final byte[] newBuffer = new byte[Math.max(buffer.length * 2, remaining + length)];
+            System.arraycopy(buffer, start, newBuffer, 0, remaining);
+            buffer = newBuffer;
+        } else {
+            System.arraycopy(buffer, start, buffer, 0, remaining);
+        }
+        start = 0;
+        end = remaining;
+    }
+
+    private int indexOf(final byte[] pattern, final int from, final int to)
+    {
+        final int last = to - pattern.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buffer[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private int indexOfLineBreak(final int from, final int to)
+    {
+        for (int i = from; i < to - 1; i++) {
+            if (buffer[i] == CR && buffer[i + 1] == LF) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Map<String, String> parseParameters(final String headerValue)
+    {
+        final Map<String, String> parameters = new HashMap<>();
+        for (final String parameter : headerValue.split(";")) {
+            final int equalsPos = parameter.indexOf('=');
+            if (equalsPos == -1) {
+                continue;
+            }
+            final String name = parameter.substring(0, equalsPos).trim().toLowerCase(Locale.ROOT);
+            String value = parameter.substring(equalsPos + 1).trim();
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            parameters.put(name, value);
+        }
+        return parameters;
+    }
+}
@@ -0,0 +1,642 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.apache.commons.codec.binary.Base64OutputStream;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * This stream passes a JSON document through unchanged, except for string values of 'data' fields whose decoded UTF-8 length is
+ * greater than the field value size threshold.
+ * Such values are unescaped and written to a file in the spill folder as they are read, and are replaced in the document by a
+ * short marker, so the JSON parser reading this stream never has to hold the value in memory.
+ * The minifier claims the file for a marker when it reaches the field; any files which have not been claimed when the stream is
+ * closed are deleted.
+ * If an 'encoding' field with the value base64 comes before the data field in the same object, the value is decoded as it is
+ * written, so that the file already holds the binary content; otherwise the file holds the text of the value.
+ * As the JSON parser never sees a spilled value, the value is checked here as it is captured: invalid escape sequences, control
+ * characters and invalid UTF-8 sequences are reported with an InvalidValueException.
+ * Only UTF-8 documents are scanned; documents in other encodings are passed through unchanged.
+ */
+final class OversizedDataSpillingInputStream extends InputStream
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(OversizedDataSpillingInputStream.class);
+
+    private static final byte[] DATA_FIELD = {'d', 'a', 't', 'a'};
+    private static final byte[] ENCODING_FIELD = {'e', 'n', 'c', 'o', 'd', 'i', 'n', 'g'};
+    private static final byte[] BASE64_ENCODING = {'b', 'a', 's', 'e', '6', '4'};
+    private static final String SPILL_FILE_EXTENSION = ".part";
+
+    private enum Escape
+    {
+        NONE,
+        ESCAPE,
+        UNICODE
+    }
+
+    /**
+     * Reports that a data field value is not a valid JSON string.
+     */
+    public static final class InvalidValueException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private InvalidValueException(final String message)
+        {
+            super(message);
+        }
+    }
+
+    public static final class SpilledValue
+    {
+        private final Path file;
+        private final boolean base64Decoded;
+
+        private SpilledValue(final Path file, final boolean base64Decoded)
+        {
+            this.file = file;
+            this.base64Decoded = base64Decoded;
+        }
+
+        public Path getFile()
+        {
+            return file;
+        }
+
+        /**
+         * @return true if the file holds the decoded content of a base64 value rather than the text of the value
+         */
+        public boolean isBase64Decoded()
+        {
+            return base64Decoded;
+        }
+    }
+
+    private final InputStream source;
+    private final Path spillFolder;
+    private final int fieldValueSizeThreshold;
+    private final String markerPrefix;
+    private final Map<String, SpilledValue> spilledValues;
+    private final byte[] readBuffer;
+    private boolean endOfSource;
+    private boolean encodingChecked;
+    private boolean passThrough;
+
+    // Bytes which are ready to be read from this stream
+    private byte[] pending;
+    private int pendingStart;
+    private int pendingEnd;
+
+    // The nesting of the containers enclosing the current position: true for an object, false for an array
+    private boolean[] containers;
+    // Whether each enclosing object has so far had an encoding field with the value base64
+    private boolean[] base64Objects;
+    private int depth;
+    private boolean expectKey;
+    private boolean inString;
+    private boolean inKey;
+    private boolean keyEscape;
+    private int keyLength;
+    private boolean keyIsDataField;
+    private boolean keyIsEncodingField;
+    private boolean nextValueIsData;
+    private boolean nextValueIsEncoding;
+    private boolean inEncodingValue;
+    private int encodingValueLength;
+    private boolean encodingValueIsBase64;
+
+    // The state of a data field value which is being captured
+    private boolean capturing;
+    private Escape escape;
+    private int unicodeValue;
+    private int unicodeDigits;
+    private char highSurrogate;
+    // The number of continuation bytes still expected in the current UTF-8 sequence, and the range allowed for the next one
+    private int utf8Remaining;
+    private int utf8NextMin;
+    private int utf8NextMax;
+    private byte[] rawValue;
+    private int rawValueLength;
+    private byte[] decodedValue;
+    private long decodedValueLength;
+    private Path spillFile;
+    private boolean spillBase64Decoded;
+    private OutputStream spillStream;
+    private int spillCount;
+
+    public OversizedDataSpillingInputStream(final InputStream source, final Path spillFolder, final int fieldValueSizeThreshold)
+    {
+        this.source = source;
+        this.spillFolder = spillFolder;
+        this.fieldValueSizeThreshold = fieldValueSizeThreshold;
+        this.markerPrefix = "#spilled-data:" + UUID.randomUUID() + ":";
+        this.spilledValues = new HashMap<>();
+        this.readBuffer = new byte[8192];
+        this.pending = new byte[8192];
+        this.containers = new boolean[16];
+        this.base64Objects = new boolean[16];
+        this.escape = Escape.NONE;
+        this.rawValue = new byte[256];
+        this.decodedValue = new byte[256];
+    }
+
+    /**
+     * Checks whether a data field value is a marker for a value which has been written to a file, and if it is takes ownership of
+     * the file.
+     *
+     * @return the value which was written to a file, or null if the value is not a marker
+     */
+    public SpilledValue claimSpilledValue(final char[] value, final int offset, final int length)
+    {
+        if (spilledValues.isEmpty() || length <= markerPrefix.length()) {
+            return null;
+        }
+        for (int i = 0; i < markerPrefix.length(); i++) {
+            if (value[offset + i] != markerPrefix.charAt(i)) {
+                return null;
+            }
+        }
+        return spilledValues.remove(new String(value, offset, length));
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        final byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        while (pendingStart == pendingEnd) {
+            if (endOfSource) {
+                return -1;
+            }
+            pendingStart = 0;
+            pendingEnd = 0;
+            fill();
+        }
+        final int count = Math.min(len, pendingEnd - pendingStart);
+        System.arraycopy(pending, pendingStart, b, off, count);
+        pendingStart += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try {
+            source.close();
+        } finally {
+            closeSpillStream();
+            if (spillFile != null) {
+                deleteQuietly(spillFile);
+            }
+            for (final SpilledValue unclaimed : spilledValues.values()) {
+                deleteQuietly(unclaimed.file);
+            }
+            spilledValues.clear();
+        }
+    }
+
+    private void fill() throws IOException
+    {
+        final int bytesRead = source.read(readBuffer);
+        if (bytesRead == -1) {
+            endOfSource = true;
+            if (capturing) {
+                // The document is truncated; pass on what there is and let the parser report the error
+                endCapture(false);
+            }
+            return;
+        }
+        if (!encodingChecked) {
+            // A document in UTF-16 or UTF-32 has a zero byte within its first few bytes
+            encodingChecked = true;
+            for (int i = 0; i < Math.min(4, bytesRead); i++) {
+                passThrough |= readBuffer[i] == 0;
+            }
+        }
+        if (passThrough) {
+            emit(readBuffer, 0, bytesRead);
+            return;
+        }
+        for (int i = 0; i < bytesRead; i++) {
+            final byte b = readBuffer[i];
+            if (capturing) {
+                capture(b);
+            } else if (inString) {
+                emit(b);
+                scanString(b);
+            } else {
+                emit(b);
+                scanStructure(b);
+            }
+        }
+    }
+
+    private void scanString(final byte b)
+    {
+        if (keyEscape) {
+            // Escaped names and values are not recognised; a base64 value is then decoded after it has been written out instead
+            keyEscape = false;
+            keyIsDataField = false;
+            keyIsEncodingField = false;
+            encodingValueIsBase64 = false;
+        } else if (b == '\\') {
+            keyEscape = true;
+        } else if (b == '"') {
+            inString = false;
+            if (inKey) {
+                inKey = false;
+                nextValueIsData = keyIsDataField && keyLength == DATA_FIELD.length;
+                nextValueIsEncoding = keyIsEncodingField && keyLength == ENCODING_FIELD.length;
+            } else if (inEncodingValue) {
+                inEncodingValue = false;
+                setBase64Object(encodingValueIsBase64 && encodingValueLength == BASE64_ENCODING.length);
+            }
+        } else if (inKey) {
+            keyIsDataField &= matches(DATA_FIELD, keyLength, b);
+            keyIsEncodingField &= matches(ENCODING_FIELD, keyLength, b);
+            keyLength++;
+        } else if (inEncodingValue) {
+            encodingValueIsBase64 &= matches(BASE64_ENCODING, encodingValueLength, b);
+            encodingValueLength++;
+        }
+    }
+
+    private static boolean matches(final byte[] name, final int position, final byte b)
+    {
+        return position < name.length && (b | 0x20) == name[position];
+    }
+
+    private void setBase64Object(final boolean isBase64)
+    {
+        if (depth > 0) {
+            base64Objects[depth - 1] = isBase64;
+        }
+    }
+
+    private void scanStructure(final byte b) throws IOException
+    {
+        switch (b) {
+            case '"':
+                if (depth > 0 && containers[depth - 1] && expectKey) {
+                    inString = true;
+                    inKey = true;
+                    keyEscape = false;
+                    keyLength = 0;
+                    keyIsDataField = true;
+                    keyIsEncodingField = true;
+                } else if (nextValueIsData) {
+                    nextValueIsData = false;
+                    // The opening quote has already been emitted; hold it back along with the rest of the value
+                    pendingEnd--;
+                    startCapture();
+                } else {
+                    inString = true;
+                    inKey = false;
+                    keyEscape = false;
+                    inEncodingValue = nextValueIsEncoding;
+                    encodingValueLength = 0;
+                    encodingValueIsBase64 = true;
+                    nextValueIsEncoding = false;
+                }
+                break;
+            case '{':
+                endNonStringValue();
+                push(true);
+                expectKey = true;
+                break;
+            case '[':
+                endNonStringValue();
+                push(false);
+                break;
+            case '}':
+            case ']':
+                if (depth > 0) {
+                    depth--;
+                }
+                break;
+            case ':':
+                expectKey = false;
+                break;
+            case ',':
+                expectKey = depth > 0 && containers[depth - 1];
+                break;
+            case ' ':
+            case '\t':
+            case '\r':
+            case '\n':
+                break;
+            default:
+                endNonStringValue();
+                break;
+        }
+    }
+
+    private void endNonStringValue()
+    {
+        nextValueIsData = false;
+        if (nextValueIsEncoding) {
+            nextValueIsEncoding = false;
+            setBase64Object(false);
+        }
+    }
+
+    private void push(final boolean isObject)
+    {
+        if (depth == containers.length) {
+            containers = Arrays.copyOf(containers, depth * 2);
+            base64Objects = Arrays.copyOf(base64Objects, depth * 2);
+        }
+        base64Objects[depth] = false;
+        containers[depth++] = isObject;
+    }
+
+    private void startCapture()
+    {
+        capturing = true;
+        escape = Escape.NONE;
+        highSurrogate = 0;
+        utf8Remaining = 0;
+        rawValueLength = 0;
+        decodedValueLength = 0;
+        appendRaw((byte) '"');
+    }
+
+    private void capture(final byte b) throws IOException
+    {
+        if (spillStream == null) {
+            appendRaw(b);
+        }
+        switch (escape) {
+            case NONE:
+                if (utf8Remaining > 0 || b < 0) {
+                    checkUtf8(b & 0xff);
+                    flushHighSurrogate();
+                    appendDecoded(b);
+                } else if (b == '\\') {
+                    escape = Escape.ESCAPE;
+                } else if (b == '"') {
+                    endCapture(true);
+                } else if (b < 0x20) {
+                    throw new InvalidValueException("Unescaped control character in data field value: 0x" + Integer.toHexString(b));
+                } else {
+                    flushHighSurrogate();
+                    appendDecoded(b);
+                }
+                break;
+            case ESCAPE:
+                escape = Escape.NONE;
+                switch (b) {
+                    case 'u':
+                        escape = Escape.UNICODE;
+                        unicodeValue = 0;
+                        unicodeDigits = 0;
+                        break;
+                    case 'b':
+                        appendDecodedChar('\b');
+                        break;
+                    case 'f':
+                        appendDecodedChar('\f');
+                        break;
+                    case 'n':
+                        appendDecodedChar('\n');
+                        break;
+                    case 'r':
+                        appendDecodedChar('\r');
+                        break;
+                    case 't':
+                        appendDecodedChar('\t');
+                        break;
+                    case '"':
+                    case '\\':
+                    case '/':
+                        appendDecodedChar((char) b);
+                        break;
+                    default:
+                        throw new InvalidValueException("Invalid escape sequence in data field value: \\" + (char) (b & 0xff));
+                }
+                break;
+            case UNICODE:
+            default:
+                final int digit = Character.digit(b, 16);
+                if (digit == -1) {
+                    throw new InvalidValueException("Invalid unicode escape sequence in data field value");
+                }
+                unicodeValue = (unicodeValue << 4) | digit;
+                if (++unicodeDigits == 4) {
+                    escape = Escape.NONE;
+                    appendDecodedChar((char) unicodeValue);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Checks that a byte of a value is allowed at its position in a UTF-8 sequence. Overlong encodings, encoded surrogates and
+     * code points beyond U+10FFFF are rejected, as they are by the JSON parser.
+     */
+    private void checkUtf8(final int b) throws InvalidValueException
+    {
+        if (utf8Remaining > 0) {
+            if (b < utf8NextMin || b > utf8NextMax) {
+                throw new InvalidValueException("Invalid UTF-8 sequence in data field value");
+            }
+            utf8Remaining--;
+            utf8NextMin = 0x80;
+            utf8NextMax = 0xbf;
+            return;
+        }
+        utf8NextMin = 0x80;
+        utf8NextMax = 0xbf;
+        if (b >= 0xc2 && b <= 0xdf) {
+            utf8Remaining = 1;
+        } else if (b >= 0xe0 && b <= 0xef) {
+            utf8Remaining = 2;
+            if (b == 0xe0) {
+                utf8NextMin = 0xa0;
+            } else if (b == 0xed) {
+                utf8NextMax = 0x9f;
+            }
+        } else if (b >= 0xf0 && b <= 0xf4) {
+            utf8Remaining = 3;
+            if (b == 0xf0) {
+                utf8NextMin = 0x90;
+            } else if (b == 0xf4) {
+                utf8NextMax = 0x8f;
+            }
+        } else {
+            throw new InvalidValueException("Invalid UTF-8 sequence in data field value");
+        }
+    }
+
+    private void appendDecodedChar(final char c) throws IOException
+    {
+        if (Character.isLowSurrogate(c) && highSurrogate != 0) {
+            final int codePoint = Character.toCodePoint(highSurrogate, c);
+            highSurrogate = 0;
+            appendDecoded((byte) (0xf0 | (codePoint >> 18)));
+            appendDecoded((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+            appendDecoded((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+            appendDecoded((byte) (0x80 | (codePoint & 0x3f)));
+            return;
+        }
+        flushHighSurrogate();
+        if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            appendDecoded((byte) '?');
+        } else if (c < 0x80) {
+            appendDecoded((byte) c);
+        } else if (c < 0x800) {
+            appendDecoded((byte) (0xc0 | (c >> 6)));
+            appendDecoded((byte) (0x80 | (c & 0x3f)));
+        } else {
+            appendDecoded((byte) (0xe0 | (c >> 12)));
+            appendDecoded((byte) (0x80 | ((c >> 6) & 0x3f)));
+            appendDecoded((byte) (0x80 | (c & 0x3f)));
+        }
+    }
+
+    private void flushHighSurrogate() throws IOException
+    {
+        if (highSurrogate != 0) {
+            // An unpaired surrogate is replaced in the same way as when a String is encoded
+            highSurrogate = 0;
+            appendDecoded((byte) '?');
+        }
+    }
+
+    private void appendDecoded(final byte b) throws IOException
+    {
+        decodedValueLength++;
+        if (spillStream != null) {
+            spillStream.write(b);
+            return;
+        }
+        if (decodedValueLength > fieldValueSizeThreshold) {
+            startSpill();
+            spillStream.write(b);
+            return;
+        }
+        if (decodedValueLength > decodedValue.length) {
+            decodedValue = Arrays.copyOf(decodedValue, decodedValue.length * 2);
+        }
+        decodedValue[(int) decodedValueLength - 1] = b;
+    }
+
+    private void appendRaw(final byte b)
+    {
+        if (rawValueLength == rawValue.length) {
+            rawValue = Arrays.copyOf(rawValue, rawValue.length * 2);
+        }
+        rawValue[rawValueLength++] = b;
+    }
+
+    private void startSpill() throws IOException
+    {
+        spillFile = spillFolder.resolve(UUID.randomUUID() + SPILL_FILE_EXTENSION);
+        spillBase64Decoded = depth > 0 && base64Objects[depth - 1];
+        LOGGER.debug("Writing oversized data field value to {} (base64 decoded: {})", spillFile, spillBase64Decoded);
+        final OutputStream fileStream = FileUtils.openOutputStream(spillFile.toFile());
+        // The value is decoded a buffer at a time as it is written, so only a fixed amount of it is held in memory
+        spillStream = new BufferedOutputStream(spillBase64Decoded ? new Base64OutputStream(fileStream, false) : fileStream);
+        spillStream.write(decodedValue, 0, (int) decodedValueLength - 1);
+        rawValueLength = 0;
+        // Don't hold on to the memory used for a value which was nearly large enough to be spilled
+        rawValue = new byte[256];
+        decodedValue = new byte[256];
+    }
+
+    private void endCapture(final boolean complete) throws IOException
+    {
+        capturing = false;
+        if (spillStream == null) {
+            emit(rawValue, 0, rawValueLength);
+            return;
+        }
+        if (complete) {
+            flushHighSurrogate();
+        }
+        closeSpillStream();
+        final String marker = markerPrefix + spillCount++;
+        spilledValues.put(marker, new SpilledValue(spillFile, spillBase64Decoded));
+        spillFile = null;
+        final byte[] markerBytes = marker.getBytes(StandardCharsets.UTF_8);
+        emit((byte) '"');
+        emit(markerBytes, 0, markerBytes.length);
+        if (complete) {
+            emit((byte) '"');
+        }
+    }
+
+    private void closeSpillStream() throws IOException
+    {
+        if (spillStream != null) {
+            final OutputStream stream = spillStream;
+            spillStream = null;
+            stream.close();
+        }
+    }
+
+    private void emit(final byte b)
+    {
+        ensurePendingCapacity(1);
+        pending[pendingEnd++] = b;
+    }
+
+    private void emit(final byte[] bytes, final int offset, final int length)
+    {
+        ensurePendingCapacity(length);
+        System.arraycopy(bytes, offset, pending, pendingEnd, length);
+        pendingEnd += length;
+    }
+
+    private void ensurePendingCapacity(final int length)
+    {
+        if (pendingEnd + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingEnd + length));
+        }
+    }
+
+    private static void deleteQuietly(final Path file)
+    {
+        try {
+            Files.deleteIfExists(file);
+        } catch (final IOException ex) {
+            LOGGER.warn("Failed to delete {}", file, ex);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.cafdataprocessing.services.staging.dao.BatchDao;
+import com.github.cafdataprocessing.services.staging.exceptions.BatchNotFoundException;
+import com.github.cafdataprocessing.services.staging.models.BatchStatus;
+import com.github.cafdataprocessing.services.staging.models.BatchStatusResponse;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public final class BatchProgressEventPublisherTest
+{
+    private BatchDao batchDao;
+    private BatchProgressEventPublisher publisher;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private AsyncContext asyncContext;
+    private ByteArrayOutputStream output;
+    private CapturingOutputStream outputStream;
+    private TenantId tenantId;
+    private BatchId batchId;
+
+    @BeforeEach
+    public void setup() throws Exception
+    {
+        batchDao = Mockito.mock(BatchDao.class);
+        publisher = new BatchProgressEventPublisher(batchDao, new ObjectMapper().findAndRegisterModules(), 10);
+        request = Mockito.mock(HttpServletRequest.class);
+        response = Mockito.mock(HttpServletResponse.class);
+        asyncContext = Mockito.mock(AsyncContext.class);
+        output = new ByteArrayOutputStream();
+        Mockito.when(request.startAsync(request, response)).thenReturn(asyncContext);
+        outputStream = new CapturingOutputStream(output);
+        Mockito.when(response.getOutputStream()).thenReturn(outputStream);
+        tenantId = new TenantId("test-tenant");
+        batchId = new BatchId("test-batch");
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        publisher.close();
+    }
+
+    @Test
+    public void publishUntilCompleteTest() throws Exception
+    {
+        Mockito.when(batchDao.getBatchStatus(tenantId, batchId)).thenReturn(status(false), status(true));
+
+        publisher.publish(request, response, tenantId, batchId, status(false));
+
+        Mockito.verify(asyncContext, Mockito.timeout(5000)).complete();
+        Mockito.verify(response).setContentType("text/event-stream");
+        assertEquals("progress,progress,complete", getEventNames());
+    }
+
+    @Test
+    public void publishFailedUploadTest() throws Exception
+    {
+        Mockito.when(batchDao.getBatchStatus(tenantId, batchId)).thenThrow(new BatchNotFoundException(batchId.getValue()));
+
+        publisher.publish(request, response, tenantId, batchId, status(false));
+
+        Mockito.verify(asyncContext, Mockito.timeout(5000)).complete();
+        assertEquals("progress,failed", getEventNames());
+    }
+
+    @Test
+    public void publishCompletedBatchTest() throws Exception
+    {
+        publisher.publish(request, response, tenantId, batchId, status(true));
+
+        Mockito.verify(asyncContext).complete();
+        Mockito.verifyNoInteractions(batchDao);
+        assertEquals("complete", getEventNames());
+    }
+
+    @Test
+    public void publishAfterCloseTest() throws Exception
+    {
+        publisher.close();
+
+        publisher.publish(request, response, tenantId, batchId, status(false));
+
+        Mockito.verify(asyncContext).complete();
+        Mockito.verifyNoInteractions(batchDao);
+        assertEquals("progress", getEventNames());
+    }
+
+    @Test
+    public void publishToSlowClientTest() throws Exception
+    {
+        Mockito.when(batchDao.getBatchStatus(tenantId, batchId)).thenReturn(status(false), status(false), status(true));
+        outputStream.ready = false;
+
+        publisher.publish(request, response, tenantId, batchId, status(false));
+
+        // The statuses read while the client is not reading replace each other rather than building up
+        Mockito.verify(batchDao, Mockito.timeout(5000).times(3)).getBatchStatus(tenantId, batchId);
+        Thread.sleep(50);
+        Mockito.verify(batchDao, Mockito.times(3)).getBatchStatus(tenantId, batchId);
+        Mockito.verify(asyncContext, Mockito.never()).complete();
+        assertEquals("", getEventNames());
+
+        outputStream.ready = true;
+        outputStream.writeListener.onWritePossible();
+
+        Mockito.verify(asyncContext).complete();
+        assertEquals("complete", getEventNames());
+    }
+
+    private BatchStatusResponse status(final boolean complete)
+    {
+        return new BatchStatusResponse()
+            .batchId(batchId.getValue())
+            .batchStatus(new BatchStatus().batchComplete(complete));
+    }
+
+    private String getEventNames()
+    {
+        final StringBuilder eventNames = new StringBuilder();
+        for (final String line : output.toString(StandardCharsets.UTF_8).split("\n")) {
+            if (line.startsWith("event: ")) {
+                if (eventNames.length() > 0) {
+                    eventNames.append(',');
+                }
+                eventNames.append(line.substring("event: ".length()));
+            }
+        }
+        return eventNames.toString();
+    }
+
+    private static final class CapturingOutputStream extends ServletOutputStream
+    {
+        private final ByteArrayOutputStream output;
+        private volatile boolean ready;
+        private WriteListener writeListener;
+
+        public CapturingOutputStream(final ByteArrayOutputStream output)
+        {
+            this.output = output;
+            this.ready = true;
+        }
+
+        @Override
+        public void write(final int b)
+        {
+            output.write(b);
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener(final WriteListener writeListener)
+        {
+            this.writeListener = writeListener;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public final class UploadAdmissionControllerTest
+{
+    @Test
+    public void tenantLimitTest() throws Exception
+    {
+        final UploadAdmissionController controller = new UploadAdmissionController(0, 1, 10, 100);
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        controller.bindTo(registry);
+        final TenantId tenant1 = new TenantId("tenant1");
+
+        try (final UploadAdmissionController.Permit permit = controller.admit(tenant1)) {
+            final UploadAdmissionController.UploadRejectedException ex
+                = assertThrows(UploadAdmissionController.UploadRejectedException.class, () -> controller.admit(tenant1));
+            assertTrue(ex.getRetryAfterSeconds() >= 1);
+            controller.admit(new TenantId("tenant2")).close();
+            assertEquals(1, registry.get("staging.uploads.running").gauge().value());
+            assertEquals(1, registry.get("staging.uploads.rejected").tag("reason", "queue_timeout").counter().count());
+        }
+        controller.admit(tenant1).close();
+        assertEquals(0, registry.get("staging.uploads.running").gauge().value());
+    }
+
+    @Test
+    public void retryAfterUsesFinishHistoryTest() throws Exception
+    {
+        final UploadAdmissionController controller = new UploadAdmissionController(0, 1, 10, 2000);
+        final TenantId tenant1 = new TenantId("tenant1");
+
+        // The tenant has no uploads left between these, but how often they finish is still remembered
+        controller.admit(tenant1).close();
+        controller.admit(tenant1).close();
+        try (final UploadAdmissionController.Permit permit = controller.admit(tenant1)) {
+            final UploadAdmissionController.UploadRejectedException ex
+                = assertThrows(UploadAdmissionController.UploadRejectedException.class, () -> controller.admit(tenant1));
+            assertEquals(1, ex.getRetryAfterSeconds());
+        }
+    }
+
+    @Test
+    public void queueFullTest() throws Exception
+    {
+        final UploadAdmissionController controller = new UploadAdmissionController(1, 0, 0, 60000);
+        try (final UploadAdmissionController.Permit permit = controller.admit(new TenantId("tenant1"))) {
+            assertThrows(UploadAdmissionController.UploadRejectedException.class,
+                         () -> controller.admit(new TenantId("tenant2")));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public final class UploadBandwidthThrottleTest
+{
+    @Test
+    public void tenantLimitTest() throws Exception
+    {
+        try (final UploadBandwidthThrottle throttle = new UploadBandwidthThrottle(0, 0, "tenant1:100000")) {
+            assertTrue(throttle.isEnabled());
+            try (final UploadBandwidthThrottle.Lease lease = throttle.register(new TenantId("tenant1"))) {
+                assertEquals(100000, lease.getRateLimit());
+                final long delayNanos = lease.reserve(50000);
+                assertTrue(delayNanos > 400_000_000L && delayNanos <= 500_000_000L);
+            }
+            try (final UploadBandwidthThrottle.Lease lease = throttle.register(new TenantId("tenant2"))) {
+                assertEquals(0, lease.getRateLimit());
+                assertEquals(0, lease.reserve(50000));
+            }
+        }
+    }
+
+    @Test
+    public void unusedCapacitySharedTest() throws Exception
+    {
+        try (final UploadBandwidthThrottle throttle = new UploadBandwidthThrottle(1048576, 0, null)) {
+            try (final UploadBandwidthThrottle.Lease idle = throttle.register(new TenantId("tenant1"));
+                 final UploadBandwidthThrottle.Lease busy = throttle.register(new TenantId("tenant2"))) {
+                assertEquals(524288, idle.getRateLimit());
+                assertEquals(524288, busy.getRateLimit());
+
+                assertTrue(busy.reserve(524288) > 0);
+                Thread.sleep(300);
+                busy.reserve(1);
+
+                assertEquals(65536, idle.getRateLimit());
+                assertEquals(1048576 - 65536, busy.getRateLimit());
+            }
+        }
+    }
+
+    @Test
+    public void disabledTest() throws Exception
+    {
+        try (final UploadBandwidthThrottle throttle = new UploadBandwidthThrottle(0, 0, "")) {
+            assertFalse(throttle.isEnabled());
+            try (final UploadBandwidthThrottle.Lease lease = throttle.register(new TenantId("tenant1"))) {
+                assertEquals(0, lease.reserve(Integer.MAX_VALUE));
+            }
+        }
+    }
+}
@@ -18,18 +18,39 @@ package com.github.cafdataprocessing.services.staging.dao;
 import com.github.cafdataprocessing.services.staging.BatchId;
 import com.github.cafdataprocessing.services.staging.TenantId;
 import com.github.cafdataprocessing.services.staging.dao.filesystem.BatchPathProvider;
+import com.github.cafdataprocessing.services.staging.dao.filesystem.BatchSummary;
 import com.github.cafdataprocessing.services.staging.dao.filesystem.FileSystemDao;
+import com.github.cafdataprocessing.services.staging.dao.filesystem.FileSystemDaoOptions;
+import com.github.cafdataprocessing.services.staging.dao.filesystem.FileWriteStrategy;
+import com.github.cafdataprocessing.services.staging.dao.filesystem.SubbatchManifest;
+import com.github.cafdataprocessing.services.staging.exceptions.BatchNotFoundException;
 import com.github.cafdataprocessing.services.staging.exceptions.InvalidBatchException;
 import com.github.cafdataprocessing.services.staging.exceptions.InvalidBatchIdException;
+import com.github.cafdataprocessing.services.staging.exceptions.UploadSessionConflictException;
+import com.github.cafdataprocessing.services.staging.models.BatchDetails;
+import com.github.cafdataprocessing.services.staging.models.BatchStatusEntry;
 import com.github.cafdataprocessing.services.staging.models.BatchStatusResponse;
+import com.github.cafdataprocessing.services.staging.utils.DocumentBuffer;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.apache.commons.fileupload2.core.FileItemInput;
 import org.apache.commons.fileupload2.core.FileItemInputIterator;
 import org.apache.commons.io.FileUtils;
@@ -37,6 +58,9 @@ import org.apache.commons.io.FilenameUtils;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import org.junit.jupiter.api.BeforeEach;
@@ -56,6 +80,7 @@ public class FileSystemDaoTest
     private String baseDirName;
     private String storageDirName = "/etc/store/batches";
     private FileSystemDao fileSystemDao;
+    private final List<FileSystemDao> openDaos = new ArrayList<>();
     final int fieldValueSizeThreshold = 8192; // 8KB
 
     @BeforeEach
@@ -63,12 +88,15 @@ public class FileSystemDaoTest
     {
         tenantId = new TenantId(TEST_TENANT_ID);
         baseDirName = getTempBaseBatchDir();
-        this.fileSystemDao = new FileSystemDao(baseDirName, 250, storageDirName, fieldValueSizeThreshold, 36000000, true);
+        this.fileSystemDao = closeAfterTest(new FileSystemDao(daoOptions().build()));
     }
 
     @AfterEach
     public void tearDown() throws IOException
     {
+        for (final FileSystemDao dao : openDaos) {
+            dao.close();
+        }
         final File baseDir = new File(baseDirName);
         if (baseDir.exists()) {
             FileUtils.deleteDirectory(baseDir);
@@ -105,6 +133,364 @@ public class FileSystemDaoTest
         assertTrue(isUUIDvalid(FilenameUtils.getBaseName(files.get(0))));
     }
 
+    @Test
+    public void saveFilesParallelTest() throws Exception
+    {
+        final FileSystemDao parallelFileSystemDao
+            = closeAfterTest(new FileSystemDao(daoOptions().subbatchSize(2).documentProcessing(4, 2).build()));
+        final BatchId batchId = new BatchId(UUID.randomUUID().toString());
+
+        FileItemInput looseFile = mock(FileItemInput.class);
+        when(looseFile.getContentType()).thenReturn("application/text");
+        when(looseFile.getFieldName()).thenReturn("A_Christmas_Carol1.txt");
+        when(looseFile.isFormField()).thenReturn(true);
+        when(looseFile.getInputStream()).thenReturn(new ByteArrayInputStream("Hello".getBytes()));
+
+        final FileItemInput[] documents = new FileItemInput[5];
+        for (int i = 0; i < documents.length; i++) {
+            documents[i] = mock(FileItemInput.class);
+            when(documents[i].getContentType()).thenReturn("application/document+json");
+            when(documents[i].getFieldName()).thenReturn("jsonDocument" + i + ".json");
+            when(documents[i].isFormField()).thenReturn(true);
+            when(documents[i].getInputStream()).thenReturn(new ByteArrayInputStream(
+                ("{\"document\":{\"reference\":\"doc" + i + "\",\"fields\":{\"CONTENT\":[{\"data\":\"A_Christmas_Carol1.txt\","
+                + "\"encoding\":\"local_ref\"}]}}}").getBytes()));
+        }
+
+        FileItemInputIterator fileItemIterator = mock(FileItemInputIterator.class);
+        when(fileItemIterator.hasNext()).thenReturn(true, true, true, true, true, true, false);
+        when(fileItemIterator.next()).thenReturn(looseFile, documents);
+
+        final UploadProgress progress = new UploadProgress();
+        final List<String> files = parallelFileSystemDao.saveFiles(tenantId, batchId, fileItemIterator, progress);
+        assertEquals(6, files.size());
+        assertEquals(5, progress.getDocuments());
+        assertEquals(1, progress.getLooseFiles());
+        assertEquals(3, progress.getSubbatches());
+
+        final File batchDir = Paths.get(getCompletedBatchDir(tenantId, baseDirName), batchId.getValue()).toFile();
+        final List<String> documentReferences = new ArrayList<>();
+        for (final SubbatchManifest.Entry subbatch : SubbatchManifest.read(batchDir.toPath()).getEntries()) {
+            final List<String> lines = FileUtils.readLines(new File(batchDir, subbatch.getFileName()), "UTF8");
+            for (final String line : lines) {
+                final int referenceStart = line.indexOf("\"reference\":\"") + "\"reference\":\"".length();
+                documentReferences.add(line.substring(referenceStart, line.indexOf('"', referenceStart)));
+                assertTrue(line.contains(storageDirName), "Local reference was not resolved: " + line);
+            }
+        }
+        assertEquals(List.of("doc0", "doc1", "doc2", "doc3", "doc4"), documentReferences);
+        // The names of the subbatch files sort in the order in which they were written
+        assertEquals(SubbatchManifest.read(batchDir.toPath()).getEntries().stream().map(SubbatchManifest.Entry::getFileName)
+                         .collect(Collectors.toList()),
+                     FileUtils.listFiles(batchDir, new String[]{"batch"}, false).stream().map(File::getName).sorted()
+                         .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void writeDocumentWithoutWaitingTest() throws Exception
+    {
+        // No document processing threads are configured, so the documents are processed one at a time on a separate thread
+        final BatchId batchId = new BatchId(UUID.randomUUID().toString());
+        final Semaphore writable = new Semaphore(0);
+        try (final BatchUpload batchUpload = fileSystemDao.startBatchUpload(tenantId, batchId)) {
+            for (int i = 0; i < 3; i++) {
+                writeDocumentWithoutWaiting(batchUpload, "{\"document\":{\"reference\":\"doc" + i + "\"}}", writable);
+            }
+            writeDocumentWithoutWaiting(batchUpload, "{\"document\":", writable);
+            assertThrows(InvalidBatchException.class, batchUpload::complete);
+        }
+
+        final BatchId validBatchId = new BatchId(UUID.randomUUID().toString());
+        try (final BatchUpload batchUpload = fileSystemDao.startBatchUpload(tenantId, validBatchId)) {
+            for (int i = 0; i < 3; i++) {
+                writeDocumentWithoutWaiting(batchUpload, "{\"document\":{\"reference\":\"doc" + i + "\"}}", writable);
+            }
+            assertEquals(3, batchUpload.complete().size());
+        }
+        final File batchDir = Paths.get(getCompletedBatchDir(tenantId, baseDirName), validBatchId.getValue()).toFile();
+        final List<String> lines = new ArrayList<>();
+        for (final SubbatchManifest.Entry subbatch : SubbatchManifest.read(batchDir.toPath()).getEntries()) {
+            lines.addAll(FileUtils.readLines(new File(batchDir, subbatch.getFileName()), "UTF8"));
+        }
+        assertEquals(List.of("{\"document\":{\"reference\":\"doc0\"}}",
+                             "{\"document\":{\"reference\":\"doc1\"}}",
+                             "{\"document\":{\"reference\":\"doc2\"}}"), lines);
+        assertFalse(Paths.get(getCompletedBatchDir(tenantId, baseDirName), batchId.getValue()).toFile().exists());
+    }
+
+    @Test
+    public void saveFilesChannelWriteStrategyTest() throws Exception
+    {
+        final FileWriteStrategy channelWriteStrategy = new FileWriteStrategy(FileWriteStrategy.Mode.CHANNEL, 7, 4096);
+        final FileSystemDao channelFileSystemDao = closeAfterTest(new FileSystemDao(daoOptions()
+            .subbatchWriteStrategy(channelWriteStrategy)
+            .looseFileWriteStrategy(channelWriteStrategy)
+            .build()));
+        final BatchId batchId = new BatchId(UUID.randomUUID().toString());
+        final String looseFileContent = "Hello, this content is longer than the write buffer";
+
+        FileItemInput looseFile = mock(FileItemInput.class);
+        when(looseFile.getContentType()).thenReturn("application/text");
+        when(looseFile.getFieldName()).thenReturn("hello.txt");
+        when(looseFile.isFormField()).thenReturn(true);
+        when(looseFile.getInputStream()).thenReturn(new ByteArrayInputStream(looseFileContent.getBytes()));
+
+        FileItemInput document = mock(FileItemInput.class);
+        when(document.getContentType()).thenReturn("application/document+json");
+        when(document.getFieldName()).thenReturn("jsonDocument.json");
+        when(document.isFormField()).thenReturn(true);
+        when(document.getInputStream()).thenReturn(new ByteArrayInputStream("{\"document\":{\"reference\":\"doc\"}}".getBytes()));
+
+        FileItemInputIterator fileItemIterator = mock(FileItemInputIterator.class);
+        when(fileItemIterator.hasNext()).thenReturn(true, true, false);
+        when(fileItemIterator.next()).thenReturn(looseFile, document);
+
+        final List<String> files = channelFileSystemDao.saveFiles(tenantId, batchId, fileItemIterator);
+        assertEquals(2, files.size());
+
+        final File batchDir = Paths.get(getCompletedBatchDir(tenantId, baseDirName), batchId.getValue()).toFile();
+        final File storedLooseFile = batchDir.toPath().resolve("files").resolve(files.get(0)).toFile();
+        // The preallocated file is truncated to the length of its content
+        assertEquals(looseFileContent, FileUtils.readFileToString(storedLooseFile, "UTF8"));
+        final List<String> subbatchLines = new ArrayList<>();
+        for (final File subbatch : FileUtils.listFiles(batchDir, new String[]{"batch"}, false)) {
+            subbatchLines.addAll(FileUtils.readLines(subbatch, "UTF8"));
+        }
+        assertEquals(List.of("{\"document\":{\"reference\":\"doc\"}}"), subbatchLines);
+    }
+
+    @Test
+    public void saveFilesDeduplicatedTest() throws Exception
+    {
+        final FileSystemDao dedupFileSystemDao = closeAfterTest(new FileSystemDao(daoOptions().deduplicateLooseFiles(true).build()));
+        final BatchId[] batchIds = {new BatchId(UUID.randomUUID().toString()), new BatchId(UUID.randomUUID().toString())};
+        final File[] storedFiles = new File[batchIds.length];
+        for (int i = 0; i < batchIds.length; i++) {
+            FileItemInput looseFile = mock(FileItemInput.class);
+            when(looseFile.getContentType()).thenReturn("application/text");
+            when(looseFile.getFieldName()).thenReturn("hello.txt");
+            when(looseFile.isFormField()).thenReturn(true);
+            when(looseFile.getInputStream()).thenReturn(new ByteArrayInputStream("Hello".getBytes()));
+
+            FileItemInputIterator fileItemIterator = mock(FileItemInputIterator.class);
+            when(fileItemIterator.hasNext()).thenReturn(true, false);
+            when(fileItemIterator.next()).thenReturn(looseFile);
+
+            final List<String> files = dedupFileSystemDao.saveFiles(tenantId, batchIds[i], fileItemIterator);
+            assertEquals(1, files.size());
+            // SHA-256 of "Hello"
+            assertEquals("185f8db32271fe25f561a6fc938b2e264306ec304eda518007d1764826381969.txt", files.get(0));
+            storedFiles[i] = Paths.get(getCompletedBatchDir(tenantId, baseDirName), batchIds[i].getValue(), "files", files.get(0))
+                .toFile();
+        }
+
+        final Path storeEntry = Paths.get(baseDirName, TEST_TENANT_ID, BatchPathProvider.CONTENT_STORE_FOLDER, "18",
+                                          "185f8db32271fe25f561a6fc938b2e264306ec304eda518007d1764826381969");
+        assertEquals(Files.readAttributes(storeEntry, BasicFileAttributes.class).fileKey(),
+                     Files.readAttributes(storedFiles[0].toPath(), BasicFileAttributes.class).fileKey());
+        assertEquals(Files.readAttributes(storeEntry, BasicFileAttributes.class).fileKey(),
+                     Files.readAttributes(storedFiles[1].toPath(), BasicFileAttributes.class).fileKey());
+
+        dedupFileSystemDao.deleteBatch(tenantId, batchIds[0]);
+        assertTrue(Files.exists(storeEntry), "Stored content removed while still referenced");
+        assertEquals("Hello", FileUtils.readFileToString(storedFiles[1], "UTF8"));
+
+        dedupFileSystemDao.deleteBatch(tenantId, batchIds[1]);
+        assertTrue(Files.notExists(storeEntry), "Unreferenced stored content not removed");
+    }
+
+    @Test
+    public void replaceBatchTest() throws Exception
+    {
+        final BatchId batchId = new BatchId(UUID.randomUUID().toString());
+        for (final String reference : new String[]{"first", "second"}) {
+            FileItemInput document = mock(FileItemInput.class);
+            when(document.getContentType()).thenReturn("application/document+json");
+            when(document.getFieldName()).thenReturn("jsonDocument.json");
+            when(document.isFormField()).thenReturn(true);
+            when(document.getInputStream()).thenReturn(new ByteArrayInputStream(
+                ("{\"document\":{\"reference\":\"" + reference + "\"}}").getBytes()));
+
+            FileItemInputIterator fileItemIterator = mock(FileItemInputIterator.class);
+            when(fileItemIterator.hasNext()).thenReturn(true, false);
+            when(fileItemIterator.next()).thenReturn(document);
+
+            fileSystemDao.saveFiles(tenantId, batchId, fileItemIterator);
+        }
+
+        final File batchDir = Paths.get(getCompletedBatchDir(tenantId, baseDirName), batchId.getValue()).toFile();
+        final Collection<File> subbatches = FileUtils.listFiles(batchDir, new String[]{"batch"}, false);
+        assertEquals(1, subbatches.size());
+        assertEquals("{\"document\":{\"reference\":\"second\"}}",
+                     FileUtils.readFileToString(subbatches.iterator().next(), "UTF8").trim());
+        assertEquals(0, Paths.get(baseDirName, TEST_TENANT_ID, BatchPathProvider.TRASH_FOLDER).toFile().list().length);
+        assertEquals(0, new File(getInProgressBatchDir(tenantId, baseDirName)).list().length);
+    }
+
+    @Test
+    public void deleteBatchInBackgroundTest() throws Exception
+    {
+        final FileSystemDao reapingFileSystemDao = closeAfterTest(new FileSystemDao(daoOptions().trashReaperThreads(1).build()));
+        final BatchId batchId = new BatchId(UUID.randomUUID().toString());
+        FileItemInput document = mock(FileItemInput.class);
+        when(document.getContentType()).thenReturn("application/document+json");
+        when(document.getFieldName()).thenReturn("jsonDocument.json");
+        when(document.isFormField()).thenReturn(true);
+        when(document.getInputStream()).thenReturn(new ByteArrayInputStream("{\"document\":{\"reference\":\"doc\"}}".getBytes()));
+        FileItemInputIterator fileItemIterator = mock(FileItemInputIterator.class);
+        when(fileItemIterator.hasNext()).thenReturn(true, false);
+        when(fileItemIterator.next()).thenReturn(document);
+        reapingFileSystemDao.saveFiles(tenantId, batchId, fileItemIterator);
+
+        reapingFileSystemDao.deleteBatch(tenantId, batchId);
+        assertTrue(reapingFileSystemDao.getBatches(tenantId, null, null, null).isEmpty());
+        assertThrows(BatchNotFoundException.class, () -> reapingFileSystemDao.deleteBatch(tenantId, batchId));
+
+        final File trashDir = Paths.get(baseDirName, TEST_TENANT_ID, BatchPathProvider.TRASH_FOLDER).toFile();
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (trashDir.list().length > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, trashDir.list().length);
+        assertEquals(0, reapingFileSystemDao.getPendingReclaimBytes());
+    }
+
+    @Test
+    public void mergeChunkSubbatchesTest() throws Exception
+    {
+        final BatchId batchId = new BatchId(UUID.randomUUID().toString());
+        final String uploadId = fileSystemDao.openUploadSession(tenantId, batchId).getUploadId();
+        for (final int chunkNumber : new int[]{1, 2, 3}) {
+            final FileItemInput document = mock(FileItemInput.class);
+            when(document.getContentType()).thenReturn("application/document+json");
+            when(document.getFieldName()).thenReturn("jsonDocument.json");
+            when(document.isFormField()).thenReturn(true);
+            when(document.getInputStream()).thenReturn(new ByteArrayInputStream(
+                ("{\"document\":{\"reference\":\"chunk" + chunkNumber + "\"}}").getBytes()));
+            final FileItemInputIterator chunk = mock(FileItemInputIterator.class);
+            when(chunk.hasNext()).thenReturn(true, false);
+            when(chunk.next()).thenReturn(document);
+            fileSystemDao.saveChunk(tenantId, batchId, uploadId, chunkNumber, chunk);
+        }
+        fileSystemDao.commitUploadSession(tenantId, batchId, uploadId);
+
+        // Each chunk numbers its subbatch files from 1, so they are numbered again across the session in chunk order
+        final File batchDir = Paths.get(getCompletedBatchDir(tenantId, baseDirName), batchId.getValue()).toFile();
+        final List<SubbatchManifest.Entry> entries = SubbatchManifest.read(batchDir.toPath()).getEntries();
+        assertEquals(3, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            final String fileName = entries.get(i).getFileName();
+            final String expectedSuffix = String.format("-%06d-json\\.batch", i + 1);
+            assertTrue(fileName.matches("[0-9]{4}-[0-9]{2}-[0-9]{2}T[0-9]{6}\\.[0-9]{3}Z" + expectedSuffix), fileName);
+            assertEquals("{\"document\":{\"reference\":\"chunk" + (i + 1) + "\"}}",
+                         FileUtils.readFileToString(new File(batchDir, fileName), "UTF8").trim());
+        }
+        final List<String> sortedNames = entries.stream().map(SubbatchManifest.Entry::getFileName).sorted().toList();
+        assertEquals(entries.stream().map(SubbatchManifest.Entry::getFileName).toList(), sortedNames);
+    }
+
+    @Test
+    public void saveChunksTest() throws Exception
+    {
+        final BatchId batchId = new BatchId(UUID.randomUUID().toString());
+        final String uploadId = fileSystemDao.openUploadSession(tenantId, batchId).getUploadId();
+
+        FileItemInput looseFile = mock(FileItemInput.class);
+        when(looseFile.getContentType()).thenReturn("application/text");
+        when(looseFile.getFieldName()).thenReturn("A_Christmas_Carol1.txt");
+        when(looseFile.isFormField()).thenReturn(true);
+        when(looseFile.getInputStream()).thenReturn(new ByteArrayInputStream("Hello".getBytes()));
+        final FileItemInputIterator firstChunk = mock(FileItemInputIterator.class);
+        when(firstChunk.hasNext()).thenReturn(true, false);
+        when(firstChunk.next()).thenReturn(looseFile);
+        fileSystemDao.saveChunk(tenantId, batchId, uploadId, 1, firstChunk);
+
+        FileItemInput missingRefDocument = mock(FileItemInput.class);
+        when(missingRefDocument.getContentType()).thenReturn("application/document+json");
+        when(missingRefDocument.getFieldName()).thenReturn("batch1MissingLocalRef.json");
+        when(missingRefDocument.isFormField()).thenReturn(true);
+        when(missingRefDocument.getInputStream()).thenReturn(new FileInputStream(
+            Paths.get("src", "test", "resources", "batch1MissingLocalRef.json").toFile()));
+        final FileItemInputIterator failedChunk = mock(FileItemInputIterator.class);
+        when(failedChunk.hasNext()).thenReturn(true, false);
+        when(failedChunk.next()).thenReturn(missingRefDocument);
+        assertThrows(InvalidBatchException.class, () -> fileSystemDao.saveChunk(tenantId, batchId, uploadId, 2, failedChunk));
+        assertEquals(1, fileSystemDao.getUploadSession(tenantId, batchId, uploadId).getChunksReceived());
+        assertThrows(UploadSessionConflictException.class,
+                     () -> fileSystemDao.saveChunk(tenantId, batchId, uploadId, 3, mock(FileItemInputIterator.class)));
+
+        FileItemInput document = mock(FileItemInput.class);
+        when(document.getContentType()).thenReturn("application/document+json");
+        when(document.getFieldName()).thenReturn("jsonDocument.json");
+        when(document.isFormField()).thenReturn(true);
+        when(document.getInputStream()).thenReturn(new ByteArrayInputStream(
+            ("{\"document\":{\"reference\":\"doc\",\"fields\":{\"CONTENT\":[{\"data\":\"A_Christmas_Carol1.txt\","
+            + "\"encoding\":\"local_ref\"}]}}}").getBytes()));
+        final FileItemInputIterator secondChunk = mock(FileItemInputIterator.class);
+        when(secondChunk.hasNext()).thenReturn(true, false);
+        when(secondChunk.next()).thenReturn(document);
+        fileSystemDao.saveChunk(tenantId, batchId, uploadId, 2, secondChunk);
+
+        // A chunk which is sent again after it has been received is ignored
+        final FileItemInputIterator resentChunk = mock(FileItemInputIterator.class);
+        fileSystemDao.saveChunk(tenantId, batchId, uploadId, 1, resentChunk);
+        assertEquals(2, fileSystemDao.getUploadSession(tenantId, batchId, uploadId).getChunksReceived());
+
+        fileSystemDao.commitUploadSession(tenantId, batchId, uploadId);
+
+        final File batchDir = Paths.get(getCompletedBatchDir(tenantId, baseDirName), batchId.getValue()).toFile();
+        final String[] batchFiles = batchDir.list();
+        Arrays.sort(batchFiles);
+        assertEquals(4, batchFiles.length);
+        assertTrue(batchFiles[0].endsWith("-json.batch"));
+        assertEquals(BatchSummary.FILE_NAME, batchFiles[1]);
+        assertEquals("files", batchFiles[2]);
+        assertEquals(SubbatchManifest.FILE_NAME, batchFiles[3]);
+        assertEquals(1, new File(batchDir, "files").list().length);
+        assertTrue(FileUtils.readFileToString(new File(batchDir, batchFiles[0]), "UTF8").contains(storageDirName));
+        final SubbatchManifest manifest = SubbatchManifest.read(batchDir.toPath());
+        assertEquals(1, manifest.getDocumentCount());
+        assertEquals(batchFiles[0], manifest.getEntries().get(0).getFileName());
+        assertEquals(0, new File(getInProgressBatchDir(tenantId, baseDirName)).list().length);
+
+        final BatchDetails batchDetails = fileSystemDao.getBatchDetails(tenantId, batchId);
+        assertEquals(1, batchDetails.getDocumentCount());
+        assertEquals(1, batchDetails.getLooseFileCount());
+        assertEquals(1, batchDetails.getSubbatchCount());
+        assertFalse(batchDetails.getUploadStartTime().isAfter(batchDetails.getUploadEndTime()));
+    }
+
+    @Test
+    public void saveFilesParallelWrongOrderNegativeTest() throws Exception
+    {
+        final FileSystemDao parallelFileSystemDao
+            = closeAfterTest(new FileSystemDao(daoOptions().documentProcessing(4, 2).build()));
+        final BatchId batchId = new BatchId(UUID.randomUUID().toString());
+        FileItemInput f1 = mock(FileItemInput.class);
+        when(f1.getContentType()).thenReturn("application/document+json");
+        when(f1.getFieldName()).thenReturn("jsonDocument.json");
+        when(f1.isFormField()).thenReturn(true);
+        when(f1.getInputStream()).thenReturn(new FileInputStream(Paths.get("src", "test", "resources", "batch1.json").toFile()));
+
+        FileItemInput f2 = mock(FileItemInput.class);
+        when(f2.getContentType()).thenReturn("application/text");
+        when(f2.getFieldName()).thenReturn("A_Christmas_Carol1.txt");
+        when(f2.isFormField()).thenReturn(true);
+        when(f2.getInputStream()).thenReturn(new ByteArrayInputStream("Hello".getBytes()));
+
+        FileItemInputIterator fileItemIterator = mock(FileItemInputIterator.class);
+        when(fileItemIterator.hasNext()).thenReturn(true, true, false);
+        when(fileItemIterator.next()).thenReturn(f1, f2);
+
+        try {
+            parallelFileSystemDao.saveFiles(tenantId, batchId, fileItemIterator);
+            fail("An exception should have been thrown");
+        } catch (InvalidBatchException ex) {
+            assertTrue(ex.getMessage().contains("Binary files referenced in the JSON documents must be uploaded before the JSON "
+                + "documents. Check file A_Christmas_Carol1.txt"));
+        }
+    }
+
     @Test
     public void saveFilesWindowsPathTest() throws Exception
     {
@@ -407,6 +793,74 @@ public class FileSystemDaoTest
         assertEquals(7, fileNames.size(), "getFilesPaginate : " + fileNames);
     }
 
+    @Test
+    public void getFilesIndexedTest() throws Exception
+    {
+        final FileSystemDao indexedFileSystemDao = closeAfterTest(new FileSystemDao(daoOptions().batchIndexMaxAge(60000).build()));
+        final String completedDirectoryName = getCompletedBatchDir(tenantId, baseDirName);
+        for (final String batch : new String[]{"abcBatch", "test-batch", "test-batch6", "test-batch7", "test-batch8", "zBatch"}) {
+            Files.createDirectories(Paths.get(completedDirectoryName, batch));
+        }
+        FileUtils.writeStringToFile(new File(completedDirectoryName, "test-file"), "abc", "UTF8");
+
+        assertEquals(List.of("test-batch", "test-batch6", "test-batch7", "test-batch8"),
+                     indexedFileSystemDao.getBatches(tenantId, "test", null, null));
+        assertEquals(List.of("test-batch7", "test-batch8"),
+                     indexedFileSystemDao.getBatches(tenantId, "test", new BatchId("test-batch7"), 10));
+        assertEquals(List.of("abcBatch", "test-batch"), indexedFileSystemDao.getBatches(tenantId, null, null, 2));
+
+        final BatchId batchId = new BatchId("test-batch10");
+        FileItemInput document = mock(FileItemInput.class);
+        when(document.getContentType()).thenReturn("application/document+json");
+        when(document.getFieldName()).thenReturn("jsonDocument.json");
+        when(document.isFormField()).thenReturn(true);
+        when(document.getInputStream()).thenReturn(new ByteArrayInputStream("{\"document\":{\"reference\":\"doc\"}}".getBytes()));
+        FileItemInputIterator fileItemIterator = mock(FileItemInputIterator.class);
+        when(fileItemIterator.hasNext()).thenReturn(true, false);
+        when(fileItemIterator.next()).thenReturn(document);
+        indexedFileSystemDao.saveFiles(tenantId, batchId, fileItemIterator);
+        assertEquals(List.of("test-batch", "test-batch10"), indexedFileSystemDao.getBatches(tenantId, "test", null, 2));
+
+        indexedFileSystemDao.deleteBatch(tenantId, new BatchId("test-batch"));
+        assertEquals(List.of("test-batch10", "test-batch6"), indexedFileSystemDao.getBatches(tenantId, "test", null, 2));
+
+        // Batches added by other instances of the service are picked up by watching the completed folder
+        Files.createDirectories(Paths.get(completedDirectoryName, "test-batch9"));
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!indexedFileSystemDao.getBatches(tenantId, "test-batch9", null, null).contains("test-batch9")
+            && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(List.of("test-batch8", "test-batch9"),
+                     indexedFileSystemDao.getBatches(tenantId, "test", new BatchId("test-batch8"), null));
+    }
+
+    @Test
+    public void streamBatchesTest() throws Exception
+    {
+        final FileSystemDao indexedFileSystemDao = closeAfterTest(new FileSystemDao(daoOptions().batchIndexMaxAge(60000).build()));
+        final String completedDirectoryName = getCompletedBatchDir(tenantId, baseDirName);
+        for (final String batch : new String[]{"zBatch", "test-batch7", "abcBatch", "test-batch6", "test-batch"}) {
+            Files.createDirectories(Paths.get(completedDirectoryName, batch));
+        }
+        FileUtils.writeStringToFile(new File(completedDirectoryName, "test-file"), "abc", "UTF8");
+
+        for (final FileSystemDao dao : new FileSystemDao[]{fileSystemDao, indexedFileSystemDao}) {
+            try (final Stream<String> batches = dao.streamBatches(tenantId, "test", null, 10)) {
+                assertEquals(List.of("test-batch", "test-batch6", "test-batch7"), batches.collect(Collectors.toList()));
+            }
+            try (final Stream<String> batches = dao.streamBatches(tenantId, "test", new BatchId("test-batch"), 10)) {
+                assertEquals(List.of("test-batch6", "test-batch7"), batches.collect(Collectors.toList()));
+            }
+            try (final Stream<String> batches = dao.streamBatches(tenantId, null, new BatchId("test-batch7"), 10)) {
+                assertEquals(List.of("zBatch"), batches.collect(Collectors.toList()));
+            }
+            try (final Stream<String> batches = dao.streamBatches(tenantId, null, null, 2)) {
+                assertEquals(List.of("abcBatch", "test-batch"), batches.collect(Collectors.toList()));
+            }
+        }
+    }
+
     @Test
     public void deleteFilesTest() throws Exception
     {
@@ -439,6 +893,102 @@ public class FileSystemDaoTest
         assertTrue(response.getBatchStatus().getBatchComplete());
     }
 
+    @Test
+    public void getBatchStatusCachedTest() throws Exception
+    {
+        final FileSystemDao cachingFileSystemDao = closeAfterTest(new FileSystemDao(daoOptions().batchStatusCacheTtl(60000).build()));
+        final BatchId batchId = new BatchId("test-batch-completed");
+        getInProgressBatchDir(tenantId, baseDirName);
+        final Path batchFolder = Files.createDirectories(Paths.get(getCompletedBatchDir(tenantId, baseDirName), batchId.getValue()));
+        assertTrue(cachingFileSystemDao.getBatchStatus(tenantId, batchId).getBatchStatus().getBatchComplete());
+
+        // The status is reused until it is older than the cache TTL
+        Files.delete(batchFolder);
+        assertTrue(cachingFileSystemDao.getBatchStatus(tenantId, batchId).getBatchStatus().getBatchComplete());
+        assertThrows(BatchNotFoundException.class, () -> fileSystemDao.getBatchStatus(tenantId, batchId));
+    }
+
+    @Test
+    public void getBatchStatusInterruptedTest() throws Exception
+    {
+        final FileSystemDao cachingFileSystemDao = closeAfterTest(new FileSystemDao(daoOptions().batchStatusCacheTtl(60000).build()));
+        final BatchId batchId = new BatchId("test-batch-legacy");
+        // An upload by an earlier version of the service, whose progress is measured by watching its folder for a second
+        Files.createDirectories(Paths.get(getInProgressBatchDir(tenantId, baseDirName),
+                                          "2022-11-11T132455.509Z-28-2726eec0-" + batchId.getValue()));
+
+        final CompletableFuture<Exception> interruptedRequest = new CompletableFuture<>();
+        final Thread interruptedThread = new Thread(() -> {
+            try {
+                cachingFileSystemDao.getBatchStatus(tenantId, batchId);
+                interruptedRequest.complete(null);
+            } catch (final Exception ex) {
+                interruptedRequest.complete(ex);
+            }
+        });
+        interruptedThread.start();
+        Thread.sleep(200);
+        final CompletableFuture<BatchStatusResponse> waitingRequest = CompletableFuture.supplyAsync(() -> {
+            try {
+                return cachingFileSystemDao.getBatchStatus(tenantId, batchId);
+            } catch (final Exception ex) {
+                throw new CompletionException(ex);
+            }
+        });
+        Thread.sleep(200);
+        interruptedThread.interrupt();
+
+        // Only the interrupted request fails; the request which was waiting for its result works the status out itself
+        assertTrue(interruptedRequest.get(10, TimeUnit.SECONDS) instanceof InterruptedException);
+        assertFalse(waitingRequest.get(10, TimeUnit.SECONDS).getBatchStatus().getBatchComplete());
+    }
+
+    @Test
+    public void getBatchStatusesTest() throws Exception
+    {
+        final FileSystemDao bulkFileSystemDao = closeAfterTest(new FileSystemDao(daoOptions().batchStatusThreads(4).build()));
+        final BatchId batchIdCompleted = new BatchId("test-batch-completed");
+        final BatchId batchIdMissing = new BatchId("test-batch-missing");
+        getInProgressBatchDir(tenantId, baseDirName);
+        Files.createDirectories(Paths.get(getCompletedBatchDir(tenantId, baseDirName), batchIdCompleted.getValue()));
+
+        final List<BatchStatusEntry> entries
+            = bulkFileSystemDao.getBatchStatuses(tenantId, Arrays.asList(batchIdMissing, batchIdCompleted, batchIdMissing));
+        assertEquals(2, entries.size());
+        assertEquals(batchIdMissing.getValue(), entries.get(0).getBatchId());
+        assertTrue(entries.get(0).getNotFound());
+        assertNull(entries.get(0).getBatchStatus());
+        assertEquals(batchIdCompleted.getValue(), entries.get(1).getBatchId());
+        assertFalse(entries.get(1).getNotFound());
+        assertTrue(entries.get(1).getBatchStatus().getBatchComplete());
+    }
+
+    private static void writeDocumentWithoutWaiting(final BatchUpload batchUpload, final String json, final Semaphore writable)
+        throws Exception
+    {
+        final DocumentBuffer document = batchUpload.createDocumentBuffer();
+        document.write(json.getBytes(StandardCharsets.UTF_8));
+        document.close();
+        if (!batchUpload.writeDocument("jsonDocument.json", document, writable::release)) {
+            assertTrue(writable.tryAcquire(10, TimeUnit.SECONDS), "Upload did not become writable");
+        }
+    }
+
+    private FileSystemDaoOptions.Builder daoOptions()
+    {
+        return new FileSystemDaoOptions.Builder(baseDirName, storageDirName)
+            .subbatchSize(250)
+            .fieldValueSizeThreshold(fieldValueSizeThreshold)
+            .fileAgeThreshold(36000000)
+            .skipBatchFileCleanup(true);
+    }
+
+    private FileSystemDao closeAfterTest(final FileSystemDao dao)
+    {
+        openDaos.add(dao);
+        return dao;
+    }
+
     private String getTempBaseBatchDir() throws Exception
     {
         return Files.createTempDirectory(BATCH_BASE_FOLDER).toString();
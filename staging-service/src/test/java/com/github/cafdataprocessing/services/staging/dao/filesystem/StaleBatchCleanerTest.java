@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem;
+
+import com.github.cafdataprocessing.services.staging.BatchId;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public final class StaleBatchCleanerTest
+{
+    private static final String STALE_FOLDER_NAME = "2020-01-01T000000.000Z-1-abcdef-batch1";
+
+    @TempDir
+    private Path basePath;
+
+    @Test
+    public void removeStaleBatchesTest() throws Exception
+    {
+        final Path inProgressFolder = Files.createDirectories(basePath.resolve("tenant1").resolve(BatchPathProvider.INPROGRESS_FOLDER));
+        final Path staleFolder = Files.createDirectories(inProgressFolder.resolve(STALE_FOLDER_NAME));
+        Files.write(staleFolder.resolve("subbatch.batch"), new byte[10]);
+        final Path recentFolder = Files.createDirectories(
+            inProgressFolder.resolve(BatchNameProvider.getBatchDirectoryName(new BatchId("batch2"))));
+        final Path sessionFolder = Files.createDirectories(inProgressFolder.resolve("2020-01-01T000000.000Z-2-abcdef-batch3"));
+        Files.createDirectories(sessionFolder.resolve(BatchNameProvider.getUploadChunkDirectoryName(1)));
+
+        try (final StaleBatchCleaner cleaner = createCleaner(new StaleBatchCleanupPolicy(0, 1, 0, 2, 1000))) {
+            cleaner.run(true);
+        }
+
+        assertFalse(Files.exists(staleFolder));
+        assertTrue(Files.exists(recentFolder));
+        // An upload session which is still receiving chunks is not stale
+        assertTrue(Files.exists(sessionFolder));
+    }
+
+    @Test
+    public void cleanUpFromCursorTest() throws Exception
+    {
+        final Path staleFolder1 = Files.createDirectories(
+            basePath.resolve("tenant1").resolve(BatchPathProvider.INPROGRESS_FOLDER).resolve(STALE_FOLDER_NAME));
+        final Path staleFolder2 = Files.createDirectories(
+            basePath.resolve("tenant2").resolve(BatchPathProvider.INPROGRESS_FOLDER).resolve(STALE_FOLDER_NAME));
+        final Path cursorFile = basePath.resolve("StaleBatchCleanup-0-of-1");
+        final StaleBatchCleaner cleaner = createCleaner(new StaleBatchCleanupPolicy(1, 1, 0, 0, 0));
+
+        cleaner.run(true);
+        assertFalse(Files.exists(staleFolder1));
+        assertTrue(Files.exists(staleFolder2));
+        assertEquals("tenant1", new String(Files.readAllBytes(cursorFile)));
+
+        // The next run carries on from the cursor, and starts again from the first tenant once every tenant has been cleaned up
+        cleaner.run(true);
+        assertFalse(Files.exists(staleFolder2));
+        assertFalse(Files.exists(cursorFile));
+    }
+
+    @Test
+    public void cleanUpShardTest() throws Exception
+    {
+        final StaleBatchCleanupPolicy shard0 = new StaleBatchCleanupPolicy(0, 2, 0, 0, 0);
+        final StaleBatchCleanupPolicy shard1 = new StaleBatchCleanupPolicy(0, 2, 1, 0, 0);
+        final String tenantId = "tenant1";
+        final Path staleFolder = Files.createDirectories(
+            basePath.resolve(tenantId).resolve(BatchPathProvider.INPROGRESS_FOLDER).resolve(STALE_FOLDER_NAME));
+        final StaleBatchCleanupPolicy otherShard = shard0.isInShard(tenantId) ? shard1 : shard0;
+        final StaleBatchCleanupPolicy ownShard = shard0.isInShard(tenantId) ? shard0 : shard1;
+
+        createCleaner(otherShard).run(true);
+        assertTrue(Files.exists(staleFolder));
+
+        createCleaner(ownShard).run(true);
+        assertFalse(Files.exists(staleFolder));
+    }
+
+    private StaleBatchCleaner createCleaner(final StaleBatchCleanupPolicy policy)
+    {
+        final BatchPathProvider batchPathProvider = new BatchPathProvider(basePath.toString());
+        return new StaleBatchCleaner(basePath, batchPathProvider, null, new TrashReaper(null, 0), 3600000, policy);
+    }
+}
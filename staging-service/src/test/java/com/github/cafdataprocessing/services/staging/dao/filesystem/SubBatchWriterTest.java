@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.CRC32C;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public final class SubBatchWriterTest
+{
+    @TempDir
+    private File folder;
+
+    @Test
+    public void byteSizeRolloverTest() throws Exception
+    {
+        final SubBatchWriter writer = new SubBatchWriter(folder, 0, 20, FileWriteStrategy.DEFAULT, false);
+        try (writer) {
+            for (int i = 0; i < 5; i++) {
+                writer.writeMinifiedDocument(("{\"doc\":" + i + "}\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(List.of(2, 2, 1), getDocumentCounts(writer.getManifest()));
+    }
+
+    @Test
+    public void byteSizeAndCountRolloverTest() throws Exception
+    {
+        final SubBatchWriter writer = new SubBatchWriter(folder, 2, 1000, FileWriteStrategy.DEFAULT, false);
+        try (writer) {
+            for (int i = 0; i < 5; i++) {
+                writer.writeMinifiedDocument(("{\"doc\":" + i + "}\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(List.of(2, 2, 1), getDocumentCounts(writer.getManifest()));
+    }
+
+    @Test
+    public void manifestTest() throws Exception
+    {
+        final SubBatchWriter writer = new SubBatchWriter(folder, 2, 0, FileWriteStrategy.DEFAULT, true);
+        try (writer) {
+            for (int i = 0; i < 3; i++) {
+                writer.writeMinifiedDocument(("{\"doc\":" + i + "}\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        writer.getManifest().write(folder.toPath());
+        final SubbatchManifest manifest = SubbatchManifest.read(folder.toPath());
+
+        assertEquals(3, manifest.getDocumentCount());
+        assertEquals(2, manifest.getEntries().size());
+        assertEquals(0, manifest.getEntries().get(0).getFirstDocument());
+        assertEquals(2, manifest.getEntries().get(1).getFirstDocument());
+        for (final SubbatchManifest.Entry entry : manifest.getEntries()) {
+            final Path subbatch = folder.toPath().resolve(entry.getFileName());
+            assertEquals(Files.size(subbatch), entry.getByteLength());
+            final CRC32C checksum = new CRC32C();
+            checksum.update(Files.readAllBytes(subbatch));
+            assertEquals(checksum.getValue(), entry.getChecksum());
+        }
+    }
+
+    private List<Integer> getDocumentCounts(final SubbatchManifest manifest)
+    {
+        return manifest.getEntries().stream()
+            .map(entry -> countLines(folder.toPath().resolve(entry.getFileName())))
+            .toList();
+    }
+
+    private static int countLines(final Path subbatch)
+    {
+        try {
+            return Files.readAllLines(subbatch).size();
+        } catch (final Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
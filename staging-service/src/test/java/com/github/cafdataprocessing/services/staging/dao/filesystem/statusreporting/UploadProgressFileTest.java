@@ -0,0 +1,58 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.dao.filesystem.statusreporting;
+
+import com.github.cafdataprocessing.services.staging.models.InProgressMetrics;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public final class UploadProgressFileTest
+{
+    @TempDir
+    private Path folder;
+
+    @Test
+    public void readProgressTest() throws Exception
+    {
+        assertNull(UploadProgressFile.read(folder));
+
+        final UploadProgressFile progressFile = new UploadProgressFile(folder);
+        progressFile.update(1024, 3);
+        // Updates within the update interval are not written
+        progressFile.update(2048, 6);
+
+        final InProgressMetrics metrics = UploadProgressFile.read(folder).toInProgressMetrics();
+        assertEquals(1024, metrics.getBytesReceived());
+        assertTrue(metrics.getIsProgressing());
+
+        UploadProgressFile.delete(folder);
+        assertNull(UploadProgressFile.read(folder));
+    }
+
+    @Test
+    public void missingFolderTest() throws Exception
+    {
+        final Path missingFolder = folder.resolve("missing");
+        new UploadProgressFile(missingFolder).update(1024, 3);
+        assertFalse(Files.exists(missingFolder));
+    }
+}
@@ -15,16 +15,28 @@
  */
 package com.github.cafdataprocessing.services.staging.utils;
 
+import com.github.cafdataprocessing.services.staging.exceptions.InvalidBatchException;
 import com.microfocus.caf.worker.document.schema.validator.InvalidDocumentException;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
@@ -35,6 +47,9 @@ public final class JsonMinifierTest
     final String inprogressContentFolderPath = "/etc/store/batches/acme-com/in_progress/test_batch/files";
     final int fieldValueSizeThreshold = 8192; // 8KB
 
+    @TempDir
+    public File tempFolder;
+
     @SuppressWarnings("serial")
     @Test
     public void minifyJsonTest() throws Exception
@@ -661,4 +676,119 @@ public final class JsonMinifierTest
                 "minifyLargeBase64DataJsonTest");
         assertTrue(minifiedJson.contains(".bin"), "minifyLargeBase64DataJsonTest");
     }
+
+    @Test
+    public void minifierReuseTest() throws Exception
+    {
+        System.out.println("minifierReuseTest...");
+        final JsonMinifier minifier = new JsonMinifier();
+        final String largeValue = String.join("", Collections.nCopies(100_000, "x"));
+        final String[] documents = {
+            "{'document': {'reference': 'a', 'fields': {'CONTENT': [{'DATA': 'first', 'encoding': 'utf8'}]}}}",
+            "{'document': {'reference': 'b', 'fields': {'CONTENT': [{'data': '" + largeValue + "'}]}}}",
+            "{'document': {'reference': 'c', 'fields': {'CONTENT': [{'data': null}, {'data': 12}]}}}"
+        };
+        final String[] expected = {
+            "{'document':{'reference':'a','fields':{'CONTENT':[{'data':'first','encoding':'utf8'}]}}}\n",
+            null,
+            "{'document':{'reference':'c','fields':{'CONTENT':[{'data':'null'},{'data':'12'}]}}}\n"
+        };
+        for (int i = 0; i < documents.length; i++) {
+            final InputStream inputStream = new ByteArrayInputStream(documents[i].replaceAll("'", "\"").getBytes("UTF-8"));
+            final ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+            minifier.minify(inputStream, outStream, "/etc/store/batches/acme-com/completed/test_batch/files",
+                            inprogressContentFolderPath, Integer.MAX_VALUE, new HashMap<>());
+            final String minifiedJson = outStream.toString("UTF-8");
+            if (expected[i] == null) {
+                assertTrue(minifiedJson.contains(largeValue), "minifierReuseTest");
+            } else {
+                assertEquals(expected[i].replaceAll("'", "\""), minifiedJson, "minifierReuseTest");
+            }
+        }
+    }
+
+    @Test
+    public void minifySpilledDataJsonTest() throws Exception
+    {
+        System.out.println("minifySpilledDataJsonTest...");
+        final StringBuilder text = new StringBuilder();
+        final StringBuilder escapedText = new StringBuilder();
+        while (text.length() < 3 * fieldValueSizeThreshold) {
+            text.append("Line \"quoted\" caf\u00e9 \u20ac \ud83d\ude00\n");
+            escapedText.append("Line \\\"quoted\\\" caf\\u00e9 \u20ac \\ud83d\\ude00\\n");
+        }
+        final byte[] binary = new byte[2 * fieldValueSizeThreshold];
+        for (int i = 0; i < binary.length; i++) {
+            binary[i] = (byte) i;
+        }
+        final String testJson
+            = "{\"document\": {\"reference\": \"big\", \"fields\": {"
+            + "\"CONTENT\": [{\"data\": \"" + escapedText + "\"}, {\"data\": \"small\"}],"
+            + "\"IMAGE\": [{\"encoding\": \"base64\", \"data\": \"" + Base64.getEncoder().encodeToString(binary) + "\"}],"
+            + "\"THUMBNAIL\": [{\"data\": \"" + Base64.getMimeEncoder().encodeToString(binary).replace("\r\n", "\\r\\n") + "\", \"encoding\": \"base64\"}]"
+            + "}}}";
+        // Supply the document one byte at a time so that values are split across reads
+        final InputStream inputStream = new FilterInputStream(new ByteArrayInputStream(testJson.getBytes(StandardCharsets.UTF_8)))
+        {
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException
+            {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        final ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        new JsonMinifier().minify(inputStream, outStream, "/store", tempFolder.getPath(), fieldValueSizeThreshold, new HashMap<>());
+        final String minifiedJson = outStream.toString("UTF-8");
+        System.out.println("minifySpilledDataJsonTest : Minified Json : " + minifiedJson);
+
+        final File[] files = tempFolder.listFiles();
+        assertNotNull(files);
+        assertEquals(3, files.length, "minifySpilledDataJsonTest");
+        for (final File file : files) {
+            assertTrue(minifiedJson.contains("{\"data\":\"/store/" + file.getName() + "\",\"encoding\":\"storage_ref\"}"),
+                       "minifySpilledDataJsonTest");
+            if (file.getName().endsWith(".txt")) {
+                assertEquals(text.toString(), new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            } else {
+                assertTrue(file.getName().endsWith(".bin"), "minifySpilledDataJsonTest");
+                assertTrue(Arrays.equals(binary, Files.readAllBytes(file.toPath())), "minifySpilledDataJsonTest");
+            }
+        }
+        assertTrue(minifiedJson.contains("{\"data\":\"small\"}"), "minifySpilledDataJsonTest");
+    }
+
+    @Test
+    public void minifyInvalidSpilledDataJsonTest() throws Exception
+    {
+        System.out.println("minifyInvalidSpilledDataJsonTest...");
+        final byte[][] invalidValues = {
+            "\\uZZ00".getBytes(StandardCharsets.US_ASCII),
+            "\\q".getBytes(StandardCharsets.US_ASCII),
+            {0x01},
+            {(byte) 0xc3, 0x28},
+            {(byte) 0xc0, (byte) 0x80},
+            {(byte) 0xed, (byte) 0xa0, (byte) 0x80},
+            {(byte) 0xf8, (byte) 0x88, (byte) 0x80, (byte) 0x80}
+        };
+        final byte[] padding = new byte[fieldValueSizeThreshold + 10];
+        Arrays.fill(padding, (byte) 'a');
+        for (final byte[] invalidValue : invalidValues) {
+            // The invalid part of the value comes after the threshold, so the value is already being written to a file
+            final ByteArrayOutputStream testJson = new ByteArrayOutputStream();
+            testJson.write("{\"document\": {\"reference\": \"big\", \"fields\": {\"CONTENT\": [{\"data\": \""
+                .getBytes(StandardCharsets.UTF_8));
+            testJson.write(padding);
+            testJson.write(invalidValue);
+            testJson.write("\"}]}}}".getBytes(StandardCharsets.UTF_8));
+            final InputStream inputStream = new ByteArrayInputStream(testJson.toByteArray());
+            final ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+            assertThrows(InvalidBatchException.class,
+                         () -> new JsonMinifier().minify(inputStream, outStream, "/store", tempFolder.getPath(),
+                                                         fieldValueSizeThreshold, new HashMap<>()),
+                         "minifyInvalidSpilledDataJsonTest");
+            final File[] files = tempFolder.listFiles();
+            assertNotNull(files);
+            assertEquals(0, files.length, "minifyInvalidSpilledDataJsonTest");
+        }
+    }
 }
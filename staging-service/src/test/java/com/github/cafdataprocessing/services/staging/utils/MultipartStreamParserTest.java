@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.services.staging.utils;
+
+import com.github.cafdataprocessing.services.staging.exceptions.IncompleteBatchException;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class MultipartStreamParserTest
+{
+    private static final String BOUNDARY = "xyzBoundary";
+
+    private static final String BODY
+        = "--" + BOUNDARY + "\r\n"
+        + "Content-Disposition: form-data; name=\"first.json\"\r\n"
+        + "Content-Type: application/document+json\r\n"
+        + "\r\n"
+        + "{\"document\":\"--xyzBoun\r\n--xyz\"}\r\n"
+        + "--" + BOUNDARY + "\r\n"
+        + "Content-Disposition: form-data; name=\"second.txt\"\r\n"
+        + "\r\n"
+        + "\r\n"
+        + "--" + BOUNDARY + "--\r\n";
+
+    @Test
+    public void parseInChunksTest() throws Exception
+    {
+        final byte[] body = BODY.getBytes(StandardCharsets.ISO_8859_1);
+        for (final int chunkSize : new int[]{1, 2, 7, body.length}) {
+            final List<String> parts = new ArrayList<>();
+            final MultipartStreamParser parser = new MultipartStreamParser(BOUNDARY, StandardCharsets.UTF_8, new RecordingHandler(parts));
+            for (int offset = 0; offset < body.length; offset += chunkSize) {
+                parser.write(body, offset, Math.min(chunkSize, body.length - offset));
+            }
+            parser.close();
+            assertEquals(List.of(
+                "first.json|application/document+json|true|{\"document\":\"--xyzBoun\r\n--xyz\"}",
+                "second.txt|null|true|"), parts, "Chunk size " + chunkSize);
+        }
+    }
+
+    @Test
+    public void fileParameterIsNotFormFieldTest() throws Exception
+    {
+        final byte[] body = ("--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"a\"; filename=\"a.txt\"\r\n"
+            + "\r\n"
+            + "abc\r\n"
+            + "--" + BOUNDARY + "--").getBytes(StandardCharsets.ISO_8859_1);
+        final List<String> parts = new ArrayList<>();
+        final MultipartStreamParser parser = new MultipartStreamParser(BOUNDARY, StandardCharsets.UTF_8, new RecordingHandler(parts));
+        parser.write(body, 0, body.length);
+        parser.close();
+        assertEquals(List.of("a|null|false|abc"), parts);
+    }
+
+    @Test
+    public void truncatedBodyNegativeTest() throws Exception
+    {
+        final byte[] body = BODY.substring(0, BODY.length() / 2).getBytes(StandardCharsets.ISO_8859_1);
+        final MultipartStreamParser parser
+            = new MultipartStreamParser(BOUNDARY, StandardCharsets.UTF_8, new RecordingHandler(new ArrayList<>()));
+        parser.write(body, 0, body.length);
+        assertThrows(IncompleteBatchException.class, parser::close);
+    }
+
+    @Test
+    public void getBoundaryTest()
+    {
+        assertEquals("abc", MultipartStreamParser.getBoundary("multipart/form-data; boundary=abc"));
+        assertEquals("a b", MultipartStreamParser.getBoundary("multipart/mixed; charset=UTF-8; boundary=\"a b\""));
+        assertNull(MultipartStreamParser.getBoundary("application/json"));
+        assertNull(MultipartStreamParser.getBoundary("multipart/form-data"));
+    }
+
+    private static final class RecordingHandler implements MultipartStreamParser.PartHandler
+    {
+        private final List<String> parts;
+        private String header;
+        private ByteArrayOutputStream data;
+
+        public RecordingHandler(final List<String> parts)
+        {
+            this.parts = parts;
+        }
+
+        @Override
+        public void startPart(final String fieldName, final String contentType, final boolean isFormField)
+        {
+            header = fieldName + "|" + contentType + "|" + isFormField + "|";
+            data = new ByteArrayOutputStream();
+        }
+
+        @Override
+        public void partData(final byte[] buffer, final int offset, final int length)
+        {
+            data.write(buffer, offset, length);
+        }
+
+        @Override
+        public void endPart()
+        {
+            parts.add(header + new String(data.toByteArray(), StandardCharsets.ISO_8859_1));
+        }
+    }
+}
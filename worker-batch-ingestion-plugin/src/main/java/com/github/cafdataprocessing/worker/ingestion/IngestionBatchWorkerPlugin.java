@@ -19,7 +19,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.github.cafdataprocessing.services.staging.BatchId;
 import com.github.cafdataprocessing.services.staging.TenantId;
+import com.github.cafdataprocessing.services.staging.dao.filesystem.BatchNameProvider;
 import com.github.cafdataprocessing.services.staging.dao.filesystem.BatchPathProvider;
+import com.github.cafdataprocessing.services.staging.dao.filesystem.SubbatchManifest;
 import com.github.cafdataprocessing.services.staging.exceptions.InvalidBatchIdException;
 import com.github.cafdataprocessing.services.staging.exceptions.InvalidTenantIdException;
 import com.github.cafdataprocessing.worker.ingestion.models.Subbatch;
@@ -34,21 +36,26 @@ import com.hpe.caf.worker.document.DocumentWorkerConstants;
 import com.hpe.caf.worker.document.DocumentWorkerDocument;
 import com.hpe.caf.worker.document.DocumentWorkerDocumentTask;
 import com.hpe.caf.worker.document.DocumentWorkerScript;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -174,13 +181,11 @@ public final class IngestionBatchWorkerPlugin implements BatchWorkerPlugin
             final Path pathOfSubBatches = fileSystemProvider.getPathForBatch(tenantId, batchIdExtracted);
 
             throwIOExceptionIfFileIsNotAccessible(pathOfSubBatches);
-            final String[] extensions = {"batch"};
-            final Collection<File> subbatchesFiles = FileUtils.listFiles(pathOfSubBatches.toFile(), extensions, false);
 
-            for (final File subbatch : subbatchesFiles) {
-                log.debug("Batch file found: " + subbatch.getName());
+            for (final String subbatch : getSubbatchFileNames(pathOfSubBatches)) {
+                log.debug("Batch file found: " + subbatch);
                 batchWorkerServices.registerBatchSubtask("subbatch:" + tenantId.getValue() + "/" + batchIdExtracted.getValue()
-                    + "/" + subbatch.getName());
+                    + "/" + subbatch);
             }
         } catch (final IllegalArgumentException ex) {
             log.error("Exception while reading the batch: " + batchId
@@ -196,6 +201,26 @@ public final class IngestionBatchWorkerPlugin implements BatchWorkerPlugin
         }
     }
 
+    /**
+     * Returns the names of the subbatch files of a batch from its manifest, largest first so that the longest tasks are started
+     * first. Batches staged before manifests were written are listed instead.
+     */
+    private static List<String> getSubbatchFileNames(final Path batchPath) throws IOException
+    {
+        if (SubbatchManifest.exists(batchPath)) {
+            final SubbatchManifest manifest = SubbatchManifest.read(batchPath);
+            log.debug("Batch manifest found: " + manifest.getEntries().size() + " subbatches, " + manifest.getDocumentCount()
+                + " documents, " + manifest.getByteLength() + " bytes");
+            return manifest.getEntries().stream()
+                .sorted(Comparator.comparingLong(SubbatchManifest.Entry::getByteLength).reversed())
+                .map(SubbatchManifest.Entry::getFileName)
+                .toList();
+        }
+        final String[] extensions = {"batch"};
+        final Collection<File> subbatchesFiles = FileUtils.listFiles(batchPath.toFile(), extensions, false);
+        return subbatchesFiles.stream().map(File::getName).toList();
+    }
+
     private static void throwIOExceptionIfFileIsNotAccessible(final Path path) throws IOException
     {
         path.getFileSystem().provider().checkAccess(path);
@@ -212,7 +237,7 @@ public final class IngestionBatchWorkerPlugin implements BatchWorkerPlugin
         final List<String> lines = new ArrayList<>();
         try {
             throwBatchExceptionIfFileIsNotAccessible(subbatch, subbatchFileName);
-            lines.addAll(Files.readAllLines(subbatchFileName));
+            lines.addAll(readSubbatchLines(subbatchFileName));
         } catch (final IOException ex) {
             log.error("Transient exception while reading subbatch: " + subbatchFileName + ", message: " + ex.getMessage());
             throw new BatchWorkerTransientException("Transient exception while reading subbatch: " + subbatchFileName + ", message: "
@@ -235,6 +260,22 @@ public final class IngestionBatchWorkerPlugin implements BatchWorkerPlugin
         }
     }
 
+    private static List<String> readSubbatchLines(final Path subbatchFileName) throws IOException
+    {
+        if (!BatchNameProvider.isCompressedSubBatchName(subbatchFileName.getFileName().toString())) {
+            return Files.readAllLines(subbatchFileName);
+        }
+        final List<String> lines = new ArrayList<>();
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new GZIPInputStream(Files.newInputStream(subbatchFileName)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
     private static void throwBatchExceptionIfFileIsNotAccessible(final String subbatch, final Path subbatchFileName)
         throws BatchDefinitionException
     {
@@ -247,6 +247,32 @@ public final class IngestionWorkerUnitTest
         }
     }
 
+    @Test
+    @DisplayName("Test compressed subbatch successfully processed")
+    void testCompressedSubbatch() throws JsonProcessingException, BatchDefinitionException, BatchWorkerTransientException
+    {
+        final List<TaskMessage> constructedMessages = new ArrayList<>();
+
+        final IngestionBatchWorkerPlugin plugin = new IngestionBatchWorkerPlugin();
+        testWorkerServices = createTestBatchWorkerServices(constructedMessages, plugin);
+
+        testTaskMessageParams = null;
+        final String batchDefinition = "subbatch:tenant7/batch12/20190328-100001-t04-json.gz.batch";
+        taskMessageType = "DocumentMessage";
+
+        plugin.processBatch(testWorkerServices, batchDefinition, taskMessageType, testTaskMessageParams);
+
+        // The subbatch holds the same document as tenant3/batch3/20190328-100001-t04-json.batch
+        assertThat(constructedMessages.size(), is(equalTo(1)));
+        for (final TaskMessage returnedMessage : constructedMessages) {
+            checkClassifierAndApiVersion(returnedMessage);
+
+            final DocumentWorkerDocumentTask returnedTaskData = (DocumentWorkerDocumentTask) returnedMessage.getTaskData();
+            assertThat(returnedTaskData, is(notNullValue()));
+            assertThat(returnedTaskData.document, is(notNullValue()));
+        }
+    }
+
     @ParameterizedTest
     @DisplayName("Test multiple batches with scripts")
     @MethodSource("scriptProvider")